@@ -0,0 +1,183 @@
+package com.gero.newpass.database;
+
+import android.content.Context;
+import android.database.Cursor;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.gero.newpass.backup.BackupRecord;
+
+import net.sqlcipher.database.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instrumented test, which will execute on an Android device.
+ * Builds a vault with the version 1 schema and replays the migrations on it.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DatabaseMigrationsTest {
+
+    private static final String DATABASE_NAME = "migration_test.db";
+
+    private Context context;
+    private SQLiteDatabase db;
+
+    @Before
+    public void createVersion1Vault() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        SQLiteDatabase.loadLibs(context);
+
+        context.deleteDatabase(DATABASE_NAME);
+        File file = context.getDatabasePath(DATABASE_NAME);
+        file.getParentFile().mkdirs();
+        db = SQLiteDatabase.openOrCreateDatabase(file, "test", null);
+
+        // The schema of version 1, as the first release created it
+        db.execSQL("CREATE TABLE " + DatabaseHelper.TABLE_NAME +
+                " (" + DatabaseHelper.COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                DatabaseHelper.COLUMN_NAME + " TEXT, " +
+                DatabaseHelper.COLUMN_EMAIL + " TEXT, " +
+                DatabaseHelper.COLUMN_PASSWORD + " TEXT);");
+        db.setVersion(DatabaseMigrations.BASE_VERSION);
+
+        insert("GitHub", "me@example.com", "first");
+        insert("GitHub", "me@example.com", "second");
+        insert("Mail", "me@example.com", "third");
+    }
+
+    @After
+    public void deleteVault() {
+        db.close();
+        context.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void migrateFrom1To3_keepsEveryEntryUnchanged() {
+        DatabaseMigrations.migrate(db, 1, 3);
+
+        try (Cursor cursor = db.rawQuery("SELECT " + DatabaseHelper.COLUMN_NAME + ", " + DatabaseHelper.COLUMN_PASSWORD +
+                " FROM " + DatabaseHelper.TABLE_NAME + " ORDER BY " + DatabaseHelper.COLUMN_ID, null)) {
+            assertEquals(3, cursor.getCount());
+
+            cursor.moveToNext();
+            assertEquals("GitHub", cursor.getString(0));
+            assertEquals("first", cursor.getString(1));
+            cursor.moveToNext();
+            assertEquals("GitHub", cursor.getString(0));
+            assertEquals("second", cursor.getString(1));
+            cursor.moveToNext();
+            assertEquals("Mail", cursor.getString(0));
+        }
+    }
+
+    @Test
+    public void migrateFrom1To2_createsTheIndexes() {
+        DatabaseMigrations.migrate(db, 1, 2);
+
+        assertTrue(exists("index", DatabaseMigrations.INDEX_NAME_EMAIL));
+        assertTrue(exists("index", DatabaseMigrations.INDEX_NAME_ORDER));
+        assertFalse(exists("table", DatabaseMigrations.CHANGE_LOG_TABLE));
+
+        // Duplicate accounts can still be stored, the check is done by the app
+        insert("GitHub", "me@example.com", "fourth");
+    }
+
+    @Test
+    public void migrateFrom2To3_logsEveryChange() {
+        DatabaseMigrations.migrate(db, 1, 2);
+        DatabaseMigrations.migrate(db, 2, 3);
+
+        assertTrue(exists("table", DatabaseMigrations.CHANGE_LOG_TABLE));
+        assertTrue(exists("table", DatabaseMigrations.META_TABLE));
+
+        long id = insert("Bank", "me@example.com", "fifth");
+        db.execSQL("UPDATE " + DatabaseHelper.TABLE_NAME + " SET " + DatabaseHelper.COLUMN_EMAIL + " = 'other@example.com'" +
+                " WHERE " + DatabaseHelper.COLUMN_ID + " = " + id);
+        db.execSQL("DELETE FROM " + DatabaseHelper.TABLE_NAME + " WHERE " + DatabaseHelper.COLUMN_ID + " = " + id);
+
+        try (Cursor cursor = db.rawQuery("SELECT record_id, op FROM " + DatabaseMigrations.CHANGE_LOG_TABLE + " ORDER BY seq", null)) {
+            assertEquals(3, cursor.getCount());
+
+            cursor.moveToNext();
+            assertEquals(id, cursor.getLong(0));
+            assertEquals(BackupRecord.OP_UPSERT, cursor.getInt(1));
+            cursor.moveToNext();
+            assertEquals(BackupRecord.OP_UPSERT, cursor.getInt(1));
+            cursor.moveToNext();
+            assertEquals(BackupRecord.OP_DELETE, cursor.getInt(1));
+        }
+    }
+
+    @Test
+    public void migrateFrom3To4_skipsPasswordOnlyUpdates() {
+        DatabaseMigrations.migrate(db, 1, 3);
+        DatabaseMigrations.migrate(db, 3, 4);
+
+        long id = insert("Bank", "me@example.com", "fifth");
+        db.execSQL("UPDATE " + DatabaseHelper.TABLE_NAME + " SET " + DatabaseHelper.COLUMN_PASSWORD + " = 'rewritten'" +
+                " WHERE " + DatabaseHelper.COLUMN_ID + " = " + id);
+        db.execSQL("UPDATE " + DatabaseHelper.TABLE_NAME + " SET " + DatabaseHelper.COLUMN_NAME + " = 'Other', " +
+                DatabaseHelper.COLUMN_PASSWORD + " = 'changed' WHERE " + DatabaseHelper.COLUMN_ID + " = " + id);
+
+        try (Cursor cursor = db.rawQuery("SELECT record_id, op FROM " + DatabaseMigrations.CHANGE_LOG_TABLE + " ORDER BY seq", null)) {
+            assertEquals(2, cursor.getCount());
+
+            cursor.moveToNext();
+            assertEquals(id, cursor.getLong(0));
+            cursor.moveToNext();
+            assertEquals(id, cursor.getLong(0));
+            assertEquals(BackupRecord.OP_UPSERT, cursor.getInt(1));
+        }
+    }
+
+    @Test
+    public void migrateFrom1To4_isTheSameAsStepByStep() {
+        DatabaseMigrations.migrate(db, 1, 4);
+        String direct = schema();
+
+        deleteVault();
+        createVersion1Vault();
+
+        DatabaseMigrations.migrate(db, 1, 2);
+        DatabaseMigrations.migrate(db, 2, 3);
+        DatabaseMigrations.migrate(db, 3, 4);
+        assertEquals(direct, schema());
+    }
+
+    private long insert(String name, String email, String password) {
+        db.execSQL("INSERT INTO " + DatabaseHelper.TABLE_NAME + " (" + DatabaseHelper.COLUMN_NAME + ", " +
+                DatabaseHelper.COLUMN_EMAIL + ", " + DatabaseHelper.COLUMN_PASSWORD + ") VALUES (?, ?, ?)",
+                new Object[]{name, email, password});
+
+        try (Cursor cursor = db.rawQuery("SELECT last_insert_rowid()", null)) {
+            cursor.moveToFirst();
+            return cursor.getLong(0);
+        }
+    }
+
+    private boolean exists(String type, String name) {
+        try (Cursor cursor = db.rawQuery("SELECT 1 FROM sqlite_master WHERE type = ? AND name = ?", new String[]{type, name})) {
+            return cursor.moveToFirst();
+        }
+    }
+
+    private String schema() {
+        StringBuilder schema = new StringBuilder();
+
+        try (Cursor cursor = db.rawQuery("SELECT sql FROM sqlite_master WHERE sql IS NOT NULL ORDER BY name", null)) {
+            while (cursor.moveToNext()) {
+                schema.append(cursor.getString(0)).append('\n');
+            }
+        }
+        return schema.toString();
+    }
+}
@@ -0,0 +1,198 @@
+package com.gero.newpass.backup;
+
+import com.gero.newpass.encryption.KeyDerivation;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The .npbak backup format.
+ * <pre>
+ * header: "NPBAK" | version (1) | flags (1) | kdf iterations (4) | salt (16) | nonce prefix (8)
+ *         | chain id (8) | base sequence (8) | sequence (8)          (since version 2)
+ * chunk:  ciphertext length (4) | AES-256-GCM ciphertext with its 16 byte tag
+ * </pre>
+ * The key is derived from the password with PBKDF2-HMAC-SHA512 and the parameters of the header.
+ * Every chunk is authenticated on its own, with the header, its index and whether it is the last one as
+ * associated data: a chunk can't be altered, reordered, moved to another backup or dropped from the end
+ * without failing the verification. The IV of a chunk is the nonce prefix followed by its index.
+ * A chunk holds a sequence of records, deflated first if the compression flag is set.
+ * The fields added by version 2 describe the {@link BackupScope}: a version 1 backup is a full backup outside any chain.
+ */
+class BackupFormat {
+
+    static final byte[] MAGIC = {'N', 'P', 'B', 'A', 'K'};
+    static final int VERSION = 2;
+    static final int FLAG_DEFLATE = 1;
+    static final int FLAG_INCREMENTAL = 2;
+    static final int HEADER_LENGTH = MAGIC.length + 1 + 1 + 4 + 16 + 8 + 8 + 8 + 8;
+
+    static final int KDF_ITERATIONS = 256000;
+    static final int SALT_LENGTH = 16;
+    static final int NONCE_PREFIX_LENGTH = 8;
+    static final int CHAIN_ID_LENGTH = 8;
+    static final int KEY_LENGTH = 32;
+    static final int TAG_LENGTH_BITS = 128;
+
+    // Plain text size after which a chunk is sealed
+    static final int CHUNK_SIZE = 64 * 1024;
+    // Upper bound of a chunk on disk, anything larger is a corrupt length
+    static final int MAX_CHUNK_LENGTH = 4 * CHUNK_SIZE;
+
+    static class Header {
+        final int version;
+        final int flags;
+        final int kdfIterations;
+        final byte[] salt;
+        final byte[] noncePrefix;
+        final BackupScope scope;
+        final byte[] encoded;
+
+        Header(int version, int flags, int kdfIterations, byte[] salt, byte[] noncePrefix, BackupScope scope) {
+            this.version = version;
+            this.flags = flags;
+            this.kdfIterations = kdfIterations;
+            this.salt = salt;
+            this.noncePrefix = noncePrefix;
+            this.scope = scope;
+            this.encoded = encode();
+        }
+
+        static Header create(boolean deflate, BackupScope scope) {
+            SecureRandom random = new SecureRandom();
+            byte[] salt = new byte[SALT_LENGTH];
+            byte[] noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+            random.nextBytes(salt);
+            random.nextBytes(noncePrefix);
+
+            int flags = (deflate ? FLAG_DEFLATE : 0) | (scope.incremental ? FLAG_INCREMENTAL : 0);
+            return new Header(VERSION, flags, KDF_ITERATIONS, salt, noncePrefix, scope);
+        }
+
+        static Header read(DataInputStream in) throws IOException {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new BackupFormatException("Not a NewPass backup");
+            }
+
+            int version = in.readUnsignedByte();
+            if (version < 1 || version > VERSION) {
+                throw new BackupFormatException("Unsupported backup version " + version);
+            }
+
+            int flags = in.readUnsignedByte();
+            int kdfIterations = in.readInt();
+            byte[] salt = new byte[SALT_LENGTH];
+            byte[] noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+            in.readFully(salt);
+            in.readFully(noncePrefix);
+
+            if (kdfIterations <= 0) {
+                throw new BackupFormatException("Invalid key derivation parameters");
+            }
+
+            BackupScope scope;
+            if (version == 1) {
+                scope = BackupScope.read(false, null, 0, 0);
+            } else {
+                byte[] chainId = new byte[CHAIN_ID_LENGTH];
+                in.readFully(chainId);
+                long baseSequence = in.readLong();
+                long sequence = in.readLong();
+                scope = BackupScope.read((flags & FLAG_INCREMENTAL) != 0, toHex(chainId), baseSequence, sequence);
+            }
+            return new Header(version, flags, kdfIterations, salt, noncePrefix, scope);
+        }
+
+        boolean isDeflated() {
+            return (flags & FLAG_DEFLATE) != 0;
+        }
+
+        /**
+         * Identifies the backup, to resume its restore.
+         */
+        String id() {
+            return toHex(noncePrefix);
+        }
+
+        private byte[] encode() {
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_LENGTH);
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.write(MAGIC);
+                out.writeByte(version);
+                out.writeByte(flags);
+                out.writeInt(kdfIterations);
+                out.write(salt);
+                out.write(noncePrefix);
+
+                if (version >= 2) {
+                    out.write(fromHex(scope.chainId));
+                    out.writeLong(scope.baseSequence);
+                    out.writeLong(scope.sequence);
+                }
+                return bytes.toByteArray();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    static SecretKey deriveKey(char[] password, Header header) throws GeneralSecurityException {
+        byte[] key = KeyDerivation.pbkdf2HmacSha512(password, header.salt, header.kdfIterations, KEY_LENGTH);
+
+        try {
+            return new SecretKeySpec(key, "AES");
+        } finally {
+            Arrays.fill(key, (byte) 0);
+        }
+    }
+
+    /**
+     * Returns a cipher ready to seal or open the given chunk.
+     */
+    static Cipher chunkCipher(int mode, SecretKey key, Header header, int index, boolean last) throws GeneralSecurityException {
+        byte[] iv = Arrays.copyOf(header.noncePrefix, NONCE_PREFIX_LENGTH + 4);
+        iv[8] = (byte) (index >>> 24);
+        iv[9] = (byte) (index >>> 16);
+        iv[10] = (byte) (index >>> 8);
+        iv[11] = (byte) index;
+
+        byte[] aad = Arrays.copyOf(header.encoded, header.encoded.length + 5);
+        System.arraycopy(iv, NONCE_PREFIX_LENGTH, aad, header.encoded.length, 4);
+        aad[aad.length - 1] = (byte) (last ? 1 : 0);
+
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(mode, key, new GCMParameterSpec(TAG_LENGTH_BITS, iv));
+        cipher.updateAAD(aad);
+        return cipher;
+    }
+}
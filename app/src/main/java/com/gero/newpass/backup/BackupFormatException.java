@@ -0,0 +1,17 @@
+package com.gero.newpass.backup;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a file is not a backup, is truncated, or fails the authentication (wrong password or altered content).
+ */
+public class BackupFormatException extends IOException {
+
+    BackupFormatException(String message) {
+        super(message);
+    }
+
+    BackupFormatException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,228 @@
+package com.gero.newpass.backup;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+/**
+ * Reads a .npbak backup chunk by chunk. Each chunk is authenticated before any of its records is returned,
+ * so a restore never applies altered data, and a truncated backup is detected at its end.
+ */
+public class BackupReader implements Closeable {
+
+    private final DataInputStream in;
+    private final BackupFormat.Header header;
+    private final SecretKey key;
+    // Length of the next chunk, read ahead to know whether the current one is the last; -1 at the end of the file
+    private int nextLength;
+    private int chunkIndex;
+    private boolean finished;
+
+    /**
+     * Reads the header and derives the key of the backup.
+     *
+     * @param in       The backup, closed with this reader.
+     * @param password The password of the backup, it is not kept.
+     * @throws BackupFormatException If the stream is not a supported backup.
+     * @throws IOException If the stream can't be read.
+     * @throws GeneralSecurityException If the key can't be derived.
+     */
+    public BackupReader(InputStream in, char[] password) throws IOException, GeneralSecurityException {
+        this.in = new DataInputStream(in);
+
+        try {
+            this.header = BackupFormat.Header.read(this.in);
+        } catch (EOFException e) {
+            throw new BackupFormatException("Not a NewPass backup", e);
+        }
+        this.key = BackupFormat.deriveKey(password, header);
+        this.nextLength = readLength();
+    }
+
+    /**
+     * @return An identifier of the backup, unique to every backup written.
+     */
+    public String getBackupId() {
+        return header.id();
+    }
+
+    /**
+     * @return What the backup covers.
+     */
+    public BackupScope getScope() {
+        return header.scope;
+    }
+
+    /**
+     * @return The index of the chunk returned by the next {@link #readChunk()}.
+     */
+    public int getNextChunkIndex() {
+        return chunkIndex;
+    }
+
+    /**
+     * Reads, authenticates and decodes the next chunk.
+     *
+     * @return The records of the chunk, or null once the last chunk has been read.
+     * @throws BackupFormatException If the chunk fails the authentication (wrong password, altered or truncated backup).
+     * @throws IOException If the stream can't be read.
+     */
+    public List<BackupRecord> readChunk() throws IOException {
+        if (finished) {
+            return null;
+        }
+
+        byte[] sealed = readSealedChunk();
+        boolean last = nextLength < 0;
+        byte[] data;
+
+        try {
+            Cipher cipher = BackupFormat.chunkCipher(Cipher.DECRYPT_MODE, key, header, chunkIndex, last);
+            data = cipher.doFinal(sealed);
+        } catch (AEADBadTagException e) {
+            throw new BackupFormatException(chunkIndex == 0
+                    ? "Wrong password or corrupt backup"
+                    : "Chunk " + chunkIndex + " is corrupt or the backup is truncated", e);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not open chunk " + chunkIndex, e);
+        }
+
+        byte[] plain = header.isDeflated() ? inflate(data) : data;
+
+        try {
+            List<BackupRecord> records = decodeRecords(plain);
+            chunkIndex++;
+            finished = last;
+            return records;
+        } finally {
+            Arrays.fill(plain, (byte) 0);
+            Arrays.fill(data, (byte) 0);
+        }
+    }
+
+    /**
+     * Skips the next chunk without decrypting it, to resume a restore after the chunks already applied.
+     *
+     * @return False if the last chunk had already been read.
+     * @throws IOException If the stream can't be read.
+     */
+    public boolean skipChunk() throws IOException {
+        if (finished) {
+            return false;
+        }
+        readSealedChunk();
+        chunkIndex++;
+        finished = nextLength < 0;
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private byte[] readSealedChunk() throws IOException {
+        if (nextLength < 0) {
+            throw new BackupFormatException("The backup is truncated");
+        }
+
+        byte[] sealed = new byte[nextLength];
+        try {
+            in.readFully(sealed);
+        } catch (EOFException e) {
+            throw new BackupFormatException("The backup is truncated", e);
+        }
+        nextLength = readLength();
+        return sealed;
+    }
+
+    private int readLength() throws IOException {
+        int first = in.read();
+
+        if (first < 0) {
+            return -1;
+        }
+
+        int length;
+        try {
+            length = (first << 24) | (in.readUnsignedByte() << 16) | (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+        } catch (EOFException e) {
+            throw new BackupFormatException("The backup is truncated", e);
+        }
+
+        if (length < BackupFormat.TAG_LENGTH_BITS / 8 || length > BackupFormat.MAX_CHUNK_LENGTH) {
+            throw new BackupFormatException("Invalid chunk length " + length);
+        }
+        return length;
+    }
+
+    private static byte[] inflate(byte[] data) throws BackupFormatException {
+        Inflater inflater = new Inflater();
+        BackupWriter.WipeableByteArrayOutputStream plain = new BackupWriter.WipeableByteArrayOutputStream(data.length * 3);
+        byte[] buffer = new byte[8192];
+
+        try {
+            inflater.setInput(data);
+
+            while (!inflater.finished()) {
+                int count = inflater.inflate(buffer);
+
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new BackupFormatException("Invalid compressed chunk");
+                }
+                // An authenticated chunk can't be a decompression bomb unless the writer was hostile, but stay bounded
+                if (plain.size() + count > BackupFormat.MAX_CHUNK_LENGTH) {
+                    throw new BackupFormatException("Compressed chunk too large");
+                }
+                plain.write(buffer, 0, count);
+            }
+            return plain.toByteArray();
+        } catch (DataFormatException e) {
+            throw new BackupFormatException("Invalid compressed chunk", e);
+        } finally {
+            inflater.end();
+            plain.wipe();
+            Arrays.fill(buffer, (byte) 0);
+        }
+    }
+
+    private static List<BackupRecord> decodeRecords(byte[] plain) throws BackupFormatException {
+        DataInputStream records = new DataInputStream(new ByteArrayInputStream(plain));
+        List<BackupRecord> result = new ArrayList<>();
+
+        try {
+            while (records.available() > 0) {
+                int op = records.readUnsignedByte();
+                long id = records.readLong();
+                String name = readNullableString(records);
+                String email = readNullableString(records);
+                String password = readNullableString(records);
+
+                if (op != BackupRecord.OP_UPSERT && op != BackupRecord.OP_DELETE) {
+                    throw new BackupFormatException("Unknown record type " + op);
+                }
+                result.add(new BackupRecord(op, id, name, email, password));
+            }
+        } catch (IOException e) {
+            throw new BackupFormatException("Invalid record", e);
+        }
+        return result;
+    }
+
+    private static String readNullableString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
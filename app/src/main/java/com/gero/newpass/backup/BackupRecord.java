@@ -0,0 +1,31 @@
+package com.gero.newpass.backup;
+
+import androidx.annotation.Nullable;
+
+/**
+ * One entry of a backup, with its password in plain text: the whole record is encrypted by the backup key.
+ */
+public class BackupRecord {
+
+    // The entry exists with these values
+    public static final int OP_UPSERT = 1;
+    // The entry with this id has been deleted, only the id is meaningful
+    public static final int OP_DELETE = 2;
+
+    public final int op;
+    public final long id;
+    @Nullable
+    public final String name;
+    @Nullable
+    public final String email;
+    @Nullable
+    public final String password;
+
+    public BackupRecord(int op, long id, @Nullable String name, @Nullable String email, @Nullable String password) {
+        this.op = op;
+        this.id = id;
+        this.name = name;
+        this.email = email;
+        this.password = password;
+    }
+}
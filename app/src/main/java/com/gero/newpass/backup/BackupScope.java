@@ -0,0 +1,58 @@
+package com.gero.newpass.backup;
+
+import androidx.annotation.Nullable;
+
+import java.security.SecureRandom;
+
+/**
+ * What a backup covers. A full backup holds every entry of the vault up to a sequence number of its change log,
+ * an incremental one only the entries changed after the sequence number of the previous backup of the same chain.
+ * A chain starts with a full backup; restoring it and then its incremental backups in order rebuilds the vault.
+ */
+public class BackupScope {
+
+    private static final int CHAIN_ID_LENGTH = 8;
+
+    public final boolean incremental;
+    // Null for the backups written before the change log existed
+    @Nullable
+    public final String chainId;
+    // The changes after this sequence number are included, 0 for a full backup
+    public final long baseSequence;
+    // The last change included
+    public final long sequence;
+
+    private BackupScope(boolean incremental, @Nullable String chainId, long baseSequence, long sequence) {
+        this.incremental = incremental;
+        this.chainId = chainId;
+        this.baseSequence = baseSequence;
+        this.sequence = sequence;
+    }
+
+    /**
+     * Starts a new chain with a full backup.
+     *
+     * @param sequence The last change of the vault at the time of the backup.
+     */
+    public static BackupScope full(long sequence) {
+        byte[] chainId = new byte[CHAIN_ID_LENGTH];
+        new SecureRandom().nextBytes(chainId);
+        return new BackupScope(false, BackupFormat.toHex(chainId), 0, sequence);
+    }
+
+    /**
+     * Continues a chain with the changes since its last backup.
+     */
+    public static BackupScope incremental(String chainId, long baseSequence, long sequence) {
+        return new BackupScope(true, chainId, baseSequence, sequence);
+    }
+
+    static BackupScope read(boolean incremental, @Nullable String chainId, long baseSequence, long sequence) {
+        return new BackupScope(incremental, chainId, baseSequence, sequence);
+    }
+
+    @Override
+    public String toString() {
+        return (incremental ? "incremental " : "full ") + chainId + " (" + baseSequence + ", " + sequence + "]";
+    }
+}
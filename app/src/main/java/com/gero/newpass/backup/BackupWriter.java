@@ -0,0 +1,144 @@
+package com.gero.newpass.backup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+/**
+ * Writes a .npbak backup as a stream: records are buffered until a chunk is full, then the chunk is
+ * compressed if requested, sealed and written. Only one chunk is ever held in memory.
+ */
+public class BackupWriter implements Closeable {
+
+    private final DataOutputStream out;
+    private final BackupFormat.Header header;
+    private final SecretKey key;
+    private final WipeableByteArrayOutputStream plainChunk = new WipeableByteArrayOutputStream(BackupFormat.CHUNK_SIZE + 1024);
+    private final DataOutputStream records = new DataOutputStream(plainChunk);
+    private int chunkIndex;
+    private boolean finished;
+
+    /**
+     * Writes the header and derives the key of a new backup.
+     *
+     * @param out      The destination, closed with this writer.
+     * @param password The password protecting the backup, it is not kept.
+     * @param deflate  Whether to compress the chunks.
+     * @param scope    What the backup covers, stored in the header.
+     * @throws IOException If the header can't be written.
+     * @throws GeneralSecurityException If the key can't be derived.
+     */
+    public BackupWriter(OutputStream out, char[] password, boolean deflate, BackupScope scope) throws IOException, GeneralSecurityException {
+        this.out = new DataOutputStream(out);
+        this.header = BackupFormat.Header.create(deflate, scope);
+        this.key = BackupFormat.deriveKey(password, header);
+        this.out.write(header.encoded);
+    }
+
+    /**
+     * Appends a record, sealing the current chunk once it is full.
+     *
+     * @throws IOException If a chunk can't be written.
+     */
+    public void write(BackupRecord record) throws IOException {
+        records.writeByte(record.op);
+        records.writeLong(record.id);
+        writeNullableString(record.name);
+        writeNullableString(record.email);
+        writeNullableString(record.password);
+
+        if (plainChunk.size() >= BackupFormat.CHUNK_SIZE) {
+            seal(false);
+        }
+    }
+
+    /**
+     * Seals the last chunk, which marks the end of the backup, and flushes the destination.
+     *
+     * @throws IOException If the chunk can't be written.
+     */
+    public void finish() throws IOException {
+        if (!finished) {
+            seal(true);
+            finished = true;
+            out.flush();
+        }
+    }
+
+    /**
+     * Closes the destination. A backup closed without {@link #finish()} is incomplete and will fail to restore.
+     */
+    @Override
+    public void close() throws IOException {
+        plainChunk.wipe();
+        out.close();
+    }
+
+    private void writeNullableString(String value) throws IOException {
+        records.writeBoolean(value != null);
+        if (value != null) {
+            records.writeUTF(value);
+        }
+    }
+
+    private void seal(boolean last) throws IOException {
+        byte[] plain = plainChunk.toByteArray();
+        plainChunk.wipe();
+
+        try {
+            byte[] data = header.isDeflated() ? deflate(plain) : plain;
+            Cipher cipher = BackupFormat.chunkCipher(Cipher.ENCRYPT_MODE, key, header, chunkIndex, last);
+            byte[] sealed = cipher.doFinal(data);
+
+            out.writeInt(sealed.length);
+            out.write(sealed);
+            chunkIndex++;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not seal chunk " + chunkIndex, e);
+        } finally {
+            Arrays.fill(plain, (byte) 0);
+        }
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        WipeableByteArrayOutputStream compressed = new WipeableByteArrayOutputStream(data.length / 2 + 64);
+        byte[] buffer = new byte[8192];
+
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+
+            while (!deflater.finished()) {
+                compressed.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return compressed.toByteArray();
+        } finally {
+            deflater.end();
+            compressed.wipe();
+            Arrays.fill(buffer, (byte) 0);
+        }
+    }
+
+    /**
+     * A byte array stream whose buffer can be cleared, so plain text records don't linger in memory.
+     */
+    static class WipeableByteArrayOutputStream extends ByteArrayOutputStream {
+        WipeableByteArrayOutputStream(int size) {
+            super(size);
+        }
+
+        void wipe() {
+            Arrays.fill(buf, (byte) 0);
+            reset();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.gero.newpass.backup;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.gero.newpass.SharedPreferences.SharedPreferencesHelper;
+
+/**
+ * Remembers how far the restore of a backup went, so that a restore interrupted by the process being killed
+ * or canceled resumes after the last chunk applied instead of starting over. Only one restore is tracked.
+ */
+public class RestoreCheckpoint {
+
+    private static final String BACKUP_ID_FLAG = "restore_backup_id";
+    private static final String NEXT_CHUNK_FLAG = "restore_next_chunk";
+
+    /**
+     * @param context  The application context.
+     * @param backupId The id of the backup being restored.
+     * @return The index of the first chunk not applied yet, 0 if the restore of this backup never started.
+     */
+    public static int load(Context context, String backupId) {
+        SharedPreferences preferences = SharedPreferencesHelper.getSharedPreferences(context);
+
+        if (!backupId.equals(preferences.getString(BACKUP_ID_FLAG, null))) {
+            return 0;
+        }
+        return preferences.getInt(NEXT_CHUNK_FLAG, 0);
+    }
+
+    /**
+     * Records that every chunk before the given index has been committed. Written synchronously,
+     * since the chunks are applied one transaction at a time right after this call.
+     */
+    public static void save(Context context, String backupId, int nextChunk) {
+        SharedPreferencesHelper.getSharedPreferences(context).edit()
+                .putString(BACKUP_ID_FLAG, backupId)
+                .putInt(NEXT_CHUNK_FLAG, nextChunk)
+                .commit();
+    }
+
+    public static void clear(Context context) {
+        SharedPreferencesHelper.getSharedPreferences(context).edit()
+                .remove(BACKUP_ID_FLAG)
+                .remove(NEXT_CHUNK_FLAG)
+                .commit();
+    }
+}
@@ -0,0 +1,55 @@
+package com.gero.newpass.database;
+
+/**
+ * The outcome of every entry of a batch passed to {@link DatabaseHelper#addEntries}, in the order of the batch.
+ */
+public class BatchInsertResult {
+
+    public enum Status {
+        // Inserted, its row id is available
+        ADDED,
+        // An entry with the same name and email already exists in the vault or earlier in the batch
+        DUPLICATE,
+        // The password couldn't be encrypted or the row couldn't be written
+        FAILED
+    }
+
+    private final Status[] statuses;
+    private final long[] rowIds;
+
+    BatchInsertResult(int size) {
+        statuses = new Status[size];
+        rowIds = new long[size];
+    }
+
+    void set(int index, Status status, long rowId) {
+        statuses[index] = status;
+        rowIds[index] = rowId;
+    }
+
+    public int size() {
+        return statuses.length;
+    }
+
+    public Status getStatus(int index) {
+        return statuses[index];
+    }
+
+    /**
+     * @return The id of the inserted row, or -1 if the entry hasn't been added.
+     */
+    public long getRowId(int index) {
+        return rowIds[index];
+    }
+
+    public int count(Status status) {
+        int count = 0;
+
+        for (Status s : statuses) {
+            if (s == status) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,221 @@
+package com.gero.newpass.database;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.os.CancellationSignal;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.gero.newpass.encryption.KeyDerivation;
+
+import net.sqlcipher.database.SQLiteDatabase;
+import net.sqlcipher.database.SQLiteDatabaseHook;
+import net.sqlcipher.database.SQLiteStatement;
+
+import java.io.File;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Measures the cost of the SQLCipher settings on the current device and picks the {@link CipherProfile}
+ * that keeps the unlock under a target latency while reading the list as fast as possible.
+ * Every measurement runs on a scratch database in the cache directory, the vault itself is never touched.
+ */
+public class CipherCalibration {
+
+    private static final String TAG = "CipherCalibration";
+    private static final String SCRATCH_DATABASE_NAME = "cipher_calibration.db";
+
+    // Target time of the key derivation done at unlock
+    public static final long DEFAULT_TARGET_UNLOCK_MILLIS = 500;
+    // SQLCipher 3 default and a ceiling keeping slow devices usable
+    private static final int MIN_KDF_ITERATIONS = 64000;
+    private static final int MAX_KDF_ITERATIONS = 1000000;
+    private static final int SAMPLE_KDF_ITERATIONS = 20000;
+
+    private static final int[] PAGE_SIZES = {4096, 8192, 16384};
+    // Sized like a vault of a heavy user: ~200 bytes per row once the password is encrypted and Base64 encoded
+    private static final int SAMPLE_ROWS = 2000;
+    // A setting is only changed from the default if it is at least this much faster
+    private static final double MIN_PAGE_SIZE_GAIN = 1.10;
+    private static final double MIN_MEMORY_SECURITY_GAIN = 1.30;
+
+    /**
+     * The chosen profile together with the measurements it is based on.
+     */
+    public static class Result {
+        public final CipherProfile profile;
+        public final long estimatedUnlockMillis;
+        public final int[] pageSizes;
+        public final long[] rowsPerSecond;
+        public final long rowsPerSecondWithoutMemorySecurity;
+
+        Result(CipherProfile profile, long estimatedUnlockMillis, int[] pageSizes, long[] rowsPerSecond, long rowsPerSecondWithoutMemorySecurity) {
+            this.profile = profile;
+            this.estimatedUnlockMillis = estimatedUnlockMillis;
+            this.pageSizes = pageSizes;
+            this.rowsPerSecond = rowsPerSecond;
+            this.rowsPerSecondWithoutMemorySecurity = rowsPerSecondWithoutMemorySecurity;
+        }
+    }
+
+    /**
+     * Runs the benchmark. It takes a few seconds and must not run on the main thread.
+     *
+     * @param context            The application context.
+     * @param targetUnlockMillis The time the key derivation should take at unlock.
+     * @param signal             Cancels the benchmark between two measurements, may be null.
+     * @return The profile to use on this device and the measurements.
+     * @throws GeneralSecurityException If the key derivation can't be measured.
+     * @throws android.os.OperationCanceledException If the benchmark has been canceled.
+     */
+    public static Result run(Context context, long targetUnlockMillis, @Nullable CancellationSignal signal) throws GeneralSecurityException {
+        SQLiteDatabase.loadLibs(context);
+        File scratchFile = new File(context.getCacheDir(), SCRATCH_DATABASE_NAME);
+        // The process wide memory wiping is restored to the setting of the vault at the end
+        boolean memorySecurity = CipherProfile.load(context).isMemorySecurity();
+
+        try {
+            double nanosPerIteration = measureNanosPerIteration();
+            long iterations = Math.round(targetUnlockMillis * 1000000.0 / nanosPerIteration / 1000) * 1000;
+            int kdfIterations = (int) Math.max(MIN_KDF_ITERATIONS, Math.min(MAX_KDF_ITERATIONS, iterations));
+            long estimatedUnlockMillis = Math.round(kdfIterations * nanosPerIteration / 1000000);
+
+            long[] rowsPerSecond = new long[PAGE_SIZES.length];
+            int bestIndex = 0;
+
+            for (int i = 0; i < PAGE_SIZES.length; i++) {
+                throwIfCanceled(signal);
+                rowsPerSecond[i] = measureReadThroughput(scratchFile, PAGE_SIZES[i], true);
+
+                if (rowsPerSecond[i] > rowsPerSecond[bestIndex] * MIN_PAGE_SIZE_GAIN) {
+                    bestIndex = i;
+                }
+            }
+
+            throwIfCanceled(signal);
+            long withoutMemorySecurity = measureReadThroughput(scratchFile, PAGE_SIZES[bestIndex], false);
+            boolean keepMemorySecurity = withoutMemorySecurity < rowsPerSecond[bestIndex] * MIN_MEMORY_SECURITY_GAIN;
+
+            CipherProfile profile = new CipherProfile(kdfIterations, PAGE_SIZES[bestIndex], keepMemorySecurity);
+            Log.i(TAG, "Calibrated profile: " + profile + ", estimated unlock " + estimatedUnlockMillis + " ms");
+
+            return new Result(profile, estimatedUnlockMillis, PAGE_SIZES.clone(), rowsPerSecond, withoutMemorySecurity);
+
+        } finally {
+            deleteScratchDatabase(scratchFile);
+            restoreMemorySecurity(memorySecurity);
+        }
+    }
+
+    /**
+     * Times a short key derivation, the cost of PBKDF2 is linear in the number of iterations.
+     *
+     * @return The time of one iteration, in nanoseconds.
+     */
+    private static double measureNanosPerIteration() throws GeneralSecurityException {
+        byte[] salt = new byte[16];
+        new SecureRandom().nextBytes(salt);
+        char[] password = "calibration".toCharArray();
+
+        // The first run warms the Mac implementation up
+        KeyDerivation.pbkdf2HmacSha512(password, salt, SAMPLE_KDF_ITERATIONS / 10, 32);
+
+        long start = System.nanoTime();
+        KeyDerivation.pbkdf2HmacSha512(password, salt, SAMPLE_KDF_ITERATIONS, 32);
+        long elapsed = Math.max(1, System.nanoTime() - start);
+
+        Log.i(TAG, SAMPLE_KDF_ITERATIONS + " iterations in " + elapsed / 1000000 + " ms");
+        return (double) elapsed / SAMPLE_KDF_ITERATIONS;
+    }
+
+    /**
+     * Writes a sample table with the given page size and times a full scan of it through a fresh connection,
+     * the way the list and the search index read the vault.
+     *
+     * @return The number of rows read per second.
+     */
+    private static long measureReadThroughput(File scratchFile, int pageSize, boolean memorySecurity) {
+        deleteScratchDatabase(scratchFile);
+
+        // A raw key skips the key derivation, only the page encryption is measured
+        char[] key = randomRawKey();
+        SQLiteDatabaseHook hook = new CipherProfile(MIN_KDF_ITERATIONS, pageSize, memorySecurity).toHook();
+
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(scratchFile.getAbsolutePath(), key, null, hook);
+        try {
+            db.execSQL("CREATE TABLE sample (id INTEGER PRIMARY KEY, name TEXT, email TEXT, password TEXT)");
+            SQLiteStatement insert = db.compileStatement("INSERT INTO sample (name, email, password) VALUES (?, ?, ?)");
+
+            db.beginTransaction();
+            try {
+                for (int i = 0; i < SAMPLE_ROWS; i++) {
+                    insert.bindString(1, "Account name " + i);
+                    insert.bindString(2, "someone." + i + "@example.com");
+                    insert.bindString(3, "YWJjZGVmZ2hpamtsbW5vcHFyc3R1dnd4eXphYmNkZWZnaGlqa2xtbm9wcXJzdHV2d3h5emFiY2RlZmdoaWprbG1u" + i);
+                    insert.executeInsert();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                insert.close();
+            }
+        } finally {
+            db.close();
+        }
+
+        // Reopen so the scan starts from a cold page cache, as after unlock
+        db = SQLiteDatabase.openDatabase(scratchFile.getAbsolutePath(), key, null, SQLiteDatabase.OPEN_READONLY, hook);
+        try {
+            long start = System.nanoTime();
+            int rows = 0;
+
+            try (Cursor cursor = db.rawQuery("SELECT id, name, email, password FROM sample ORDER BY name", null)) {
+                while (cursor.moveToNext()) {
+                    cursor.getString(1);
+                    cursor.getString(2);
+                    cursor.getString(3);
+                    rows++;
+                }
+            }
+
+            long elapsed = Math.max(1, System.nanoTime() - start);
+            long rowsPerSecond = rows * 1000000000L / elapsed;
+            Log.i(TAG, "Page size " + pageSize + (memorySecurity ? "" : " without memory security") + ": " + rowsPerSecond + " rows/s");
+            return rowsPerSecond;
+        } finally {
+            db.close();
+            Arrays.fill(key, '\0');
+        }
+    }
+
+    private static void restoreMemorySecurity(boolean memorySecurity) {
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(":memory:", "", null);
+        db.rawExecSQL("PRAGMA cipher_memory_security = " + (memorySecurity ? "ON" : "OFF"));
+        db.close();
+    }
+
+    private static void deleteScratchDatabase(File scratchFile) {
+        scratchFile.delete();
+        new File(scratchFile.getPath() + "-journal").delete();
+    }
+
+    private static char[] randomRawKey() {
+        byte[] bytes = new byte[32];
+        new SecureRandom().nextBytes(bytes);
+
+        StringBuilder builder = new StringBuilder("x'");
+        for (byte b : bytes) {
+            builder.append(String.format("%02X", b));
+        }
+        return builder.append('\'').toString().toCharArray();
+    }
+
+    private static void throwIfCanceled(@Nullable CancellationSignal signal) {
+        if (signal != null) {
+            signal.throwIfCanceled();
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package com.gero.newpass.database;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Base64;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.gero.newpass.SharedPreferences.SharedPreferencesHelper;
+
+import net.sqlcipher.database.SQLiteDatabase;
+import net.sqlcipher.database.SQLiteDatabaseHook;
+
+import java.io.File;
+
+/**
+ * The SQLCipher settings the vault file is written with: key derivation iterations, page size and memory wiping.
+ * SQLCipher doesn't record them in the file, so the profile of a vault is stored in its own meta table and follows
+ * the file through a rekey, an import or a restore (see {@link DatabaseHelper}). It is needed before the file can be
+ * opened though, so the shared preferences keep a copy under the salt of the file: a file replacing the vault has
+ * a new salt and is never opened with the profile of the previous one. A file whose profile isn't known yet is
+ * opened with the defaults, which every export file and every vault created before profiles existed use.
+ * The profile is applied to every connection through a {@link SQLiteDatabaseHook}.
+ */
+public class CipherProfile {
+
+    // Followed by the salt of the database file, in Base64
+    private static final String PROFILE_FLAG_PREFIX = "cipher_profile_";
+    private static final String SEPARATOR = ":";
+
+    /**
+     * The SQLCipher 4 defaults, used by every vault created before profiles existed.
+     */
+    public static final CipherProfile DEFAULT = new CipherProfile(256000, 4096, true);
+
+    private final int kdfIterations;
+    private final int pageSize;
+    private final boolean memorySecurity;
+
+    public CipherProfile(int kdfIterations, int pageSize, boolean memorySecurity) {
+        this.kdfIterations = kdfIterations;
+        this.pageSize = pageSize;
+        this.memorySecurity = memorySecurity;
+    }
+
+    public int getKdfIterations() {
+        return kdfIterations;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public boolean isMemorySecurity() {
+        return memorySecurity;
+    }
+
+    /**
+     * Reads the profile of the vault.
+     *
+     * @param context The application context.
+     * @return The profile of the current vault file, or {@link #DEFAULT} if it isn't known.
+     */
+    public static CipherProfile load(Context context) {
+        return load(context, context.getDatabasePath(DatabaseHelper.DATABASE_NAME));
+    }
+
+    /**
+     * Reads the profile recorded for a database file.
+     *
+     * @param context      The application context.
+     * @param databaseFile The database file.
+     * @return The profile recorded for the salt of the file, or {@link #DEFAULT} if none has been.
+     */
+    static CipherProfile load(Context context, File databaseFile) {
+        String key = preferenceKey(databaseFile);
+        String encoded = key == null ? null : SharedPreferencesHelper.getSharedPreferences(context).getString(key, null);
+        CipherProfile profile = encoded == null ? null : decode(encoded);
+
+        return profile != null ? profile : DEFAULT;
+    }
+
+    /**
+     * Records this profile as the profile of a database file, so the file can be opened with it. Written
+     * synchronously and before the file replaces the vault: the vault can't be opened without its profile.
+     *
+     * @param context      The application context.
+     * @param databaseFile The database file, already written.
+     */
+    void save(Context context, File databaseFile) {
+        String key = preferenceKey(databaseFile);
+        SharedPreferences preferences = SharedPreferencesHelper.getSharedPreferences(context);
+
+        if (key == null || encode().equals(preferences.getString(key, null))) {
+            return;
+        }
+        preferences.edit().putString(key, encode()).commit();
+    }
+
+    /**
+     * Drops the profiles recorded for any file but the given one, e.g. the files replaced since.
+     *
+     * @param context      The application context.
+     * @param databaseFile The current database file.
+     */
+    static void forgetOtherFiles(Context context, File databaseFile) {
+        String key = preferenceKey(databaseFile);
+        SharedPreferences preferences = SharedPreferencesHelper.getSharedPreferences(context);
+        SharedPreferences.Editor editor = null;
+
+        for (String storedKey : preferences.getAll().keySet()) {
+            if (storedKey.startsWith(PROFILE_FLAG_PREFIX) && !storedKey.equals(key)) {
+                editor = editor == null ? preferences.edit() : editor;
+                editor.remove(storedKey);
+            }
+        }
+        if (editor != null) {
+            editor.apply();
+        }
+    }
+
+    @Nullable
+    private static String preferenceKey(File databaseFile) {
+        byte[] salt = DatabaseKeyHolder.readSalt(databaseFile);
+        return salt == null ? null : PROFILE_FLAG_PREFIX + Base64.encodeToString(salt, Base64.NO_WRAP);
+    }
+
+    /**
+     * @return The profile as stored in the meta table of the vault.
+     */
+    String encode() {
+        return kdfIterations + SEPARATOR + pageSize + SEPARATOR + memorySecurity;
+    }
+
+    /**
+     * @param encoded A profile written by {@link #encode}.
+     * @return The profile, or null if the value isn't a valid profile.
+     */
+    @Nullable
+    static CipherProfile decode(String encoded) {
+        String[] parts = encoded.split(SEPARATOR);
+
+        if (parts.length != 3) {
+            return null;
+        }
+
+        try {
+            return new CipherProfile(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), Boolean.parseBoolean(parts[2]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Applies the profile to a connection, before its first access to the given schema.
+     *
+     * @param db     The connection, already keyed.
+     * @param schema The schema to configure, "main" or the name of an attached database.
+     */
+    void applyTo(SQLiteDatabase db, String schema) {
+        db.rawExecSQL("PRAGMA " + schema + ".cipher_page_size = " + pageSize);
+        db.rawExecSQL("PRAGMA " + schema + ".kdf_iter = " + kdfIterations);
+        // Process wide setting, it is not bound to a schema
+        db.rawExecSQL("PRAGMA cipher_memory_security = " + (memorySecurity ? "ON" : "OFF"));
+    }
+
+    /**
+     * Returns a hook configuring every connection it opens with this profile.
+     */
+    SQLiteDatabaseHook toHook() {
+        return new SQLiteDatabaseHook() {
+            @Override
+            public void preKey(SQLiteDatabase database) {
+            }
+
+            @Override
+            public void postKey(SQLiteDatabase database) {
+                applyTo(database, "main");
+            }
+        };
+    }
+
+    /**
+     * Returns a hook configuring every connection with the profile stored at the time it is opened,
+     * so an helper created before a profile change opens the migrated file correctly.
+     *
+     * @param context The application context.
+     * @return The hook to pass when opening the vault.
+     */
+    static SQLiteDatabaseHook storedProfileHook(Context context) {
+        Context applicationContext = context.getApplicationContext();
+
+        return new SQLiteDatabaseHook() {
+            @Override
+            public void preKey(SQLiteDatabase database) {
+            }
+
+            @Override
+            public void postKey(SQLiteDatabase database) {
+                load(applicationContext).applyTo(database, "main");
+            }
+        };
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof CipherProfile)) {
+            return false;
+        }
+        CipherProfile other = (CipherProfile) o;
+        return kdfIterations == other.kdfIterations && pageSize == other.pageSize && memorySecurity == other.memorySecurity;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * kdfIterations + pageSize) + (memorySecurity ? 1 : 0);
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "kdf_iter=" + kdfIterations + ", cipher_page_size=" + pageSize + ", cipher_memory_security=" + memorySecurity;
+    }
+}
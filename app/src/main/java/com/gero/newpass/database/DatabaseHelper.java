@@ -1,6 +1,5 @@
 package com.gero.newpass.database;
 
-import android.annotation.SuppressLint;
 import android.app.Activity;
 import android.content.ContentValues;
 import android.content.Context;
@@ -9,134 +8,1055 @@ import android.database.Cursor;
 import net.sqlcipher.database.SQLiteDatabase;
 import net.sqlcipher.database.SQLiteException;
 import net.sqlcipher.database.SQLiteOpenHelper;
+import net.sqlcipher.database.SQLiteStatement;
 
 import android.net.Uri;
+import android.os.CancellationSignal;
+import android.util.Base64;
 import android.util.Log;
-import android.widget.Toast;
 
 import androidx.annotation.Nullable;
 import androidx.security.crypto.EncryptedSharedPreferences;
 
-import com.gero.newpass.R;
+import com.gero.newpass.backup.BackupRecord;
+import com.gero.newpass.backup.BackupScope;
+import com.gero.newpass.encryption.BulkDecryptor;
 import com.gero.newpass.encryption.EncryptionHelper;
-import com.gero.newpass.utilities.StringHelper;
+import com.gero.newpass.model.UserData;
+import com.gero.newpass.utilities.FileCopyHelper;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.Objects;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class DatabaseHelper extends SQLiteOpenHelper {
 
-    private static final String DATABASE_NAME = "Password.db";
-    private static final int DATABASE_VERSION = 1;
-    private static final String TABLE_NAME = "my_password_record";
-    private static final String COLUMN_ID = "id";
-    private static final String COLUMN_NAME = "record_name";
-    private static final String COLUMN_EMAIL = "record_email";
-    private static final String COLUMN_PASSWORD = "record_password";
-    private static final String KEY_ENCRYPTION = StringHelper.getSharedString();
+    static final String DATABASE_NAME = "Password.db";
+    private static final int DATABASE_VERSION = 4;
+    static final String TABLE_NAME = "my_password_record";
+    static final String COLUMN_ID = "id";
+    static final String COLUMN_NAME = "record_name";
+    static final String COLUMN_EMAIL = "record_email";
+    static final String COLUMN_PASSWORD = "record_password";
     private static final String IMPORTED_DATABASE_NAME = "Password_backup.db";
+    private static final String EXPORTED_DATABASE_NAME = "Password_export.db";
+    private static final String EXPORT_SCHEMA = "newpass_export";
+    private static final String PROFILE_DATABASE_NAME = "Password_profile.db";
+    private static final String PROFILE_SCHEMA = "newpass_profile";
+    private static final String REKEY_DATABASE_NAME = "Password_rekey.db";
+    private static final String REKEY_SCHEMA = "newpass_rekey";
+    // Encrypted preference holding the new password while the rekeyed file replaces the vault
+    private static final String PENDING_PASSWORD_FLAG = "pending_password";
+    private static final String SEARCH_TABLE_NAME = "record_search";
+    // Number of rows between two progress notifications of the bulk passes
+    private static final int PROGRESS_INTERVAL = 100;
+    // Delay between two polls of the size of a file written by sqlcipher_export
+    private static final long EXPORT_PROGRESS_INTERVAL_MILLIS = 200;
+    // Read-only connections next to the writer, one per reader thread of the repository
+    public static final int READ_CONNECTIONS = 2;
+    // Size of the write-ahead log above which it is checkpointed and truncated right after a write
+    private static final long WAL_CHECKPOINT_THRESHOLD = 1024 * 1024;
+    // Value of PRAGMA auto_vacuum under which free pages are only reclaimed on request
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+    // Keys of the vault_meta table tracking the backups written from this vault and the backups restored into it
+    private static final String META_BACKUP_CHAIN = "backup_chain";
+    private static final String META_BACKUP_SEQUENCE = "backup_sequence";
+    private static final String META_BACKUP_INCREMENTS = "backup_increments";
+    private static final String META_RESTORED_CHAIN = "restored_chain";
+    private static final String META_RESTORED_SEQUENCE = "restored_sequence";
+    // Set once every password stored as Base64 text has been converted to a BLOB
+    private static final String META_PASSWORD_FORMAT = "password_format";
+    private static final String PASSWORD_FORMAT_BLOB = "blob";
+    // The data key encrypting the passwords, wrapped by the Keystore key, and the flag set once no password
+    // is encrypted with the Keystore key directly anymore
+    private static final String META_DATA_KEY = "data_key";
+    private static final String META_PASSWORD_KEY = "password_key";
+    private static final String META_CIPHER_PROFILE = "cipher_profile";
+    private static final String PASSWORD_KEY_DATA_KEY = "data_key";
+
+    private final Context context;
+    private final File databaseFile;
+    private final ReadConnectionPool readConnections;
+    // Held shared while the connections are in use, exclusively while they are closed or the vault file is replaced.
+    // Fair, so a waiting swap holds back the uses arriving after it
+    private final ReentrantReadWriteLock fileLock = new ReentrantReadWriteLock(true);
+    // The connection of the helper, kept to checkpoint it only while it is open
+    private SQLiteDatabase writer;
 
     public DatabaseHelper(@Nullable Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        super(context, DATABASE_NAME, null, DATABASE_VERSION, CipherProfile.storedProfileHook(context));
         assert context != null;
         SQLiteDatabase.loadLibs(context);
+        this.context = context.getApplicationContext();
+        databaseFile = context.getDatabasePath(DATABASE_NAME);
+        readConnections = new ReadConnectionPool(READ_CONNECTIONS, this::openReadConnection);
+        recoverCipherProfileMigration(context);
+        recoverPasswordChange(context);
     }
 
+    /**
+     * Creates the version 1 schema and brings it to the current version through the same migrations
+     * an existing vault goes through.
+     */
     @Override
     public void onCreate(SQLiteDatabase db) {
-        String query =
-                "CREATE TABLE " + TABLE_NAME +
-                        " (" + COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
-                        COLUMN_NAME + " TEXT, " +
-                        COLUMN_EMAIL + " TEXT, " +
-                        COLUMN_PASSWORD + " TEXT);";
+        db.execSQL(createTableQuery(""));
+        createSearchIndex(db);
+        DatabaseMigrations.migrate(db, DatabaseMigrations.BASE_VERSION, DATABASE_VERSION);
+    }
+
+
+
+    /**
+     * Builds the statement creating the password table.
+     *
+     * @param schemaPrefix The schema in which to create the table followed by a dot (e.g. "export."), or an empty string for the main one.
+     * @return The CREATE TABLE statement.
+     */
+    private static String createTableQuery(String schemaPrefix) {
+        return "CREATE TABLE " + schemaPrefix + TABLE_NAME +
+                " (" + COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                COLUMN_NAME + " TEXT, " +
+                COLUMN_EMAIL + " TEXT, " +
+                COLUMN_PASSWORD + " TEXT);";
+    }
+
+    /**
+     * Applies the migrations between the two versions. The vault is never dropped: if a step fails
+     * the whole upgrade is rolled back and the database stays at its previous version.
+     */
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        DatabaseMigrations.migrate(db, oldVersion, newVersion);
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+
+        if (!db.isReadOnly()) {
+            // Persistent in the file: readers don't block the writer and the writer doesn't block readers
+            db.rawExecSQL("PRAGMA journal_mode = WAL");
+            writer = db;
+        }
+
+        // Databases created (or imported) before the search index existed are back-filled once
+        if (!db.isReadOnly() && !hasSearchIndex(db)) {
+            db.beginTransaction();
+            try {
+                createSearchIndex(db);
+                db.execSQL("INSERT INTO " + SEARCH_TABLE_NAME + "(" + SEARCH_TABLE_NAME + ") VALUES('rebuild')");
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+
+        if (!db.isReadOnly()) {
+            loadDataKey(db);
+            recordCipherProfile(db);
+        }
+    }
+
+
+
+    /**
+     * Creates the full-text index over the name and email columns, together with the triggers keeping it in sync.
+     * The index is an external content FTS4 table: it only stores the tokens, the text stays in the password table.
+     *
+     * @param db The database in which to create the index.
+     */
+    private static void createSearchIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS " + SEARCH_TABLE_NAME +
+                " USING fts4(content=\"" + TABLE_NAME + "\", " + COLUMN_NAME + ", " + COLUMN_EMAIL + ")");
+
+        String indexedColumns = COLUMN_NAME + ", " + COLUMN_EMAIL;
+        String removeOld = " BEGIN DELETE FROM " + SEARCH_TABLE_NAME + " WHERE docid = old." + COLUMN_ID + "; END";
+        String insertNew = " BEGIN INSERT INTO " + SEARCH_TABLE_NAME + "(docid, " + indexedColumns + ")" +
+                " VALUES (new." + COLUMN_ID + ", new." + COLUMN_NAME + ", new." + COLUMN_EMAIL + "); END";
+
+        // Only name and email are indexed, so rewriting passwords doesn't touch the index
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + SEARCH_TABLE_NAME + "_before_update" +
+                " BEFORE UPDATE OF " + indexedColumns + " ON " + TABLE_NAME + removeOld);
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + SEARCH_TABLE_NAME + "_before_delete" +
+                " BEFORE DELETE ON " + TABLE_NAME + removeOld);
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + SEARCH_TABLE_NAME + "_after_update" +
+                " AFTER UPDATE OF " + indexedColumns + " ON " + TABLE_NAME + insertNew);
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + SEARCH_TABLE_NAME + "_after_insert" +
+                " AFTER INSERT ON " + TABLE_NAME + insertNew);
+    }
+
+
+
+    /**
+     * Checks whether the full-text index has already been created in the given database.
+     *
+     * @param db The database to check.
+     * @return True if the index table exists.
+     */
+    private static boolean hasSearchIndex(SQLiteDatabase db) {
+        try (Cursor cursor = db.rawQuery("SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = ?", new String[]{SEARCH_TABLE_NAME})) {
+            return cursor.moveToFirst();
+        }
+    }
+
+
+
+    /**
+     * Installs the data key of the given vault, creating it the first time. The key is only unwrapped once per
+     * session: opening the same vault again finds it installed. A new key is stored before it is installed, so no
+     * password is ever encrypted with a key the vault doesn't hold. If the key can't be unwrapped or created the
+     * open fails, rather than letting the passwords be written with another key than the one of the vault.
+     *
+     * @param db A read-write connection on the vault.
+     * @throws SQLiteException If the data key can't be read or stored.
+     * @throws IllegalStateException If the Keystore fails, or the stored data key is corrupt.
+     */
+    private static void loadDataKey(SQLiteDatabase db) {
+        // A vault imported from an export is only migrated once the helper opens it
+        DatabaseMigrations.createMetaTable(db);
+
+        try {
+            String wrappedKey = readMeta(db, META_DATA_KEY);
+
+            if (wrappedKey == null) {
+                wrappedKey = Base64.encodeToString(EncryptionHelper.newWrappedDataKey(), Base64.NO_WRAP);
+                writeMeta(db, META_DATA_KEY, wrappedKey);
+                Log.i("32890457", "Data key created");
+            }
+            EncryptionHelper.installDataKey(Base64.decode(wrappedKey, Base64.NO_WRAP));
+
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            // The previous vault may have left its key installed
+            EncryptionHelper.clearDataKey();
+            throw new IllegalStateException("Could not load the data key", e);
+        }
+    }
+
+
+
+    /**
+     * Makes the profile stored in the vault and the copy the vault is opened with agree, once the file is open.
+     * The profile stored in the vault wins, a vault that doesn't store its profile yet stores the one it has just
+     * been opened with.
+     *
+     * @param db A read-write connection on the vault.
+     * @throws SQLiteException If the profile can't be read or stored.
+     */
+    private void recordCipherProfile(SQLiteDatabase db) {
+        String stored = readMeta(db, META_CIPHER_PROFILE);
+        CipherProfile profile = stored == null ? null : CipherProfile.decode(stored);
+
+        if (profile == null) {
+            profile = CipherProfile.load(context, databaseFile);
+            writeMeta(db, META_CIPHER_PROFILE, profile.encode());
+        }
+        profile.save(context, databaseFile);
+        CipherProfile.forgetOtherFiles(context, databaseFile);
+    }
+
+
+
+    /**
+     * Returns the connection of this helper, opening it with the session key the first time.
+     * The reads made on the write thread also go through it rather than the read pool, so they see the last write
+     * and no other write can change the vault under them.
+     *
+     * @throws IllegalStateException If the vault is locked.
+     * @throws SQLiteException If the database can't be opened.
+     */
+    private SQLiteDatabase openWritableDatabase() {
+        checkFileAvailable();
+        char[] key = DatabaseKeyHolder.getKey(databaseFile, CipherProfile.load(context).getKdfIterations());
+
+        try {
+            return getWritableDatabase(key);
+        } finally {
+            Arrays.fill(key, '\0');
+        }
+    }
+
+    /**
+     * Returns a read-only connection from the pool. The writer is opened first, so the database
+     * has been created, migrated and switched to WAL before any reader looks at it.
+     */
+    private SQLiteDatabase openReadableDatabase() {
+        openWritableDatabase();
+        return readConnections.acquire();
+    }
+
+    private SQLiteDatabase openReadConnection() {
+        checkFileAvailable();
+        char[] key = DatabaseKeyHolder.getKey(databaseFile, CipherProfile.load(context).getKdfIterations());
+
+        try {
+            return SQLiteDatabase.openDatabase(databaseFile.getAbsolutePath(), key, null, SQLiteDatabase.OPEN_READONLY,
+                    CipherProfile.storedProfileHook(context));
+        } finally {
+            Arrays.fill(key, '\0');
+        }
+    }
+
+
+
+    /**
+     * Keeps a connection from being opened on a vault file about to be replaced.
+     *
+     * @throws IllegalStateException If another thread is replacing the vault file.
+     */
+    private void checkFileAvailable() {
+        if (fileLock.isWriteLocked() && !fileLock.isWriteLockedByCurrentThread()) {
+            throw new IllegalStateException("The vault file is being replaced");
+        }
+    }
+
+
+
+    /**
+     * Starts a use of the connections from a thread other than the one writing. While a use is in progress the
+     * connections are neither closed nor replaced, and no use starts while they are: the thread waits instead.
+     * Must be followed by {@link #endUse()} once the cursors read during the use are closed.
+     */
+    public void beginUse() {
+        fileLock.readLock().lock();
+    }
+
+    /**
+     * Ends a use started by {@link #beginUse()}.
+     */
+    public void endUse() {
+        fileLock.readLock().unlock();
+    }
+
+
+
+    /**
+     * Closes the connections and runs an operation replacing the vault file, e.g. an import or a password change.
+     * The uses in progress end first, and until the operation returns no use starts and no connection is opened,
+     * so nothing stays bound to the replaced file. The next use reopens the connections on the new file.
+     *
+     * @param swap The operation replacing the file.
+     * @throws IOException If the operation fails.
+     */
+    public void replaceFile(FileSwap swap) throws IOException {
+        fileLock.writeLock().lock();
+        try {
+            close();
+            swap.run();
+        } finally {
+            fileLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * An operation replacing the vault file, run by {@link #replaceFile}.
+     */
+    public interface FileSwap {
+        void run() throws IOException;
+    }
+
+
+
+    /**
+     * Closes the readers together with the writer, once the uses in progress have ended.
+     */
+    @Override
+    public void close() {
+        // Taken before the monitor: a use in progress may be waiting for it to open a connection
+        fileLock.writeLock().lock();
+        try {
+            synchronized (this) {
+                readConnections.closeAll();
+                super.close();
+                writer = null;
+            }
+        } finally {
+            fileLock.writeLock().unlock();
+        }
+    }
+
+
+
+    /**
+     * Checkpoints the write-ahead log into the database and truncates it if it grew past the threshold.
+     * Called after every write, so a burst of saves never leaves a large log for the readers to go through.
+     */
+    public void checkpointIfNeeded() {
+        if (new File(databaseFile.getPath() + "-wal").length() > WAL_CHECKPOINT_THRESHOLD) {
+            checkpoint();
+        }
+    }
+
+
+
+    /**
+     * Checkpoints the write-ahead log into the database and truncates it, if the vault is open.
+     * Readers still using the log make it a partial checkpoint, completed by the next one.
+     */
+    public synchronized void checkpoint() {
+        if (writer != null && writer.isOpen()) {
+            writer.rawExecSQL("PRAGMA wal_checkpoint(TRUNCATE)");
+        }
+    }
+
+
+
+    /**
+     * @return True if the vault has been opened by this helper since it was last closed.
+     */
+    public synchronized boolean isOpen() {
+        return writer != null && writer.isOpen();
+    }
+
+
+
+    /**
+     * Measures the database file and its free pages.
+     *
+     * @return The current size of the vault and the space a compaction would reclaim.
+     * @throws SQLiteException If there's an error accessing the database.
+     */
+    public StorageStats readStorageStats() {
+        SQLiteDatabase db = openWritableDatabase();
+
+        return new StorageStats(databaseFile.length(), new File(databaseFile.getPath() + "-wal").length(),
+                longForQuery(db, "PRAGMA page_size"), longForQuery(db, "PRAGMA page_count"), longForQuery(db, "PRAGMA freelist_count"));
+    }
+
+
+
+    /**
+     * Rewrites the whole vault defragmented with VACUUM and switches it to incremental auto-vacuum,
+     * then checkpoints so the file actually shrinks.
+     *
+     * @throws SQLiteException If there's an error accessing the database, or a transaction is open.
+     */
+    public synchronized void compact() {
+        SQLiteDatabase db = openWritableDatabase();
+
+        // Only takes effect on an existing database through the VACUUM that follows
+        db.rawExecSQL("PRAGMA auto_vacuum = " + AUTO_VACUUM_INCREMENTAL);
+        db.rawExecSQL("VACUUM");
+        checkpoint();
+    }
+
+
+
+    /**
+     * Gives the free pages of the vault back to the storage with an incremental vacuum, which moves them
+     * to the end of the file and truncates them without rewriting the rest, then checkpoints.
+     * Only possible once {@link #compact} switched the vault to incremental auto-vacuum.
+     *
+     * @return False if the vault isn't in incremental auto-vacuum mode, nothing is done in that case.
+     * @throws SQLiteException If there's an error accessing the database, or a transaction is open.
+     */
+    public synchronized boolean vacuumIncrementally() {
+        SQLiteDatabase db = openWritableDatabase();
+
+        if (longForQuery(db, "PRAGMA auto_vacuum") != AUTO_VACUUM_INCREMENTAL) {
+            return false;
+        }
+        db.rawExecSQL("PRAGMA incremental_vacuum");
+        checkpoint();
+        return true;
+    }
+
+
+
+    /**
+     * Opens a new connection on the vault with the session key, for the operations that run outside of the helper.
+     *
+     * @param context The application context.
+     * @return A read-write connection, to be closed by the caller.
+     * @throws IllegalStateException If the vault is locked.
+     * @throws SQLiteException If the database can't be opened.
+     */
+    private static SQLiteDatabase openVault(Context context) {
+        SQLiteDatabase.loadLibs(context);
+
+        File file = context.getDatabasePath(DATABASE_NAME);
+        char[] key = DatabaseKeyHolder.getKey(file, CipherProfile.load(context).getKdfIterations());
+
+        SQLiteDatabase db;
+
+        try {
+            db = SQLiteDatabase.openDatabase(file.getAbsolutePath(), key, null, SQLiteDatabase.OPEN_READWRITE,
+                    CipherProfile.storedProfileHook(context));
+        } finally {
+            Arrays.fill(key, '\0');
+        }
+
+        try {
+            // The file may have been replaced since the helper opened it, e.g. by an import
+            loadDataKey(db);
+        } catch (RuntimeException e) {
+            db.close();
+            throw e;
+        }
+        return db;
+    }
+
+
+
+    /**
+     * Adds a new entry with the given name, email, and password to the database.
+     *
+     * @param name      The name of the entry.
+     * @param email     The email of the entry.
+     * @param password  The password of the entry (it will be encrypted before being inserted into the database)
+     * @return The ID of the new row, or -1 if an error occurred.
+     */
+    public long addEntry(String name, String email, String password) {
+        SQLiteDatabase db = openWritableDatabase();
+        ContentValues cv = new ContentValues();
+
+        byte[] encryptedPassword = EncryptionHelper.encryptToBytes(password);
+
+        cv.put(COLUMN_NAME, name);
+        cv.put(COLUMN_EMAIL, email);
+        cv.put(COLUMN_PASSWORD, encryptedPassword);
+
+        return db.insert(TABLE_NAME, null, cv);
+    }
+
+
+
+    /**
+     * Adds a batch of entries. The passwords are encrypted first, then every entry is looked up by name and email
+     * through the index on them and inserted, both through compiled statements inside a single transaction, so an
+     * entry also counts as a duplicate of one added earlier in the batch. An entry that can't be added doesn't prevent
+     * the others from being added.
+     *
+     * @param entries  The entries to add, their ids are ignored and their passwords are in plain text.
+     * @param listener Receives the number of entries processed so far, may be null.
+     * @return The outcome of every entry, in the order of the list.
+     * @throws SQLiteException If the transaction can't be committed. Nothing is added in that case.
+     */
+    public BatchInsertResult addEntries(List<UserData> entries, @Nullable ProgressListener listener) {
+        BatchInsertResult result = new BatchInsertResult(entries.size());
+        byte[][] encryptedPasswords = new byte[entries.size()][];
+        // Opened first, so the passwords are encrypted with the data key of the vault
+        SQLiteDatabase db = openWritableDatabase();
+
+        // Keep the encryption out of the transaction
+        for (int i = 0; i < entries.size(); i++) {
+            String password = entries.get(i).getPassword();
+            encryptedPasswords[i] = password == null ? null : EncryptionHelper.encryptToBytes(password);
+        }
+
+        SQLiteStatement exists = db.compileStatement("SELECT EXISTS (SELECT 1 FROM " + TABLE_NAME +
+                " WHERE " + COLUMN_NAME + " IS ? AND " + COLUMN_EMAIL + " IS ?)");
+        SQLiteStatement insert = db.compileStatement("INSERT INTO " + TABLE_NAME +
+                " (" + COLUMN_NAME + ", " + COLUMN_EMAIL + ", " + COLUMN_PASSWORD + ") VALUES (?, ?, ?)");
+
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < entries.size(); i++) {
+                UserData entry = entries.get(i);
+
+                if (entry.getPassword() != null && encryptedPasswords[i] == null) {
+                    result.set(i, BatchInsertResult.Status.FAILED, -1);
+                } else if (accountExists(exists, entry.getName(), entry.getEmail())) {
+                    result.set(i, BatchInsertResult.Status.DUPLICATE, -1);
+                } else {
+                    bindStringOrNull(insert, 1, entry.getName());
+                    bindStringOrNull(insert, 2, entry.getEmail());
+                    bindBlobOrNull(insert, 3, encryptedPasswords[i]);
+
+                    try {
+                        long rowId = insert.executeInsert();
+                        result.set(i, rowId == -1 ? BatchInsertResult.Status.FAILED : BatchInsertResult.Status.ADDED, rowId);
+                    } catch (SQLiteException e) {
+                        Log.e("32890457", "Could not insert entry " + i + " of the batch", e);
+                        result.set(i, BatchInsertResult.Status.FAILED, -1);
+                    }
+                }
+
+                if (listener != null && ((i + 1) % PROGRESS_INTERVAL == 0 || i + 1 == entries.size())) {
+                    listener.onProgress(i + 1, entries.size());
+                }
+            }
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            exists.close();
+            insert.close();
+        }
+        return result;
+    }
+
+    private static boolean accountExists(SQLiteStatement exists, String name, String email) {
+        bindStringOrNull(exists, 1, name);
+        bindStringOrNull(exists, 2, email);
+        return exists.simpleQueryForLong() != 0;
+    }
+
+
+
+    /**
+     * Decides what the next backup covers: the changes since the last backup of the current chain, or a full backup
+     * starting a new chain when there is no chain yet, when the chain already holds the given number of incremental
+     * backups, or when so many entries changed that a full backup wouldn't be much larger.
+     *
+     * @param incremental   Whether an incremental backup is wanted.
+     * @param maxIncrements The number of incremental backups after which the chain is consolidated into a full one.
+     * @return The scope to pass to {@link #readBackupRecords} and then to {@link #commitBackup}.
+     * @throws SQLiteException If there's an error accessing the database.
+     */
+    public BackupScope nextBackupScope(boolean incremental, int maxIncrements) {
+        SQLiteDatabase db = openWritableDatabase();
+        long sequence = currentChangeSequence(db);
+        String chainId = readMeta(db, META_BACKUP_CHAIN);
+
+        if (incremental && chainId != null) {
+            long baseSequence = Long.parseLong(readMeta(db, META_BACKUP_SEQUENCE));
+            int increments = Integer.parseInt(readMeta(db, META_BACKUP_INCREMENTS));
+            long changedEntries = longForQuery(db, "SELECT COUNT(DISTINCT record_id) FROM " + DatabaseMigrations.CHANGE_LOG_TABLE +
+                    " WHERE seq > ?", String.valueOf(baseSequence));
+            long entries = longForQuery(db, "SELECT COUNT(*) FROM " + TABLE_NAME);
+
+            if (increments < maxIncrements && changedEntries * 2 <= entries) {
+                return BackupScope.incremental(chainId, baseSequence, sequence);
+            }
+        }
+        return BackupScope.full(sequence);
+    }
+
+
+
+    /**
+     * Reads the entries covered by a backup, ordered by id, with their encrypted passwords.
+     * For an incremental backup every entry changed since the base sequence appears once with its current values,
+     * or flagged as deleted if it doesn't exist anymore.
+     *
+     * @param scope The scope returned by {@link #nextBackupScope}.
+     * @return A cursor over the id, name, email, encrypted password and deleted flag columns.
+     * @throws SQLiteException If there's an error accessing the database.
+     */
+    public Cursor readBackupRecords(BackupScope scope) {
+        SQLiteDatabase db = openWritableDatabase();
+
+        if (!scope.incremental) {
+            return db.rawQuery("SELECT " + COLUMN_ID + ", " + COLUMN_NAME + ", " + COLUMN_EMAIL + ", " + COLUMN_PASSWORD + ", 0" +
+                    " FROM " + TABLE_NAME + " ORDER BY " + COLUMN_ID, null);
+        }
+
+        return db.rawQuery("SELECT changed.record_id, entry." + COLUMN_NAME + ", entry." + COLUMN_EMAIL + ", entry." + COLUMN_PASSWORD +
+                        ", entry." + COLUMN_ID + " IS NULL" +
+                        " FROM (SELECT DISTINCT record_id FROM " + DatabaseMigrations.CHANGE_LOG_TABLE + " WHERE seq > ? AND seq <= ?) AS changed" +
+                        " LEFT JOIN " + TABLE_NAME + " AS entry ON entry." + COLUMN_ID + " = changed.record_id" +
+                        " ORDER BY changed.record_id",
+                new String[]{String.valueOf(scope.baseSequence), String.valueOf(scope.sequence)});
+    }
+
+
+
+    /**
+     * Records that a backup has been written: the next incremental backup starts after its sequence number,
+     * and the changes it covers are dropped from the log.
+     *
+     * @param scope The scope of the backup written.
+     * @throws SQLiteException If there's an error accessing the database.
+     */
+    public void commitBackup(BackupScope scope) {
+        SQLiteDatabase db = openWritableDatabase();
+
+        db.beginTransaction();
+        try {
+            int increments = scope.incremental ? Integer.parseInt(readMeta(db, META_BACKUP_INCREMENTS)) + 1 : 0;
+
+            writeMeta(db, META_BACKUP_CHAIN, scope.chainId);
+            writeMeta(db, META_BACKUP_SEQUENCE, String.valueOf(scope.sequence));
+            writeMeta(db, META_BACKUP_INCREMENTS, String.valueOf(increments));
+            db.execSQL("DELETE FROM " + DatabaseMigrations.CHANGE_LOG_TABLE + " WHERE seq <= ?", new Object[]{scope.sequence});
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+
+
+    /**
+     * Checks that a backup can be applied to the vault. A full backup always can; an incremental one only on top of
+     * its own chain, restored up to a sequence number between the base and the end of the backup, so no change is missed
+     * and no newer change is overwritten by an older one.
+     *
+     * @param scope The scope of the backup to restore.
+     * @return True if the backup can be restored.
+     * @throws SQLiteException If there's an error accessing the database.
+     */
+    public boolean canRestore(BackupScope scope) {
+        if (!scope.incremental) {
+            return true;
+        }
+
+        SQLiteDatabase db = openWritableDatabase();
+        String restoredChain = readMeta(db, META_RESTORED_CHAIN);
+
+        if (!scope.chainId.equals(restoredChain)) {
+            return false;
+        }
+
+        long restoredSequence = Long.parseLong(readMeta(db, META_RESTORED_SEQUENCE));
+        return scope.baseSequence <= restoredSequence && restoredSequence <= scope.sequence;
+    }
+
+
+
+    /**
+     * Records that a backup has been fully restored, so that the following incremental backups of its chain can be applied.
+     * After a full restore the local change log no longer matches any backup of this vault, so the next backup is a full one.
+     *
+     * @param scope The scope of the backup restored.
+     * @throws SQLiteException If there's an error accessing the database.
+     */
+    public void commitRestore(BackupScope scope) {
+        SQLiteDatabase db = openWritableDatabase();
+
+        db.beginTransaction();
+        try {
+            writeMeta(db, META_RESTORED_CHAIN, scope.chainId);
+            writeMeta(db, META_RESTORED_SEQUENCE, scope.chainId == null ? null : String.valueOf(scope.sequence));
+
+            if (!scope.incremental) {
+                writeMeta(db, META_BACKUP_CHAIN, null);
+                writeMeta(db, META_BACKUP_SEQUENCE, null);
+                writeMeta(db, META_BACKUP_INCREMENTS, null);
+                db.execSQL("DELETE FROM " + DatabaseMigrations.CHANGE_LOG_TABLE);
+            }
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+
+
+    /**
+     * Shrinks the change log, which otherwise only shrinks when a backup is written. Without a backup chain the next
+     * backup is a full one, so the log is emptied; within a chain only the last change of every entry is kept,
+     * since an incremental backup only reads which entries changed. Must run on the write thread between two writes,
+     * once the {@link InvalidationTracker} has read the changes.
+     *
+     * @throws SQLiteException If there's an error accessing the database.
+     */
+    public void pruneChanges() {
+        SQLiteDatabase db = openWritableDatabase();
+
+        if (readMeta(db, META_BACKUP_CHAIN) == null) {
+            db.execSQL("DELETE FROM " + DatabaseMigrations.CHANGE_LOG_TABLE);
+        } else {
+            db.execSQL("DELETE FROM " + DatabaseMigrations.CHANGE_LOG_TABLE + " WHERE seq NOT IN" +
+                    " (SELECT MAX(seq) FROM " + DatabaseMigrations.CHANGE_LOG_TABLE + " GROUP BY record_id)");
+        }
+    }
+
+    /**
+     * @return The sequence number of the last change ever logged, it keeps growing when the log is pruned.
+     */
+    private static long currentChangeSequence(SQLiteDatabase db) {
+        return longForQuery(db, "SELECT seq FROM sqlite_sequence WHERE name = ?", DatabaseMigrations.CHANGE_LOG_TABLE);
+    }
+
+    private static long longForQuery(SQLiteDatabase db, String query, String... args) {
+        try (Cursor cursor = db.rawQuery(query, args)) {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        }
+    }
+
+    @Nullable
+    private static String readMeta(SQLiteDatabase db, String key) {
+        try (Cursor cursor = db.rawQuery("SELECT value FROM " + DatabaseMigrations.META_TABLE + " WHERE key = ?", new String[]{key})) {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        }
+    }
 
-        db.execSQL(query);
+    private static void writeMeta(SQLiteDatabase db, String key, @Nullable String value) {
+        if (value == null) {
+            db.execSQL("DELETE FROM " + DatabaseMigrations.META_TABLE + " WHERE key = ?", new Object[]{key});
+        } else {
+            db.execSQL("INSERT OR REPLACE INTO " + DatabaseMigrations.META_TABLE + " (key, value) VALUES (?, ?)", new Object[]{key, value});
+        }
     }
 
-    @Override
-    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        db.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME);
-        onCreate(db);
+
+
+    /**
+     * Applies the records of one backup chunk in a single transaction, keeping the ids of the backup.
+     * An upsert updates the entry with the same id, or inserts it under that id if there is none, and a delete
+     * removes it: plain statements, so the change log and the search index follow every change. An entry is restored
+     * even if another entry already has the same name and email, as in the vault it was backed up from, and it is
+     * reported instead. The passwords are encrypted first.
+     *
+     * @param records  The records of the chunk, with their passwords in plain text.
+     * @param clearAll Whether to delete every entry of the vault first, when applying the first chunk of a full backup.
+     * @return The ids of the restored entries whose name and email were already used by another entry.
+     * @throws SQLiteException If the transaction can't be committed. Nothing is applied in that case.
+     * @throws IllegalStateException If a password can't be encrypted.
+     */
+    public List<Long> applyBackupRecords(List<BackupRecord> records, boolean clearAll) {
+        byte[][] encryptedPasswords = new byte[records.size()][];
+        // Opened first, so the passwords are encrypted with the data key of the vault
+        SQLiteDatabase db = openWritableDatabase();
+
+        for (int i = 0; i < records.size(); i++) {
+            String password = records.get(i).password;
+
+            if (records.get(i).op == BackupRecord.OP_UPSERT && password != null) {
+                encryptedPasswords[i] = EncryptionHelper.encryptToBytes(password);
+
+                if (encryptedPasswords[i] == null) {
+                    throw new IllegalStateException("Could not encrypt the password of entry " + records.get(i).id);
+                }
+            }
+        }
+
+        SQLiteStatement update = db.compileStatement("UPDATE " + TABLE_NAME + " SET " + COLUMN_NAME + " = ?, " +
+                COLUMN_EMAIL + " = ?, " + COLUMN_PASSWORD + " = ? WHERE " + COLUMN_ID + " = ?");
+        SQLiteStatement insert = db.compileStatement("INSERT INTO " + TABLE_NAME +
+                " (" + COLUMN_NAME + ", " + COLUMN_EMAIL + ", " + COLUMN_PASSWORD + ", " + COLUMN_ID + ") VALUES (?, ?, ?, ?)");
+        SQLiteStatement delete = db.compileStatement("DELETE FROM " + TABLE_NAME + " WHERE " + COLUMN_ID + " = ?");
+        SQLiteStatement countDuplicates = db.compileStatement("SELECT COUNT(*) FROM " + TABLE_NAME +
+                " WHERE " + COLUMN_NAME + " IS ? AND " + COLUMN_EMAIL + " IS ? AND " + COLUMN_ID + " != ?");
+        List<Long> duplicates = new ArrayList<>();
+
+        db.beginTransaction();
+        try {
+            if (clearAll) {
+                db.execSQL("DELETE FROM " + TABLE_NAME);
+            }
+
+            for (int i = 0; i < records.size(); i++) {
+                BackupRecord record = records.get(i);
+
+                if (record.op == BackupRecord.OP_DELETE) {
+                    delete.bindLong(1, record.id);
+                    delete.executeUpdateDelete();
+                    continue;
+                }
+
+                bindRecord(update, record, encryptedPasswords[i]);
+                if (update.executeUpdateDelete() == 0) {
+                    bindRecord(insert, record, encryptedPasswords[i]);
+                    insert.executeInsert();
+                }
+
+                bindStringOrNull(countDuplicates, 1, record.name);
+                bindStringOrNull(countDuplicates, 2, record.email);
+                countDuplicates.bindLong(3, record.id);
+                if (countDuplicates.simpleQueryForLong() > 0) {
+                    duplicates.add(record.id);
+                }
+            }
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            update.close();
+            insert.close();
+            delete.close();
+            countDuplicates.close();
+        }
+        return duplicates;
+    }
+
+    // The name, email and password of the record, then its id
+    private static void bindRecord(SQLiteStatement statement, BackupRecord record, @Nullable byte[] encryptedPassword) {
+        bindStringOrNull(statement, 1, record.name);
+        bindStringOrNull(statement, 2, record.email);
+        bindBlobOrNull(statement, 3, encryptedPassword);
+        statement.bindLong(4, record.id);
     }
 
 
 
     /**
-     * Adds a new entry with the given name, email, and password to the database.
+     * Reads one page of entries ordered by name, then id, without the password column.
+     * Pages are addressed by keyset: the next page starts right after the name and id of the last row
+     * of the previous one, so reading deep pages costs the same as reading the first.
      *
-     * @param name      The name of the entry.
-     * @param email     The email of the entry.
-     * @param password  The password of the entry (it will be encrypted before being inserted into the database)
+     * @param afterName The name of the last row of the previous page, or null to read the first page.
+     * @param afterId   The id of the last row of the previous page, ignored when afterName is null.
+     * @param pageSize  The maximum number of rows to read.
+     * @return A Cursor over the id, name and email columns of the page.
+     * @throws SQLiteException If there's an error accessing the database.
      */
-    public void addEntry(String name, String email, String password) {
-        SQLiteDatabase db = this.getWritableDatabase(KEY_ENCRYPTION);
-        ContentValues cv = new ContentValues();
+    public Cursor readPage(@Nullable String afterName, long afterId, int pageSize) {
+        SQLiteDatabase db = openReadableDatabase();
+        String columns = "SELECT " + COLUMN_ID + ", " + COLUMN_NAME + ", " + COLUMN_EMAIL + " FROM " + TABLE_NAME;
+        String order = " ORDER BY " + COLUMN_NAME + " COLLATE NOCASE, " + COLUMN_ID + " LIMIT " + pageSize;
 
-        String encryptedPassword = EncryptionHelper.encrypt(password);
+        if (afterName == null) {
+            return db.rawQuery(columns + order, null);
+        }
 
-        cv.put(COLUMN_NAME, name);
-        cv.put(COLUMN_EMAIL, email);
-        cv.put(COLUMN_PASSWORD, encryptedPassword);
+        String keyset = " WHERE " + COLUMN_NAME + " > ? COLLATE NOCASE" +
+                " OR (" + COLUMN_NAME + " = ? COLLATE NOCASE AND " + COLUMN_ID + " > ?)";
+
+        return db.rawQuery(columns + keyset + order, new String[]{afterName, afterName, String.valueOf(afterId)});
+    }
+
+
+
+    /**
+     * Reads the id, name and email of every entry, ordered by name. Used to build the in-memory search index.
+     *
+     * @return A Cursor over the id, name and email columns of the whole table.
+     * @throws SQLiteException If there's an error accessing the database.
+     */
+    public Cursor readNamesAndEmails() {
+        SQLiteDatabase db = openReadableDatabase();
+        return db.rawQuery("SELECT " + COLUMN_ID + ", " + COLUMN_NAME + ", " + COLUMN_EMAIL + " FROM " + TABLE_NAME +
+                " ORDER BY " + COLUMN_NAME + " COLLATE NOCASE, " + COLUMN_ID, null);
+    }
+
+
+
+    /**
+     * Reads and decrypts the password of a single entry.
+     *
+     * @param rowId The ID of the entry to read.
+     * @return The plain text password, to be zeroed by the caller, or null if no entry has the given ID
+     * or its password can't be decrypted.
+     * @throws SQLiteException If there's an error accessing the database.
+     */
+    @Nullable
+    public char[] readPassword(String rowId) {
+        SQLiteDatabase db = openReadableDatabase();
+        byte[] encryptedPassword;
+
+        try (Cursor cursor = db.rawQuery("SELECT " + COLUMN_PASSWORD + " FROM " + TABLE_NAME + " WHERE " + COLUMN_ID + " = ?", new String[]{rowId})) {
+            encryptedPassword = cursor.moveToFirst() ? readEncryptedPassword(cursor, 0) : null;
+        }
+        return encryptedPassword == null ? null : EncryptionHelper.decryptToChars(encryptedPassword);
+    }
+
+
+
+    /**
+     * Reads the password column of the current row of a cursor without decrypting it. Passwords are stored as BLOBs
+     * holding the IV, the ciphertext and the tag; the ones written before are Base64 text until
+     * {@link #convertTextPasswords} reaches them.
+     *
+     * @param cursor The cursor, positioned on a row.
+     * @param column The index of the password column.
+     * @return The IV, ciphertext and tag of the password, or null if the column is null or isn't valid Base64 text.
+     */
+    @Nullable
+    public static byte[] readEncryptedPassword(Cursor cursor, int column) {
+        switch (cursor.getType(column)) {
+            case Cursor.FIELD_TYPE_BLOB:
+                return cursor.getBlob(column);
+            case Cursor.FIELD_TYPE_STRING:
+                try {
+                    return Base64.decode(cursor.getString(column), Base64.DEFAULT);
+                } catch (IllegalArgumentException e) {
+                    Log.e("32890457", "Could not decode a password stored as text", e);
+                    return null;
+                }
+            default:
+                return null;
+        }
+    }
 
-        db.insert(TABLE_NAME, null, cv);
+
+
+    /**
+     * Counts the entries stored in the database.
+     *
+     * @return The number of rows of the password table.
+     * @throws SQLiteException If there's an error accessing the database.
+     */
+    public int countEntries() {
+        SQLiteDatabase db = openReadableDatabase();
+
+        try (Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM " + TABLE_NAME, null)) {
+            return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        }
     }
 
 
 
     /**
-     * Reads all data from the database table.
+     * Reads the id, name and email of the given entries along with their position in the list ordered by name,
+     * the order of {@link #readPage}.
      *
-     * @return A Cursor object containing all the data from the database table.
+     * @param rowIds The IDs of the entries.
+     * @return A Cursor over the id, name, email and position columns of the entries that exist, ordered by position.
      * @throws SQLiteException If there's an error accessing the database.
      */
-    public Cursor readAllData() {
-        SQLiteDatabase db = this.getReadableDatabase(KEY_ENCRYPTION);
-        String query = "SELECT * FROM " + TABLE_NAME;
+    public Cursor readEntriesWithPosition(Collection<String> rowIds) {
+        SQLiteDatabase db = openWritableDatabase();
+        StringBuilder placeholders = new StringBuilder();
 
-        return db.rawQuery(query, null);
+        for (int i = 0; i < rowIds.size(); i++) {
+            placeholders.append(i == 0 ? "?" : ", ?");
+        }
+
+        String position = "(SELECT COUNT(*) FROM " + TABLE_NAME + " o WHERE o." + COLUMN_NAME + " < e." + COLUMN_NAME + " COLLATE NOCASE" +
+                " OR (o." + COLUMN_NAME + " = e." + COLUMN_NAME + " COLLATE NOCASE AND o." + COLUMN_ID + " < e." + COLUMN_ID + "))";
+
+        return db.rawQuery("SELECT e." + COLUMN_ID + ", e." + COLUMN_NAME + ", e." + COLUMN_EMAIL + ", " + position +
+                " FROM " + TABLE_NAME + " e WHERE e." + COLUMN_ID + " IN (" + placeholders + ") ORDER BY 4", rowIds.toArray(new String[0]));
     }
 
 
 
     /**
-     * Searches for items in the database based on the provided search query.
+     * Reads the changes logged by the triggers of the password table after the given sequence number.
      *
-     * @param itemToSearch The search query used to find matching items in the database.
-     * @return A Cursor object containing the results of the search.
+     * @param afterSequence The sequence number of the last change already seen.
+     * @return A Cursor over the sequence number, entry ID and operation of every change, oldest first.
      * @throws SQLiteException If there's an error accessing the database.
      */
-    public Cursor searchItem(String itemToSearch) {
-        SQLiteDatabase db = this.getReadableDatabase(KEY_ENCRYPTION);
+    Cursor readChanges(long afterSequence) {
+        SQLiteDatabase db = openWritableDatabase();
+        return db.rawQuery("SELECT seq, record_id, op FROM " + DatabaseMigrations.CHANGE_LOG_TABLE + " WHERE seq > ? ORDER BY seq",
+                new String[]{String.valueOf(afterSequence)});
+    }
 
-        String query = "SELECT * " +
-                "FROM " + TABLE_NAME +
-                " WHERE " + COLUMN_NAME + " LIKE '%" + itemToSearch.toLowerCase() + "%'";
 
-        return db.rawQuery(query, null);
+
+    /**
+     * @return The sequence number of the last change logged, and the last ID given to an entry.
+     * @throws SQLiteException If there's an error accessing the database.
+     */
+    long[] readSequences() {
+        SQLiteDatabase db = openWritableDatabase();
+        return new long[]{currentChangeSequence(db), longForQuery(db, "SELECT seq FROM sqlite_sequence WHERE name = ?", TABLE_NAME)};
     }
 
 
+
     /**
      * Updates an existing row in the database table with the specified row ID.
      *
      * @param row_id   The ID of the row to be updated.
      * @param name     The new value for the name column.
      * @param email    The new value for the email column.
-     * @param password The new value for the password column.
+     * @param password The new password (it will be encrypted before being written into the database)
      */
     public void updateData(String row_id, String name, String email, String password){
-        SQLiteDatabase db = this.getWritableDatabase(KEY_ENCRYPTION);
+        SQLiteDatabase db = openWritableDatabase();
         ContentValues cv = new ContentValues();
 
+        byte[] encryptedPassword = EncryptionHelper.encryptToBytes(password);
+
         cv.put(COLUMN_NAME, name);
         cv.put(COLUMN_EMAIL, email);
-        cv.put(COLUMN_PASSWORD, password);
+        cv.put(COLUMN_PASSWORD, encryptedPassword);
 
         db.update(TABLE_NAME, cv, "id=?", new String[]{row_id});
     }
@@ -150,12 +1070,84 @@ public class DatabaseHelper extends SQLiteOpenHelper {
      * @throws SQLiteException If there's an error accessing or updating the database.
      */
     public void deleteOneRow(String rowId){
-        SQLiteDatabase db = this.getWritableDatabase(KEY_ENCRYPTION);
+        SQLiteDatabase db = openWritableDatabase();
         db.delete(TABLE_NAME, "id=?", new String[]{rowId});
     }
 
 
 
+    /**
+     * Deletes the rows with the given IDs in a single transaction, through one compiled statement.
+     *
+     * @param rowIds The IDs of the rows to delete.
+     * @return The IDs of the rows actually deleted, the others didn't exist anymore.
+     * @throws SQLiteException If the transaction can't be committed. Nothing is deleted in that case.
+     */
+    public List<String> deleteRows(List<String> rowIds) {
+        SQLiteDatabase db = openWritableDatabase();
+        SQLiteStatement delete = db.compileStatement("DELETE FROM " + TABLE_NAME + " WHERE " + COLUMN_ID + " = ?");
+        List<String> deleted = new ArrayList<>(rowIds.size());
+
+        db.beginTransaction();
+        try {
+            for (String rowId : rowIds) {
+                delete.bindString(1, rowId);
+
+                if (delete.executeUpdateDelete() > 0) {
+                    deleted.add(rowId);
+                }
+            }
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            delete.close();
+        }
+        return deleted;
+    }
+
+
+
+    /**
+     * Sets the same email on the rows with the given IDs in a single transaction, through one compiled statement.
+     * A row whose name already exists with that email is left unchanged, so no duplicate account is created.
+     *
+     * @param rowIds The IDs of the rows to update.
+     * @param email  The new email.
+     * @return The IDs of the rows actually updated.
+     * @throws SQLiteException If the transaction can't be committed. Nothing is updated in that case.
+     */
+    public List<String> updateEmails(List<String> rowIds, String email) {
+        SQLiteDatabase db = openWritableDatabase();
+        SQLiteStatement update = db.compileStatement("UPDATE " + TABLE_NAME + " SET " + COLUMN_EMAIL + " = ?" +
+                " WHERE " + COLUMN_ID + " = ? AND " + COLUMN_EMAIL + " IS NOT ?" +
+                " AND NOT EXISTS (SELECT 1 FROM " + TABLE_NAME + " AS other" +
+                " WHERE other." + COLUMN_NAME + " = " + TABLE_NAME + "." + COLUMN_NAME + " AND other." + COLUMN_EMAIL + " = ?)");
+        List<String> updated = new ArrayList<>(rowIds.size());
+
+        db.beginTransaction();
+        try {
+            for (String rowId : rowIds) {
+                update.bindString(1, email);
+                update.bindString(2, rowId);
+                update.bindString(3, email);
+                update.bindString(4, email);
+
+                if (update.executeUpdateDelete() > 0) {
+                    updated.add(rowId);
+                }
+            }
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            update.close();
+        }
+        return updated;
+    }
+
+
+
     /**
      * Checks if an account with the given name and email already exists in the database.
      *
@@ -165,7 +1157,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
      * @throws SQLiteException If there's an error accessing the database.
      */
     public boolean checkIfAccountAlreadyExist(String name, String email) {
-        SQLiteDatabase db = this.getReadableDatabase(KEY_ENCRYPTION);
+        SQLiteDatabase db = openWritableDatabase();
 
         String selection = COLUMN_NAME + " = ? AND " + COLUMN_EMAIL + " = ?";
         String[] selectionArgs = {name, email};
@@ -184,236 +1176,639 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 
 
     /**
-     * Changes the password used to encrypt the database.
+     * Changes the password used to encrypt the database. The vault is copied by sqlcipher_export into a new file keyed
+     * with the new password, which then atomically replaces the vault, and the new password is stored. Until the swap
+     * the vault is untouched, so a failure or the death of the process leaves it with the old password; a process dying
+     * right after the swap is finished by {@link #recoverPasswordChange}.
+     * Any open connection on the vault must be closed before calling this method.
      *
      * @param newPassword The new password for the database.
      * @param context     The application context.
-     * @throws SQLiteException If there's an error accessing or updating the database.
+     * @param listener    Receives the number of bytes of the new file written so far, from another thread. May be null.
+     * @throws IOException If the new file can't replace the vault. The vault is left untouched in that case.
+     * @throws SQLiteException If there's an error reading the vault or writing the new file.
      */
-    public static void changeDBPassword(String newPassword, Context context) {
+    public static void changeDBPassword(String newPassword, Context context, @Nullable ProgressListener listener) throws IOException {
+        File currentDatabase = context.getDatabasePath(DATABASE_NAME);
+        File rekeyDatabase = new File(currentDatabase.getParent(), REKEY_DATABASE_NAME);
+        EncryptedSharedPreferences encryptedSharedPreferences = EncryptionHelper.getEncryptedSharedPreferences(context);
 
-        SQLiteDatabase.loadLibs(context);
-        //Log.i("Database123", "loaded libs");
+        CipherProfile profile = CipherProfile.load(context);
+
+        deleteDatabase(rekeyDatabase.getParent(), REKEY_DATABASE_NAME);
+
+        try {
+            SQLiteDatabase db = openVault(context);
 
-        String databasePath = context.getDatabasePath(DATABASE_NAME).getAbsolutePath();
-        //Log.i("Database123", "got the db path: " + databasePath);
+            try {
+                exportVault(db, rekeyDatabase, REKEY_SCHEMA, newPassword, profile, listener);
+            } finally {
+                db.close();
+            }
+
+            // The new file has a new salt, the profile must be found under it once the file is the vault
+            profile.save(context, rekeyDatabase);
 
-        SQLiteDatabase db = SQLiteDatabase.openDatabase(databasePath, KEY_ENCRYPTION, null, SQLiteDatabase.OPEN_READWRITE);
-        //Log.w("32890457", "db opened with the old key at path: " + databasePath);
+            // From here on recoverPasswordChange can tell from the files whether the swap happened
+            encryptedSharedPreferences.edit().putString(PENDING_PASSWORD_FLAG, newPassword).commit();
+
+            deleteWriteAheadLog(currentDatabase);
+            if (!rekeyDatabase.renameTo(currentDatabase)) {
+                encryptedSharedPreferences.edit().remove(PENDING_PASSWORD_FLAG).commit();
+                throw new IOException("Failed to replace the database with the rekeyed one.");
+            }
 
-        db.rawExecSQL("PRAGMA rekey = '" + newPassword + "'");
-        //Log.i("Database123", "new key set");
+            encryptedSharedPreferences.edit()
+                    .putString("password", newPassword)
+                    .remove(PENDING_PASSWORD_FLAG)
+                    .commit();
 
-        db.close();
+            // The new file has a new salt
+            DatabaseKeyHolder.unlock(newPassword);
+            Log.i("32890457", "Database rekeyed");
 
-        Toast.makeText(context, R.string.database_password_changed_successfully, Toast.LENGTH_SHORT).show();
+        } finally {
+            if (rekeyDatabase.exists()) {
+                deleteDatabase(rekeyDatabase.getParent(), REKEY_DATABASE_NAME);
+            }
+        }
     }
 
 
 
     /**
-     * Decrypts all passwords stored in the database.
+     * Finishes a password change interrupted by the death of the process: if the rekeyed file is gone the vault
+     * has been replaced and the new password is stored, otherwise the vault still has the old password and the
+     * rekeyed file is dropped. Must run before the stored password is read to unlock the vault.
      *
      * @param context The application context.
-     * @throws SQLiteException If there's an error accessing or updating the database.
      */
-    private static void decryptAllPasswords(Context context) {
+    public static void recoverPasswordChange(Context context) {
+        EncryptedSharedPreferences encryptedSharedPreferences = EncryptionHelper.getEncryptedSharedPreferences(context);
+        String pendingPassword = encryptedSharedPreferences.getString(PENDING_PASSWORD_FLAG, null);
+        File rekeyDatabase = context.getDatabasePath(REKEY_DATABASE_NAME);
+
+        if (pendingPassword == null) {
+            // A rekey that died while writing the new file, before anything was recorded
+            if (rekeyDatabase.exists()) {
+                deleteDatabase(rekeyDatabase.getParent(), REKEY_DATABASE_NAME);
+            }
+            return;
+        }
 
-        //Log.w("32890457", "[EXPORT] decrypting passwords...");
+        SharedPreferences.Editor editor = encryptedSharedPreferences.edit();
+
+        if (rekeyDatabase.exists()) {
+            deleteDatabase(rekeyDatabase.getParent(), REKEY_DATABASE_NAME);
+        } else {
+            editor.putString("password", pendingPassword);
+            Log.w("32890457", "Finished an interrupted password change");
+        }
+        editor.remove(PENDING_PASSWORD_FLAG).commit();
+    }
 
-        SQLiteDatabase.loadLibs(context);
-        SQLiteDatabase db = SQLiteDatabase.openDatabase(context.getDatabasePath(DATABASE_NAME).getAbsolutePath(), KEY_ENCRYPTION, null, SQLiteDatabase.OPEN_READWRITE);
 
-        Cursor cursor = db.rawQuery("SELECT * FROM " + TABLE_NAME, null);
 
-        if (cursor != null && cursor.moveToFirst()) {
-            do {
+    /**
+     * Copies the whole vault with sqlcipher_export into a new database attached to the given connection,
+     * keyed with the given password and cipher settings, which are stored in the new database. The progress is
+     * polled from the size of the new file, since the export is a single statement.
+     *
+     * @param db       The vault, it is only read. Its meta table must exist.
+     * @param target   The file of the new database, it must not exist yet.
+     * @param schema   The name under which the new database is attached.
+     * @param key      The password of the new database.
+     * @param profile  The cipher settings of the new database.
+     * @param listener Receives the number of bytes written so far and an estimate of the final size, from another thread. May be null.
+     * @throws SQLiteException If there's an error reading the vault or writing the new database.
+     */
+    private static void exportVault(SQLiteDatabase db, File target, String schema, String key, CipherProfile profile,
+                                    @Nullable ProgressListener listener) {
+
+        db.execSQL("ATTACH DATABASE ? AS " + schema + " KEY ?", new Object[]{target.getAbsolutePath(), key});
 
-                @SuppressLint("Range") int id = cursor.getInt(cursor.getColumnIndex(COLUMN_ID));
-                @SuppressLint("Range") String encryptedPassword = cursor.getString(cursor.getColumnIndex(COLUMN_PASSWORD));
-                String decryptedPassword = EncryptionHelper.decrypt(encryptedPassword);
+        ScheduledExecutorService poller = null;
 
-                //Log.i("32890457", "[EXPORT] encrypted password: " + encryptedPassword + " decrupted password: " + decryptedPassword);
+        try {
+            // The settings must be set before the first access to the attached database
+            profile.applyTo(db, schema);
 
-                ContentValues values = new ContentValues();
-                values.put(COLUMN_PASSWORD, decryptedPassword);
+            if (listener != null) {
+                // The free pages of the vault are not copied
+                long total = (longForQuery(db, "PRAGMA main.page_count") - longForQuery(db, "PRAGMA main.freelist_count"))
+                        * longForQuery(db, "PRAGMA main.page_size");
 
-                //Log.w("32890457", "[EXPORT] putting decrypted password: " + decryptedPassword + " at id: " + id);
+                poller = Executors.newSingleThreadScheduledExecutor();
+                poller.scheduleWithFixedDelay(() -> listener.onProgress(Math.min(target.length(), total), total),
+                        0, EXPORT_PROGRESS_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            }
 
-                db.update(TABLE_NAME, values, COLUMN_ID + "=?", new String[]{String.valueOf(id)});
-            } while (cursor.moveToNext());
+            db.rawExecSQL("SELECT sqlcipher_export('" + schema + "')");
+            db.execSQL("PRAGMA " + schema + ".user_version = " + db.getVersion());
+            db.execSQL("INSERT OR REPLACE INTO " + schema + "." + DatabaseMigrations.META_TABLE + " (key, value) VALUES (?, ?)",
+                    new Object[]{META_CIPHER_PROFILE, profile.encode()});
+        } finally {
+            if (poller != null) {
+                poller.shutdownNow();
+            }
+            db.execSQL("DETACH DATABASE " + schema);
         }
+    }
 
-        if (cursor != null) {
+
+
+    /**
+     * Encrypts all the passwords of a vault holding them as plain text, e.g. an export about to be imported,
+     * with the data key of that vault, which is created if it has none.
+     *
+     * @param db A read-write connection on the vault.
+     * @throws SQLiteException If there's an error accessing or updating the database, or a password can't be
+     *                         encrypted. Nothing is written in that case.
+     */
+    private static void encryptAllPasswords(SQLiteDatabase db) {
+        loadDataKey(db);
+        rewriteAllPasswords(db, EncryptionHelper::encryptToBytes, null);
+    }
+
+
+
+    /**
+     * Replaces every password of the table with the result of the given transformation.
+     * All the rows are rewritten in a single transaction through one compiled UPDATE statement,
+     * so the whole pass costs one journal commit instead of one per row.
+     * If the transformation of any row fails the whole pass is rolled back, so the table is never left half rewritten.
+     *
+     * @param db        The database to rewrite, opened in read-write mode.
+     * @param transform The transformation applied to every password (e.g. encryption or decryption).
+     * @param listener  Receives the number of rows processed so far, may be null.
+     * @throws SQLiteException If there's an error accessing or updating the database, or a transformation fails.
+     *                         Nothing is written in that case.
+     */
+    private static void rewriteAllPasswords(SQLiteDatabase db, PasswordTransform transform, @Nullable ProgressListener listener) {
+
+        SQLiteStatement update = db.compileStatement("UPDATE " + TABLE_NAME + " SET " + COLUMN_PASSWORD + " = ? WHERE " + COLUMN_ID + " = ?");
+        Cursor cursor = db.rawQuery("SELECT " + COLUMN_ID + ", " + COLUMN_PASSWORD + " FROM " + TABLE_NAME, null);
+
+        db.beginTransaction();
+        try {
+            int total = cursor.getCount();
+            int done = 0;
+
+            while (cursor.moveToNext()) {
+                long id = cursor.getLong(0);
+                String password = cursor.getString(1);
+                byte[] transformedPassword = password == null ? null : transform.apply(password);
+
+                if (transformedPassword != null) {
+                    update.bindBlob(1, transformedPassword);
+                    update.bindLong(2, id);
+                    update.execute();
+                } else if (password != null) {
+                    throw new SQLiteException("Could not transform the password of row " + id);
+                }
+
+                done++;
+                if (listener != null && (done % PROGRESS_INTERVAL == 0 || done == total)) {
+                    listener.onProgress(done, total);
+                }
+            }
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
             cursor.close();
+            update.close();
         }
-        db.close();
     }
 
 
 
     /**
-     * Encrypts all passwords stored in the database.
+     * A transformation of a single plain text password into the value stored, returning null when it fails.
+     */
+    private interface PasswordTransform {
+        byte[] apply(String password);
+    }
+
+
+
+    /**
+     * Converts the next batch of passwords still stored as Base64 text into BLOBs, in one transaction.
+     * The text is the Base64 encoding of the bytes stored now, so nothing is decrypted: the conversion needs no key
+     * and a row is either in one format or the other. Rows are visited by ascending ID, a row whose text isn't
+     * valid Base64 is left as it is. Once a batch comes back short the vault is flagged as converted.
      *
-     * @param context The application context.
-     * @throws SQLiteException If there's an error accessing or updating the database.
+     * @param afterId   The ID of the last row of the previous batch, or 0 to start.
+     * @param batchSize The maximum number of rows to convert.
+     * @return The ID to resume after, or -1 once every row has been visited.
+     * @throws SQLiteException If the transaction can't be committed. Nothing is converted in that case.
      */
-    public static void encryptAllPasswords(Context context) {
+    public long convertTextPasswords(long afterId, int batchSize) {
+        SQLiteDatabase db = openWritableDatabase();
 
-        EncryptedSharedPreferences encryptedSharedPreferences;
-        encryptedSharedPreferences = EncryptionHelper.getEncryptedSharedPreferences(context);
+        if (afterId == 0 && PASSWORD_FORMAT_BLOB.equals(readMeta(db, META_PASSWORD_FORMAT))) {
+            return -1;
+        }
 
-        String key = encryptedSharedPreferences.getString("password", "");
+        SQLiteStatement update = db.compileStatement("UPDATE " + TABLE_NAME + " SET " + COLUMN_PASSWORD + " = ? WHERE " + COLUMN_ID + " = ?");
+        long lastId = afterId;
+        int visited = 0;
 
-        //Log.i("32890457", "Password used for encryption: " + key);
+        db.beginTransaction();
+        try {
+            try (Cursor cursor = db.rawQuery("SELECT " + COLUMN_ID + ", " + COLUMN_PASSWORD + " FROM " + TABLE_NAME +
+                            " WHERE " + COLUMN_ID + " > ? AND typeof(" + COLUMN_PASSWORD + ") = 'text' ORDER BY " + COLUMN_ID + " LIMIT ?",
+                    new String[]{String.valueOf(afterId), String.valueOf(batchSize)})) {
+
+                while (cursor.moveToNext()) {
+                    lastId = cursor.getLong(0);
+                    visited++;
+
+                    try {
+                        update.bindBlob(1, Base64.decode(cursor.getString(1), Base64.DEFAULT));
+                        update.bindLong(2, lastId);
+                        update.execute();
+                    } catch (IllegalArgumentException e) {
+                        Log.e("32890457", "The password of row " + lastId + " isn't Base64, left as text");
+                    }
+                }
+            }
 
-        SQLiteDatabase.loadLibs(context);
-        SQLiteDatabase db = SQLiteDatabase.openDatabase(
-                context.getDatabasePath(DATABASE_NAME).getAbsolutePath(),
-                key,
-                null,
-                SQLiteDatabase.OPEN_READWRITE
-        );
+            if (visited < batchSize) {
+                writeMeta(db, META_PASSWORD_FORMAT, PASSWORD_FORMAT_BLOB);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            update.close();
+        }
+        return visited < batchSize ? -1 : lastId;
+    }
+
+
+
+    /**
+     * Re-encrypts with the data key the next batch of passwords still encrypted with the Keystore key directly,
+     * written before the vault had a data key. The passwords are decrypted and encrypted before the transaction
+     * starts, so it only holds the writes; this must run on the write thread, so no row changes in between.
+     * A password that can't be decrypted is left as it is. Once a batch comes back short the vault is flagged,
+     * so the next unlocks don't look at every password again.
+     *
+     * @param afterId   The ID of the last row of the previous batch, or 0 to start.
+     * @param batchSize The maximum number of rows to visit.
+     * @return The ID to resume after, or -1 once every row has been visited or if no data key is installed.
+     * @throws SQLiteException If the transaction can't be committed. Nothing is re-encrypted in that case.
+     */
+    public long reencryptLegacyPasswords(long afterId, int batchSize) {
+        SQLiteDatabase db = openWritableDatabase();
+
+        if (!EncryptionHelper.hasDataKey() ||
+                (afterId == 0 && PASSWORD_KEY_DATA_KEY.equals(readMeta(db, META_PASSWORD_KEY)))) {
+            return -1;
+        }
+
+        List<Long> ids = new ArrayList<>();
+        List<byte[]> reencryptedPasswords = new ArrayList<>();
+        long lastId = afterId;
+        int visited = 0;
 
-        //Log.d("32890457", "KEY_ENCRYPTION: " + KEY_ENCRYPTION);
+        try (Cursor cursor = db.rawQuery("SELECT " + COLUMN_ID + ", " + COLUMN_PASSWORD + " FROM " + TABLE_NAME +
+                        " WHERE " + COLUMN_ID + " > ? ORDER BY " + COLUMN_ID + " LIMIT ?",
+                new String[]{String.valueOf(afterId), String.valueOf(batchSize)})) {
 
-        Cursor cursor = db.rawQuery("SELECT * FROM " + TABLE_NAME, null);
+            while (cursor.moveToNext()) {
+                lastId = cursor.getLong(0);
+                visited++;
 
-        if (cursor != null && cursor.moveToFirst()) {
-            do {
+                byte[] encryptedPassword = readEncryptedPassword(cursor, 1);
 
-                @SuppressLint("Range") int id = cursor.getInt(cursor.getColumnIndex(COLUMN_ID));
-                @SuppressLint("Range") String password = cursor.getString(cursor.getColumnIndex(COLUMN_PASSWORD));
+                if (encryptedPassword == null) {
+                    continue;
+                }
 
-                String encryptedPassword = EncryptionHelper.encrypt(password);
+                try {
+                    byte[] reencryptedPassword = EncryptionHelper.reencryptWithDataKey(encryptedPassword);
 
-                ContentValues values = new ContentValues();
-                values.put(COLUMN_PASSWORD, encryptedPassword);
-                db.update(TABLE_NAME, values, COLUMN_ID + "=?", new String[]{String.valueOf(id)});
-            } while (cursor.moveToNext());
+                    if (reencryptedPassword != null) {
+                        ids.add(lastId);
+                        reencryptedPasswords.add(reencryptedPassword);
+                    }
+                } catch (GeneralSecurityException | IllegalArgumentException e) {
+                    Log.e("32890457", "Could not re-encrypt the password of row " + lastId + ", left unchanged", e);
+                }
+            }
         }
 
-        if (cursor != null) {
-            cursor.close();
+        SQLiteStatement update = db.compileStatement("UPDATE " + TABLE_NAME + " SET " + COLUMN_PASSWORD + " = ? WHERE " + COLUMN_ID + " = ?");
+
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < ids.size(); i++) {
+                update.bindBlob(1, reencryptedPasswords.get(i));
+                update.bindLong(2, ids.get(i));
+                update.execute();
+            }
+
+            if (visited < batchSize) {
+                writeMeta(db, META_PASSWORD_KEY, PASSWORD_KEY_DATA_KEY);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            update.close();
         }
-        db.close();
+        return visited < batchSize ? -1 : lastId;
     }
 
 
 
     /**
-     * Exports the encrypted database to the specified file URL.
+     * Exports the vault to the specified file URL as a separate SQLCipher database, protected by the same
+     * password as the vault but holding the passwords in plain text so it can be imported on another device.
+     * The export file is built next to the live database and then copied, the live database is only read.
      *
-     * @param context The application context.
-     * @param fileURL The file URL where the encrypted database will be exported.
-     * @throws SQLiteException If there's an error accessing or updating the database.
+     * @param context  The application context.
+     * @param fileURL  The file URL where the encrypted database will be exported.
+     * @param listener Receives the number of bytes copied to the destination so far, may be null.
+     * @param signal   Cancels the export, may be null.
+     * @throws IOException If the export file can't be written to the destination.
+     * @throws SQLiteException If there's an error accessing the database or writing the export database.
+     * @throws android.os.OperationCanceledException If the export has been canceled.
+     */
+    public static void exportDatabase(Context context, Uri fileURL, @Nullable ProgressListener listener,
+                                      @Nullable CancellationSignal signal) throws IOException {
+        File exportFile = new File(context.getCacheDir(), EXPORTED_DATABASE_NAME);
+
+        // Leftover of an export interrupted by the process being killed
+        if (exportFile.exists()) {
+            exportFile.delete();
+        }
+
+        try {
+            // The export file is keyed with the passphrase so that it can be opened on another device
+            String key = getDatabasePassword(context);
+            SQLiteDatabase db = openVault(context);
+
+            try {
+                writeExportDatabase(db, exportFile, key, signal);
+            } finally {
+                db.close();
+            }
+
+            FileCopyHelper.copyToUri(context, exportFile, fileURL, listener, signal);
+
+        } finally {
+            deleteDatabase(exportFile.getParent(), EXPORTED_DATABASE_NAME);
+        }
+    }
+
+
+
+    /**
+     * Streams every entry of the given database into a new SQLCipher database attached to the same connection,
+     * decrypting the passwords on the way. The decryptions run on the {@link BulkDecryptor} workers while this
+     * thread reads and inserts, the rows are still inserted in the order they are read.
+     *
+     * @param db         The live database, it is only read.
+     * @param exportFile The file of the export database, it must not exist yet.
+     * @param key        The password protecting the export database.
+     * @param signal     Cancels the export, rolling back what has been written so far. May be null.
+     * @throws SQLiteException If there's an error accessing or writing the databases.
      */
-    public static void exportDatabase(Context context, Uri fileURL) {
-        decryptAllPasswords(context);
+    private static void writeExportDatabase(SQLiteDatabase db, File exportFile, String key, @Nullable CancellationSignal signal) throws IOException {
+
+        db.execSQL("ATTACH DATABASE ? AS " + EXPORT_SCHEMA + " KEY ?", new Object[]{exportFile.getAbsolutePath(), key});
+
         try {
-            File dbFile = context.getDatabasePath(DATABASE_NAME);
-            FileInputStream fis = new FileInputStream(dbFile);
-            OutputStream os = context.getContentResolver().openOutputStream(fileURL);
-
-            byte[] buffer = new byte[1024];
-            int length;
-            while ((length = fis.read(buffer)) > 0) {
-                assert os != null;
-                os.write(buffer, 0, length);
+            db.beginTransaction();
+            try {
+                db.execSQL(createTableQuery(EXPORT_SCHEMA + "."));
+
+                SQLiteStatement insert = db.compileStatement("INSERT INTO " + EXPORT_SCHEMA + "." + TABLE_NAME +
+                        " (" + COLUMN_ID + ", " + COLUMN_NAME + ", " + COLUMN_EMAIL + ", " + COLUMN_PASSWORD + ") VALUES (?, ?, ?, ?)");
+
+                try (Cursor cursor = db.rawQuery("SELECT " + COLUMN_ID + ", " + COLUMN_NAME + ", " + COLUMN_EMAIL + ", " + COLUMN_PASSWORD +
+                        " FROM main." + TABLE_NAME, null);
+                     BulkDecryptor.Pipeline<UserData> pipeline = BulkDecryptor.pipeline((entry, password) -> {
+                         insert.bindLong(1, Long.parseLong(entry.getId()));
+                         bindStringOrNull(insert, 2, entry.getName());
+                         bindStringOrNull(insert, 3, entry.getEmail());
+                         bindStringOrNull(insert, 4, password);
+                         insert.executeInsert();
+                     })) {
+
+                    while (cursor.moveToNext()) {
+                        if (signal != null && cursor.getPosition() % PROGRESS_INTERVAL == 0) {
+                            signal.throwIfCanceled();
+                        }
+
+                        pipeline.submit(new UserData(cursor.getString(0), cursor.getString(1), cursor.getString(2), null),
+                                readEncryptedPassword(cursor, 3));
+                    }
+                    pipeline.finish();
+                } finally {
+                    insert.close();
+                }
+
+                // Only the version 1 table is written, the importing helper runs the migrations to build the rest
+                db.execSQL("PRAGMA " + EXPORT_SCHEMA + ".user_version = " + DatabaseMigrations.BASE_VERSION);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
             }
+        } finally {
+            db.execSQL("DETACH DATABASE " + EXPORT_SCHEMA);
+        }
+    }
+
 
-            assert os != null;
-            os.flush();
-            os.close();
-            fis.close();
 
-            //Log.i("32890457", "[EXPORT] Database exported successfully to: " + fileURL);
-            encryptAllPasswords(context);
+    private static void bindStringOrNull(SQLiteStatement statement, int index, @Nullable String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
 
-        } catch (IOException e) {
-            Log.e("32890457", Objects.requireNonNull(e.getMessage()));
+    private static void bindBlobOrNull(SQLiteStatement statement, int index, @Nullable byte[] value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindBlob(index, value);
         }
     }
 
 
 
+    /**
+     * Reads the password of the database from the encrypted shared preferences.
+     *
+     * @param context The application context.
+     * @return The password protecting the database.
+     */
+    private static String getDatabasePassword(Context context) {
+        EncryptedSharedPreferences encryptedSharedPreferences = EncryptionHelper.getEncryptedSharedPreferences(context);
+        return encryptedSharedPreferences.getString("password", "");
+    }
+
+
+
     /**
      * Imports a database from a specified URI, replaces the existing database, updates the database password,
-     * and ensures the new database is fully integrated and writable within the app. If the operation fails,
-     * it cleans up by removing the imported database file.
+     * and ensures the new database is fully integrated and writable within the app. The passwords of the imported
+     * file are encrypted before it replaces the vault, and the stored password only changes once it has.
+     * If the operation fails, it cleans up by removing the imported database file and the current database is left untouched.
+     * Any open connection on the current database must be closed before calling this method.
      *
      * @param context The context through which the application can access the current state and resources, including the filesystem and database paths.
      * @param uri The URI of the database file to be imported. This URI must be accessible through the context's ContentResolver.
      * @param inputPassword The password to be used for opening the newly imported database, ensuring it's encrypted or protected as required.
-     * @throws IOException If there are I/O errors during the database file transfer or when attempting to open the new database file.
+     * @param listener Receives the number of bytes copied from the URI so far, may be null.
+     * @param signal Cancels the copy of the imported file, may be null.
+     * @throws IOException If there are I/O errors during the database file transfer or when attempting to replace the current database file.
      *                      This can occur if the URI is invalid, the file is inaccessible, or the filesystem operations fail.
+     * @throws SQLiteException If the imported file can't be opened with the given password.
+     * @throws android.os.OperationCanceledException If the import has been canceled.
      */
-    public static void importDatabase(Context context, Uri uri, String inputPassword) throws IOException {
+    public static void importDatabase(Context context, Uri uri, String inputPassword,
+                                      @Nullable ProgressListener listener, @Nullable CancellationSignal signal) throws IOException {
 
         // Copy the imported database to the database directory of the app: /data/user/0/com.gero.newpass/databases/
         String pathOfDatabaseDirectory = context.getDatabasePath(DATABASE_NAME).getParent();
-        String currentDBPath = pathOfDatabaseDirectory + File.separator + DATABASE_NAME;
-        String importedDBPath = pathOfDatabaseDirectory + File.separator + IMPORTED_DATABASE_NAME;
+        File currentDatabase = new File(pathOfDatabaseDirectory, DATABASE_NAME);
+        File importedDatabaseFile = new File(pathOfDatabaseDirectory, IMPORTED_DATABASE_NAME);
 
         try {
-            InputStream inputStream = context.getContentResolver().openInputStream(uri);
-            OutputStream outputStream = new FileOutputStream(importedDBPath);
-            byte[] buffer = new byte[1024];
-            int length;
-            while ((length = inputStream.read(buffer)) > 0) {
-                outputStream.write(buffer, 0, length);
+            FileCopyHelper.copyFromUri(context, uri, importedDatabaseFile, listener, signal);
+
+            // Open the imported DB with the specified password, this fails if the password is wrong
+            SQLiteDatabase.loadLibs(context);
+            SQLiteDatabase importedDatabase = SQLiteDatabase.openDatabase(importedDatabaseFile.getAbsolutePath(), inputPassword, null, SQLiteDatabase.OPEN_READWRITE);
+
+            try {
+                // Ensure the imported database is writable
+                if (importedDatabase.isReadOnly()) {
+                    throw new IOException("Imported database is read-only.");
+                }
+
+                // The passwords of an export are in plain text, they are encrypted before the file becomes the vault
+                encryptAllPasswords(importedDatabase);
+            } finally {
+                importedDatabase.close();
             }
-            inputStream.close();
-            outputStream.close();
 
-            // Open the imported DB with the specified password
-            SQLiteDatabase importedDatabase = SQLiteDatabase.openDatabase(importedDBPath, inputPassword, null, SQLiteDatabase.OPEN_READWRITE);
-
-            // Ensure the imported database is writable
-            if (importedDatabase.isReadOnly()) {
-                Log.e("32890457", "Imported database is read-only.");
-                return;
+            // Replace the current database, rename() swaps the files atomically
+            deleteWriteAheadLog(currentDatabase);
+            if (!importedDatabaseFile.renameTo(currentDatabase)) {
+                throw new IOException("Failed to rename imported database.");
             }
+            Log.i("32890457", "Imported database renamed successfully.");
 
             EncryptedSharedPreferences encryptedSharedPreferences;
             encryptedSharedPreferences = EncryptionHelper.getEncryptedSharedPreferences(context);
 
-            //Log.i("32890457", "current db pass: " + encryptedSharedPreferences.getString("password", ""));
-
             SharedPreferences.Editor editor = encryptedSharedPreferences.edit();
             editor.putString("password", inputPassword);
-            editor.apply();
+            editor.commit();
+
+            // The imported file has its own salt, the key of the previous vault is dropped
+            DatabaseKeyHolder.unlock(inputPassword);
+
+        } catch (IOException | RuntimeException e) {
+            Log.e("32890457", "Error importing database", e);
+            // The data key of the imported file may be installed, the current vault loads its own at the next open
+            EncryptionHelper.clearDataKey();
+            if (importedDatabaseFile.exists()) {
+                deleteDatabase(pathOfDatabaseDirectory, IMPORTED_DATABASE_NAME);
+            }
+            throw e;
+        }
+    }
+
+
+
+    /**
+     * Rewrites the vault with different cipher settings. The whole database is copied by sqlcipher_export into
+     * a new file keyed with the passphrase under the new settings, which then replaces the vault. The new file
+     * stores its settings and they are recorded under its salt before the swap, see {@link CipherProfile}.
+     * Any open connection on the vault must be closed before calling this method.
+     *
+     * @param context The application context.
+     * @param profile The settings to rewrite the vault with.
+     * @throws IOException If the rewritten file can't replace the vault. The vault is left untouched in that case.
+     * @throws SQLiteException If there's an error reading the vault or writing the new file.
+     */
+    public static void applyCipherProfile(Context context, CipherProfile profile) throws IOException {
+        if (profile.equals(CipherProfile.load(context))) {
+            return;
+        }
 
-            //Log.i("32890457", "new db pass: " + encryptedSharedPreferences.getString("password", ""));
+        File currentDatabase = context.getDatabasePath(DATABASE_NAME);
+        File profileDatabase = new File(currentDatabase.getParent(), PROFILE_DATABASE_NAME);
+        String key = getDatabasePassword(context);
 
-            StringHelper.setSharedString(inputPassword);
+        deleteDatabase(profileDatabase.getParent(), PROFILE_DATABASE_NAME);
 
+        try {
+            SQLiteDatabase db = openVault(context);
 
-            // Rename the current database
-            deleteDatabase(pathOfDatabaseDirectory, DATABASE_NAME);
-            File oldDatabase = new File(currentDBPath);
-            File newDatabase = new File(importedDBPath);
-            if (newDatabase.renameTo(oldDatabase)) {
-                Log.i("32890457", "Imported database renamed successfully.");
-            } else {
-                Log.e("32890457", "Failed to rename imported database.");
-                return;
+            try {
+                exportVault(db, profileDatabase, PROFILE_SCHEMA, key, profile, null);
+            } finally {
+                db.close();
             }
-            importedDatabase.close();
 
-            encryptAllPasswords(context);
+            // Recorded under the salt of the new file, so the vault keeps its profile whether the swap happens or not
+            profile.save(context, profileDatabase);
+
+            deleteWriteAheadLog(currentDatabase);
+            if (!profileDatabase.renameTo(currentDatabase)) {
+                throw new IOException("Failed to replace the database with the new cipher profile.");
+            }
 
-            Toast.makeText(context, R.string.database_imported_successfully, Toast.LENGTH_SHORT).show();
+            // The new file has a new salt and maybe a new iteration count
+            DatabaseKeyHolder.unlock(key);
+            Log.i("32890457", "Database rewritten with " + profile);
 
-        } catch (SQLiteException e) {
-            Log.e("32890457", "Error importing database", e);
-            Toast.makeText(context, R.string.error_importing_database, Toast.LENGTH_SHORT).show();
-            deleteDatabase(pathOfDatabaseDirectory, IMPORTED_DATABASE_NAME);
+        } finally {
+            if (profileDatabase.exists()) {
+                deleteDatabase(profileDatabase.getParent(), PROFILE_DATABASE_NAME);
+            }
+        }
+    }
+
+
+
+    /**
+     * Drops the rewritten file left by a cipher profile migration interrupted by the death of the process.
+     * The vault is opened with the profile recorded for its own salt, whether the swap happened or not.
+     *
+     * @param context The application context.
+     */
+    private static void recoverCipherProfileMigration(Context context) {
+        File profileDatabase = context.getDatabasePath(PROFILE_DATABASE_NAME);
+
+        if (profileDatabase.exists()) {
+            deleteDatabase(profileDatabase.getParent(), PROFILE_DATABASE_NAME);
         }
     }
 
 
 
+    /**
+     * Deletes the write-ahead log files of a database about to be replaced, so they can't be applied to the new file.
+     * All the connections must be closed, which already checkpoints the log.
+     *
+     * @param database The database file.
+     */
+    private static void deleteWriteAheadLog(File database) {
+        new File(database.getPath() + "-wal").delete();
+        new File(database.getPath() + "-shm").delete();
+    }
+
+
+
     /**
      * Deletes a specified database file from the given directory path.
      *
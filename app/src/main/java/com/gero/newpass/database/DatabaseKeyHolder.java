@@ -0,0 +1,140 @@
+package com.gero.newpass.database;
+
+import android.util.Log;
+
+import com.gero.newpass.encryption.KeyDerivation;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+/**
+ * Holds the key of the vault for the duration of an unlocked session.
+ * SQLCipher derives the key from the passphrase with many PBKDF2 iterations every time a connection is opened.
+ * Here the derivation is done once, with the salt stored in the first bytes of the database file, and connections
+ * are opened with the resulting raw key ({@code x'<key><salt>'}), which SQLCipher uses as is.
+ */
+public class DatabaseKeyHolder {
+
+    private static final String TAG = "DatabaseKeyHolder";
+
+    // The raw key must match what SQLCipher would derive from the passphrase
+    private static final int KEY_LENGTH = 32;
+    private static final int SALT_LENGTH = 16;
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private static char[] passphrase;
+    private static char[] rawKey;
+
+    /**
+     * Starts a session with the given passphrase. The raw key is derived on the first open of the vault.
+     * Also called when the passphrase or the database file changes, to drop the key derived for the previous one.
+     *
+     * @param newPassphrase The passphrase of the vault.
+     */
+    public static synchronized void unlock(String newPassphrase) {
+        lock();
+        passphrase = newPassphrase.toCharArray();
+    }
+
+    /**
+     * Ends the session and wipes the keys from memory. The vault can't be opened until the next unlock.
+     */
+    public static synchronized void lock() {
+        if (passphrase != null) {
+            Arrays.fill(passphrase, '\0');
+            passphrase = null;
+        }
+        if (rawKey != null) {
+            Arrays.fill(rawKey, '\0');
+            rawKey = null;
+        }
+    }
+
+    /**
+     * Returns a copy of the key opening the given vault file. The caller wipes it once the database is open.
+     * Until the file exists there is no salt to derive from, so the passphrase is returned and SQLCipher creates the salt.
+     *
+     * @param databaseFile  The database file of the vault.
+     * @param kdfIterations The key derivation iterations of the vault, from its {@link CipherProfile}.
+     * @return The raw key, or the passphrase if the vault hasn't been created yet.
+     * @throws IllegalStateException If the vault is locked.
+     */
+    static synchronized char[] getKey(File databaseFile, int kdfIterations) {
+        if (passphrase == null) {
+            throw new IllegalStateException("The vault is locked");
+        }
+
+        if (rawKey == null) {
+            byte[] salt = readSalt(databaseFile);
+
+            if (salt == null) {
+                return passphrase.clone();
+            }
+
+            try {
+                long start = System.nanoTime();
+                rawKey = toRawKey(KeyDerivation.pbkdf2HmacSha512(passphrase, salt, kdfIterations, KEY_LENGTH), salt);
+                Log.i(TAG, "Database key derived in " + (System.nanoTime() - start) / 1000000 + " ms");
+            } catch (GeneralSecurityException e) {
+                // Let SQLCipher derive the key itself
+                Log.e(TAG, "Could not derive the database key", e);
+                return passphrase.clone();
+            }
+        }
+        return rawKey.clone();
+    }
+
+    /**
+     * @param databaseFile A database file.
+     * @return The salt in the first bytes of the file, or null if the file doesn't exist yet or can't be read.
+     */
+    static byte[] readSalt(File databaseFile) {
+        if (databaseFile.length() < SALT_LENGTH) {
+            return null;
+        }
+
+        byte[] salt = new byte[SALT_LENGTH];
+
+        try (FileInputStream inputStream = new FileInputStream(databaseFile)) {
+            int read = 0;
+
+            while (read < SALT_LENGTH) {
+                int count = inputStream.read(salt, read, SALT_LENGTH - read);
+
+                if (count < 0) {
+                    return null;
+                }
+                read += count;
+            }
+            return salt;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read the database salt", e);
+            return null;
+        }
+    }
+
+    private static char[] toRawKey(byte[] key, byte[] salt) {
+        char[] raw = new char[3 + (key.length + salt.length) * 2];
+        int position = 0;
+
+        raw[position++] = 'x';
+        raw[position++] = '\'';
+        position = appendHex(raw, position, key);
+        position = appendHex(raw, position, salt);
+        raw[position] = '\'';
+
+        Arrays.fill(key, (byte) 0);
+        return raw;
+    }
+
+    private static int appendHex(char[] destination, int position, byte[] bytes) {
+        for (byte b : bytes) {
+            destination[position++] = HEX_DIGITS[(b >> 4) & 0x0F];
+            destination[position++] = HEX_DIGITS[b & 0x0F];
+        }
+        return position;
+    }
+}
@@ -0,0 +1,136 @@
+package com.gero.newpass.database;
+
+import android.util.Log;
+
+import com.gero.newpass.backup.BackupRecord;
+
+import net.sqlcipher.database.SQLiteDatabase;
+
+import static com.gero.newpass.database.DatabaseHelper.COLUMN_EMAIL;
+import static com.gero.newpass.database.DatabaseHelper.COLUMN_ID;
+import static com.gero.newpass.database.DatabaseHelper.COLUMN_NAME;
+import static com.gero.newpass.database.DatabaseHelper.TABLE_NAME;
+
+/**
+ * The ordered schema history of the vault. {@link DatabaseHelper} creates the version 1 schema and then
+ * replays these steps, so a new install and an upgraded one always end up with the same schema.
+ */
+public class DatabaseMigrations {
+
+    private static final String TAG = "DatabaseMigrations";
+
+    // Version of the schema created by DatabaseHelper before any step is applied
+    static final int BASE_VERSION = 1;
+
+    static final String INDEX_NAME_EMAIL = "record_name_email";
+    static final String INDEX_NAME_ORDER = "record_name_order";
+    static final String CHANGE_LOG_TABLE = "record_changes";
+    static final String META_TABLE = "vault_meta";
+
+    /**
+     * Adds an index on (name, email) so the duplicate check is a lookup instead of a table scan,
+     * and an index matching the ORDER BY of the list and of the keyset pages.
+     * The index is not unique: vaults written before the duplicate check may hold the same account twice,
+     * and those entries are kept exactly as the user saved them.
+     */
+    private static final Migration MIGRATION_1_2 = new Migration(1, 2) {
+        @Override
+        public void migrate(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_NAME_EMAIL +
+                    " ON " + TABLE_NAME + " (" + COLUMN_NAME + ", " + COLUMN_EMAIL + ")");
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_NAME_ORDER +
+                    " ON " + TABLE_NAME + " (" + COLUMN_NAME + " COLLATE NOCASE, " + COLUMN_ID + ")");
+        }
+    };
+
+    /**
+     * Adds the change log read by the incremental backups: every insert, update and delete of an entry
+     * appends the id of the entry and the kind of change under a sequence number that is never reused.
+     * Also adds a key-value table for the state of the vault that must follow the database file.
+     */
+    private static final Migration MIGRATION_2_3 = new Migration(2, 3) {
+        @Override
+        public void migrate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE IF NOT EXISTS " + CHANGE_LOG_TABLE +
+                    " (seq INTEGER PRIMARY KEY AUTOINCREMENT, record_id INTEGER NOT NULL, op INTEGER NOT NULL)");
+
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS " + CHANGE_LOG_TABLE + "_after_insert AFTER INSERT ON " + TABLE_NAME +
+                    " BEGIN INSERT INTO " + CHANGE_LOG_TABLE + " (record_id, op) VALUES (new." + COLUMN_ID + ", " + BackupRecord.OP_UPSERT + "); END");
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS " + CHANGE_LOG_TABLE + "_after_update AFTER UPDATE ON " + TABLE_NAME +
+                    " BEGIN INSERT INTO " + CHANGE_LOG_TABLE + " (record_id, op) VALUES (new." + COLUMN_ID + ", " + BackupRecord.OP_UPSERT + "); END");
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS " + CHANGE_LOG_TABLE + "_after_delete AFTER DELETE ON " + TABLE_NAME +
+                    " BEGIN INSERT INTO " + CHANGE_LOG_TABLE + " (record_id, op) VALUES (old." + COLUMN_ID + ", " + BackupRecord.OP_DELETE + "); END");
+
+            createMetaTable(db);
+        }
+    };
+
+    /**
+     * Stops logging the updates that only rewrite the encrypted password of entries, like the re-encryption of the
+     * whole vault under a new key: the plain text is unchanged, so a backup or the list has nothing new to read.
+     * Any update of the name or email, which every edit of an entry sets along with the password, is still logged.
+     */
+    private static final Migration MIGRATION_3_4 = new Migration(3, 4) {
+        @Override
+        public void migrate(SQLiteDatabase db) {
+            db.execSQL("DROP TRIGGER IF EXISTS " + CHANGE_LOG_TABLE + "_after_update");
+            db.execSQL("CREATE TRIGGER " + CHANGE_LOG_TABLE + "_after_update AFTER UPDATE OF " + COLUMN_NAME + ", " + COLUMN_EMAIL +
+                    " ON " + TABLE_NAME +
+                    " BEGIN INSERT INTO " + CHANGE_LOG_TABLE + " (record_id, op) VALUES (new." + COLUMN_ID + ", " + BackupRecord.OP_UPSERT + "); END");
+        }
+    };
+
+    /**
+     * Creates the key-value table of the vault state, also used outside the migrations by
+     * {@link DatabaseHelper} to store the data key in a vault that hasn't been migrated yet.
+     */
+    static void createMetaTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + META_TABLE + " (key TEXT PRIMARY KEY, value TEXT)");
+    }
+
+    private static final Migration[] MIGRATIONS = {
+            MIGRATION_1_2,
+            MIGRATION_2_3,
+            MIGRATION_3_4,
+    };
+
+    /**
+     * Applies, in order and in a single transaction, every step between the two versions.
+     *
+     * @param db          The database to upgrade.
+     * @param fromVersion The current version of the database.
+     * @param toVersion   The version to reach.
+     * @throws IllegalStateException If no chain of steps leads from one version to the other. Nothing is changed in that case.
+     * @throws net.sqlcipher.database.SQLiteException If a step fails. Nothing is changed in that case.
+     */
+    static void migrate(SQLiteDatabase db, int fromVersion, int toVersion) {
+        if (fromVersion == toVersion) {
+            return;
+        }
+
+        db.beginTransaction();
+        try {
+            int version = fromVersion;
+
+            while (version != toVersion) {
+                Migration migration = findMigration(version, toVersion);
+                Log.i(TAG, "Migrating the vault from version " + migration.startVersion + " to " + migration.endVersion);
+                migration.migrate(db);
+                version = migration.endVersion;
+            }
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static Migration findMigration(int fromVersion, int toVersion) {
+        for (Migration migration : MIGRATIONS) {
+            if (migration.startVersion == fromVersion && migration.endVersion <= toVersion) {
+                return migration;
+            }
+        }
+        throw new IllegalStateException("No migration from version " + fromVersion + " to " + toVersion);
+    }
+}
@@ -3,15 +3,19 @@ package com.gero.newpass.database;
 import android.annotation.SuppressLint;
 import android.content.Context;
 
+import com.gero.newpass.repository.VaultRepository;
+
 /**
  * class responsible for managing the instances of database helper class.
  */
 public class DatabaseServiceLocator {
     @SuppressLint("StaticFieldLeak")
     private static DatabaseHelper databaseHelper; // Use a static method in the Service Locator class to retrieve the database instance.
+    private static VaultRepository vaultRepository;
 
     public static void init(Context context) {
         databaseHelper = new DatabaseHelper(context);
+        vaultRepository = new VaultRepository(databaseHelper);
     }
 
     public static DatabaseHelper getDatabaseHelper() {
@@ -20,6 +24,19 @@ public class DatabaseServiceLocator {
 
     public static void setDatabaseHelper(DatabaseHelper dbHelper) {
         databaseHelper = dbHelper;
+        vaultRepository = new VaultRepository(dbHelper);
+    }
+
+    public static VaultRepository getVaultRepository() {
+        return vaultRepository;
     }
-}
 
+    /**
+     * Ends the unlocked session: the vault can't be opened again until the user logs in.
+     */
+    public static void lock() {
+        if (vaultRepository != null) {
+            vaultRepository.lock();
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package com.gero.newpass.database;
+
+import android.database.Cursor;
+
+import com.gero.newpass.backup.BackupRecord;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Tells which entries each write changed.
+ * The triggers of the password table already log every insert, update and delete into the change log kept for
+ * the incremental backups, except the updates that only rewrite encrypted passwords; after a write the tracker reads the log past the last change it has seen, folds it
+ * into one {@link Invalidation} and hands it to the observers. An entry whose ID is above the last ID given
+ * before the write has been inserted by it, the other ones existed already.
+ * When the file itself is replaced the observers are told to reload everything instead.
+ * Every method but {@link #addObserver} and {@link #removeObserver} must be called on the write thread.
+ */
+public class InvalidationTracker {
+
+    private static final long UNKNOWN = -1;
+
+    public interface Observer {
+        /**
+         * Called on the write thread right after a write changed the vault, before the next write runs.
+         *
+         * @param invalidation The entries changed by the write.
+         */
+        void onInvalidated(Invalidation invalidation);
+    }
+
+    /**
+     * The entries changed by one write, each listed once under its net effect:
+     * an entry inserted and then deleted by the same write doesn't appear at all.
+     */
+    public static class Invalidation {
+        static final Invalidation ALL = new Invalidation(true, Collections.emptySet(), Collections.emptySet(), Collections.emptySet());
+
+        // The whole vault may have changed, the IDs are empty
+        public final boolean all;
+        public final Set<String> insertedIds;
+        public final Set<String> updatedIds;
+        public final Set<String> deletedIds;
+
+        Invalidation(boolean all, Set<String> insertedIds, Set<String> updatedIds, Set<String> deletedIds) {
+            this.all = all;
+            this.insertedIds = insertedIds;
+            this.updatedIds = updatedIds;
+            this.deletedIds = deletedIds;
+        }
+
+        /**
+         * @return The number of entries changed.
+         */
+        public int size() {
+            return insertedIds.size() + updatedIds.size() + deletedIds.size();
+        }
+    }
+
+    private final DatabaseHelper databaseHelper;
+    private final List<Observer> observers = new CopyOnWriteArrayList<>();
+    private long lastSequence = UNKNOWN;
+    private long lastRowId = UNKNOWN;
+
+    public InvalidationTracker(DatabaseHelper databaseHelper) {
+        this.databaseHelper = databaseHelper;
+    }
+
+    public void addObserver(Observer observer) {
+        observers.add(observer);
+    }
+
+    public void removeObserver(Observer observer) {
+        observers.remove(observer);
+    }
+
+    /**
+     * Remembers where the change log stands before a write, if the vault has been closed since the last one:
+     * the file may have been replaced by a copy in the meantime.
+     */
+    public void beginWrite() {
+        if (lastSequence == UNKNOWN || !databaseHelper.isOpen()) {
+            long[] sequences = databaseHelper.readSequences();
+            lastSequence = sequences[0];
+            lastRowId = sequences[1];
+        }
+    }
+
+    /**
+     * Reads the changes logged by the write that just ran and publishes them, if there are any.
+     */
+    public void endWrite() {
+        if (lastSequence == UNKNOWN) {
+            return;
+        }
+
+        if (observers.isEmpty()) {
+            // Nobody to tell, the position is read again before the next write
+            lastSequence = UNKNOWN;
+            return;
+        }
+
+        long[] sequences = databaseHelper.readSequences();
+
+        if (sequences[0] < lastSequence) {
+            // The log restarted, it isn't the file whose position was remembered
+            invalidateAll();
+            return;
+        }
+
+        if (sequences[0] == lastSequence) {
+            return;
+        }
+
+        Map<String, Integer> lastOps = new LinkedHashMap<>();
+
+        try (Cursor cursor = databaseHelper.readChanges(lastSequence)) {
+            while (cursor.moveToNext()) {
+                lastOps.put(cursor.getString(1), cursor.getInt(2));
+            }
+        }
+
+        Set<String> inserted = new HashSet<>();
+        Set<String> updated = new HashSet<>();
+        Set<String> deleted = new HashSet<>();
+
+        for (Map.Entry<String, Integer> change : lastOps.entrySet()) {
+            boolean isNew = Long.parseLong(change.getKey()) > lastRowId;
+
+            if (change.getValue() == BackupRecord.OP_DELETE) {
+                if (!isNew) {
+                    deleted.add(change.getKey());
+                }
+            } else if (isNew) {
+                inserted.add(change.getKey());
+            } else {
+                updated.add(change.getKey());
+            }
+        }
+
+        lastSequence = sequences[0];
+        lastRowId = sequences[1];
+
+        if (!inserted.isEmpty() || !updated.isEmpty() || !deleted.isEmpty()) {
+            publish(new Invalidation(false, inserted, updated, deleted));
+        }
+    }
+
+    /**
+     * Tells the observers that the whole vault may have changed, after the file has been replaced or rewritten.
+     * The position in the change log is read again before the next write.
+     */
+    public void invalidateAll() {
+        lastSequence = UNKNOWN;
+        lastRowId = UNKNOWN;
+        publish(Invalidation.ALL);
+    }
+
+    /**
+     * Moves past the changes logged so far without publishing them, after a write that rewrote rows without
+     * changing anything the observers show. The position in the change log is read again before the next write.
+     */
+    public void skipChanges() {
+        lastSequence = UNKNOWN;
+        lastRowId = UNKNOWN;
+    }
+
+    private void publish(Invalidation invalidation) {
+        for (Observer observer : observers) {
+            observer.onInvalidated(invalidation);
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.gero.newpass.database;
+
+import net.sqlcipher.database.SQLiteDatabase;
+
+/**
+ * One step of the schema history, bringing a database from {@link #startVersion} to {@link #endVersion}.
+ * Steps are registered in {@link DatabaseMigrations} and must never be edited once released:
+ * a schema change is a new step.
+ */
+public abstract class Migration {
+
+    final int startVersion;
+    final int endVersion;
+
+    protected Migration(int startVersion, int endVersion) {
+        this.startVersion = startVersion;
+        this.endVersion = endVersion;
+    }
+
+    /**
+     * Applies the step. It runs inside the transaction of the whole upgrade, so it must not open or end transactions.
+     *
+     * @param db The database being upgraded, at {@link #startVersion}.
+     * @throws net.sqlcipher.database.SQLiteException If a statement fails, the whole upgrade is rolled back.
+     */
+    public abstract void migrate(SQLiteDatabase db);
+}
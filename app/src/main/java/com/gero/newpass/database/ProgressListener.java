@@ -0,0 +1,14 @@
+package com.gero.newpass.database;
+
+/**
+ * Receives the progress of a long running database operation, such as a bulk rewrite of the passwords.
+ */
+public interface ProgressListener {
+    /**
+     * Called periodically while the operation runs, on the thread running the operation.
+     *
+     * @param done  The amount of work done so far (rows, bytes...).
+     * @param total The total amount of work, or -1 if unknown.
+     */
+    void onProgress(long done, long total);
+}
@@ -0,0 +1,54 @@
+package com.gero.newpass.database;
+
+import net.sqlcipher.database.SQLiteDatabase;
+
+/**
+ * A fixed set of read-only connections on the vault, handed out in turn.
+ * In WAL mode every connection reads its own snapshot without waiting for the writer, so the list paging,
+ * the search and the export run next to a save instead of queuing behind it. A connection serializes
+ * the threads using it, so the pool is sized after the number of reader threads.
+ */
+class ReadConnectionPool {
+
+    interface Opener {
+        /**
+         * Opens a new read-only connection.
+         */
+        SQLiteDatabase open();
+    }
+
+    private final SQLiteDatabase[] connections;
+    private final Opener opener;
+    private int next;
+
+    ReadConnectionPool(int size, Opener opener) {
+        this.connections = new SQLiteDatabase[size];
+        this.opener = opener;
+    }
+
+    /**
+     * Returns the next connection of the pool, opening it if needed. It must not be closed by the caller.
+     */
+    synchronized SQLiteDatabase acquire() {
+        int index = next;
+        next = (next + 1) % connections.length;
+
+        if (connections[index] == null || !connections[index].isOpen()) {
+            connections[index] = opener.open();
+        }
+        return connections[index];
+    }
+
+    /**
+     * Closes every connection, the next {@link #acquire()} opens them again.
+     * None of them may be in use, see {@link DatabaseHelper#close()}.
+     */
+    synchronized void closeAll() {
+        for (int i = 0; i < connections.length; i++) {
+            if (connections[i] != null) {
+                connections[i].close();
+                connections[i] = null;
+            }
+        }
+    }
+}
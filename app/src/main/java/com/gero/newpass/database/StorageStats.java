@@ -0,0 +1,40 @@
+package com.gero.newpass.database;
+
+/**
+ * Size of the vault on disk and how much of it is made of free pages left behind by deletes and updates.
+ */
+public class StorageStats {
+
+    public final long fileBytes;
+    public final long walBytes;
+    public final long pageSize;
+    public final long pageCount;
+    public final long freePages;
+
+    StorageStats(long fileBytes, long walBytes, long pageSize, long pageCount, long freePages) {
+        this.fileBytes = fileBytes;
+        this.walBytes = walBytes;
+        this.pageSize = pageSize;
+        this.pageCount = pageCount;
+        this.freePages = freePages;
+    }
+
+    /**
+     * @return The bytes a compaction would give back to the storage.
+     */
+    public long getReclaimableBytes() {
+        return freePages * pageSize;
+    }
+
+    /**
+     * @return The share of the pages of the file that are free, between 0 and 1.
+     */
+    public double getFreeRatio() {
+        return pageCount == 0 ? 0 : (double) freePages / pageCount;
+    }
+
+    @Override
+    public String toString() {
+        return fileBytes + " bytes (+" + walBytes + " in the log), " + freePages + " of " + pageCount + " pages of " + pageSize + " bytes free";
+    }
+}
@@ -0,0 +1,190 @@
+package com.gero.newpass.encryption;
+
+import android.os.OperationCanceledException;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decrypts the passwords of vault-wide passes on a pool of worker threads, one per core.
+ * Every worker keeps its own cipher (see {@link EncryptionHelper}), so the decryptions don't contend on anything
+ * but the key handle, which is resolved once. Results come back in the order the ciphertexts were given, and an
+ * entry that can't be decrypted only yields null for itself.
+ */
+public class BulkDecryptor {
+
+    private static final String TAG = "BulkDecryptor";
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+    // Decryptions a pipeline lets run ahead of its sink, per worker, before submit() waits for the oldest one
+    private static final int WINDOW_PER_THREAD = 4;
+    private static final long IDLE_THREAD_SECONDS = 30;
+    private static final ExecutorService POOL = createPool();
+
+    /**
+     * Receives the entries of a {@link Pipeline} in the order they were submitted, on the submitting thread.
+     */
+    public interface Sink<T> {
+        /**
+         * @param item     The item submitted with the ciphertext.
+         * @param password The plain text password, or null if there was no ciphertext or it can't be decrypted.
+         * @throws IOException If the entry can't be written. The pipeline stops and the exception reaches the caller.
+         */
+        void accept(T item, @Nullable String password) throws IOException;
+    }
+
+    private BulkDecryptor() {
+    }
+
+    private static ExecutorService createPool() {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(THREADS, THREADS, IDLE_THREAD_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        // Vault-wide passes are rare, the workers don't outlive them
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Decrypts a batch of ciphertexts in parallel and waits for all of them.
+     *
+     * @param ciphertexts The IV, ciphertext and tag of every password, null items are allowed.
+     * @return The plain text passwords in the order of the batch, null where there was no ciphertext or it can't be decrypted.
+     * @throws OperationCanceledException If the calling thread is interrupted while waiting.
+     */
+    public static List<String> decryptAll(List<byte[]> ciphertexts) {
+        List<Future<String>> futures = new ArrayList<>(ciphertexts.size());
+        List<String> passwords = new ArrayList<>(ciphertexts.size());
+
+        try {
+            for (byte[] ciphertext : ciphertexts) {
+                futures.add(decryptAsync(ciphertext));
+            }
+            for (Future<String> future : futures) {
+                passwords.add(await(future));
+            }
+        } finally {
+            cancel(futures);
+        }
+        return passwords;
+    }
+
+    /**
+     * Starts a pipeline decrypting a stream of entries, typically read from a cursor, and handing them to the sink
+     * in order. At most a few entries per core are in flight: once they are, {@link Pipeline#submit} hands the
+     * oldest one to the sink before taking a new one, so the memory used doesn't grow with the vault.
+     *
+     * @param sink Receives the entries, on the thread calling {@link Pipeline#submit} and {@link Pipeline#finish}.
+     * @return The pipeline, to be closed once done with.
+     */
+    public static <T> Pipeline<T> pipeline(Sink<T> sink) {
+        return new Pipeline<>(sink, THREADS * WINDOW_PER_THREAD);
+    }
+
+    public static class Pipeline<T> implements Closeable {
+        private final Sink<T> sink;
+        private final int window;
+        private final ArrayDeque<Pending<T>> pending = new ArrayDeque<>();
+
+        private Pipeline(Sink<T> sink, int window) {
+            this.sink = sink;
+            this.window = window;
+        }
+
+        /**
+         * Queues the decryption of one entry, first handing the oldest one to the sink if too many are in flight.
+         *
+         * @param item       Handed back to the sink with the password.
+         * @param ciphertext The IV, ciphertext and tag of the password, or null if the entry has none.
+         * @throws IOException If the sink fails.
+         * @throws OperationCanceledException If the calling thread is interrupted while waiting.
+         */
+        public void submit(T item, @Nullable byte[] ciphertext) throws IOException {
+            if (pending.size() >= window) {
+                deliverOldest();
+            }
+            pending.add(new Pending<>(item, decryptAsync(ciphertext)));
+        }
+
+        /**
+         * Waits for the entries still in flight and hands them to the sink.
+         *
+         * @throws IOException If the sink fails.
+         * @throws OperationCanceledException If the calling thread is interrupted while waiting.
+         */
+        public void finish() throws IOException {
+            while (!pending.isEmpty()) {
+                deliverOldest();
+            }
+        }
+
+        /**
+         * Drops the entries still in flight, when the pass stops before {@link #finish}.
+         */
+        @Override
+        public void close() {
+            for (Pending<T> entry : pending) {
+                if (entry.password != null) {
+                    entry.password.cancel(false);
+                }
+            }
+            pending.clear();
+        }
+
+        private void deliverOldest() throws IOException {
+            Pending<T> oldest = pending.poll();
+            sink.accept(oldest.item, await(oldest.password));
+        }
+    }
+
+    private static class Pending<T> {
+        final T item;
+        // Null when there is nothing to decrypt
+        final Future<String> password;
+
+        Pending(T item, Future<String> password) {
+            this.item = item;
+            this.password = password;
+        }
+    }
+
+    @Nullable
+    private static Future<String> decryptAsync(@Nullable byte[] ciphertext) {
+        return ciphertext == null ? null : POOL.submit(() -> EncryptionHelper.decrypt(ciphertext));
+    }
+
+    @Nullable
+    private static String await(@Nullable Future<String> password) {
+        if (password == null) {
+            return null;
+        }
+
+        try {
+            return password.get();
+        } catch (ExecutionException e) {
+            // EncryptionHelper.decrypt reports its own failures as null, this is anything else going wrong in the worker
+            Log.e(TAG, "Error during decryption", e.getCause());
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OperationCanceledException("Interrupted while decrypting");
+        }
+    }
+
+    private static void cancel(List<Future<String>> futures) {
+        for (Future<String> future : futures) {
+            if (future != null) {
+                future.cancel(false);
+            }
+        }
+    }
+}
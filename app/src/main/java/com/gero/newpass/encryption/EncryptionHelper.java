@@ -1,20 +1,23 @@
 package com.gero.newpass.encryption;
 
 import android.content.Context;
-import android.security.keystore.KeyGenParameterSpec;
-import android.security.keystore.KeyProperties;
 import android.util.Base64;
 import android.util.Log;
 
 import androidx.security.crypto.EncryptedSharedPreferences;
 import androidx.security.crypto.MasterKey;
 
-import java.security.KeyStore;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.SecureRandom;
 import java.util.Arrays;
 
+import javax.crypto.AEADBadTagException;
 import javax.crypto.Cipher;
-import javax.crypto.KeyGenerator;
-import javax.crypto.SecretKey;
 import javax.crypto.spec.GCMParameterSpec;
 
 
@@ -27,8 +30,22 @@ public class EncryptionHelper {
     private static final String MODE = "AES/GCM/NoPadding";
     // The initialization vector (IV) length for GCM mode.
     private static final int GCM_IV_LENGTH = 12;
+    // The authentication tag length appended to the ciphertext, in bytes.
+    private static final int GCM_TAG_LENGTH = 16;
     // The key alias used to store the AES key in the Android Keystore.
     private static final String KEY_ALIAS = "MyAesKey";
+    // Resolves the key once per session instead of querying the Keystore for every password
+    private static volatile KeyProvider keyProvider = new KeystoreKeyProvider(KEY_ALIAS);
+    // Length of the data key encrypting the passwords, wrapped by the Keystore key and stored in the vault.
+    private static final int DATA_KEY_LENGTH = 32;
+    // The data key of the open vault, null until it is installed and once the vault is locked
+    private static volatile JceKeyProvider dataKeyProvider;
+    // The wrapped form of the installed data key, to tell whether a vault holds the key installed already
+    private static byte[] installedWrappedKey;
+    private static final SecureRandom RANDOM = new SecureRandom();
+    // Cipher instances reused by each thread, see threadCipher()
+    private static final ThreadLocal<Cipher> THREAD_CIPHER = new ThreadLocal<>();
+    private static final ThreadLocal<Cipher> THREAD_DATA_CIPHER = new ThreadLocal<>();
 
     /**
      * Encrypts the given plaintext using AES-GCM algorithm with the key
@@ -40,28 +57,29 @@ public class EncryptionHelper {
      * if an error occurs during encryption.
      */
     public static String encrypt(String plainText) {
-        try {
-            SecretKey secretKey = getOrCreateAESKey();
-
-            if (secretKey == null) {
-                return null;
-            }
-
-            Cipher cipher = Cipher.getInstance(MODE);
-            cipher.init(Cipher.ENCRYPT_MODE, secretKey);
-
-            byte[] encryptedBytes = cipher.doFinal(plainText.getBytes());
-            byte[] iv = cipher.getIV();
+        byte[] ivAndEncryptedBytes = encryptToBytes(plainText);
+        return ivAndEncryptedBytes == null ? null : Base64.encodeToString(ivAndEncryptedBytes, Base64.DEFAULT);
+    }
 
-            byte[] ivAndEncryptedBytes = new byte[iv.length + encryptedBytes.length];
-            System.arraycopy(iv, 0, ivAndEncryptedBytes, 0, iv.length);
-            System.arraycopy(encryptedBytes, 0, ivAndEncryptedBytes, iv.length, encryptedBytes.length);
+    /**
+     * Encrypts the given plaintext like {@link #encrypt(String)}, without the Base64 encoding.
+     *
+     * @param plainText The plaintext string to be encrypted.
+     * @return The IV, the ciphertext and the authentication tag, or null if an error occurs during encryption.
+     */
+    public static byte[] encryptToBytes(String plainText) {
+        byte[] plainBytes = plainText.getBytes(StandardCharsets.UTF_8);
 
-            return Base64.encodeToString(ivAndEncryptedBytes, Base64.DEFAULT);
+        try {
+            byte[] ivAndEncryptedBytes = new byte[encryptedLength(plainBytes.length)];
+            encrypt(plainBytes, 0, plainBytes.length, ivAndEncryptedBytes, 0);
+            return ivAndEncryptedBytes;
 
         } catch (Exception e) {
             Log.e(TAG, "Error during encryption", e);
             return null;
+        } finally {
+            Arrays.fill(plainBytes, (byte) 0);
         }
     }
 
@@ -74,61 +92,370 @@ public class EncryptionHelper {
      * decryption process or if the authentication fails.
      */
     public static String decrypt(String cipherText) {
+        byte[] ivAndEncryptedBytes;
+
+        try {
+            ivAndEncryptedBytes = Base64.decode(cipherText, Base64.DEFAULT);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Error during decryption", e);
+            return null;
+        }
+        return decrypt(ivAndEncryptedBytes);
+    }
+
+    /**
+     * Decrypts the output of {@link #encryptToBytes(String)}.
+     *
+     * @param ivAndEncryptedBytes The IV, the ciphertext and the authentication tag.
+     * @return The decrypted string, or null if an error occurs during the
+     * decryption process or if the authentication fails.
+     */
+    public static String decrypt(byte[] ivAndEncryptedBytes) {
+        byte[] decryptedBytes = null;
+
         try {
-            SecretKey secretKey = getOrCreateAESKey();
+            decryptedBytes = new byte[decryptedLength(ivAndEncryptedBytes.length)];
+            int length = decrypt(ivAndEncryptedBytes, 0, ivAndEncryptedBytes.length, decryptedBytes, 0);
+
+            return new String(decryptedBytes, 0, length, StandardCharsets.UTF_8);
 
-            if (secretKey == null) {
-                return null;
+        } catch (Exception e) {
+            Log.e(TAG, "Error during decryption", e);
+            return null;
+        } finally {
+            if (decryptedBytes != null) {
+                Arrays.fill(decryptedBytes, (byte) 0);
             }
+        }
+    }
 
-            byte[] ivAndEncryptedBytes = Base64.decode(cipherText, Base64.DEFAULT);
+    /**
+     * Decrypts the output of {@link #encryptToBytes(String)} into a char array, so the plaintext never becomes
+     * an immutable string and can be zeroed once used. The intermediate buffers are zeroed before returning.
+     *
+     * @param ivAndEncryptedBytes The IV, the ciphertext and the authentication tag.
+     * @return The decrypted characters, to be zeroed by the caller, or null if an error occurs during the
+     * decryption process or if the authentication fails.
+     */
+    public static char[] decryptToChars(byte[] ivAndEncryptedBytes) {
+        byte[] decryptedBytes = null;
+        CharBuffer decryptedChars = null;
 
-            byte[] iv = Arrays.copyOfRange(ivAndEncryptedBytes, 0, GCM_IV_LENGTH);
-            byte[] encryptedBytes = Arrays.copyOfRange(ivAndEncryptedBytes, GCM_IV_LENGTH, ivAndEncryptedBytes.length);
+        try {
+            decryptedBytes = new byte[decryptedLength(ivAndEncryptedBytes.length)];
+            int length = decrypt(ivAndEncryptedBytes, 0, ivAndEncryptedBytes.length, decryptedBytes, 0);
 
-            Cipher cipher = Cipher.getInstance(MODE);
-            GCMParameterSpec gcmParameterSpec = new GCMParameterSpec(128, iv);
-            cipher.init(Cipher.DECRYPT_MODE, secretKey, gcmParameterSpec);
+            decryptedChars = StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE)
+                    .decode(ByteBuffer.wrap(decryptedBytes, 0, length));
 
-            byte[] decryptedBytes = cipher.doFinal(encryptedBytes);
-            return new String(decryptedBytes);
+            char[] chars = new char[decryptedChars.remaining()];
+            decryptedChars.get(chars);
+            return chars;
 
         } catch (Exception e) {
             Log.e(TAG, "Error during decryption", e);
             return null;
+        } finally {
+            if (decryptedBytes != null) {
+                Arrays.fill(decryptedBytes, (byte) 0);
+            }
+            if (decryptedChars != null) {
+                Arrays.fill(decryptedChars.array(), '\0');
+            }
+        }
+    }
+
+    /**
+     * @param plainLength The length of a plaintext.
+     * @return The length of its encryption: the IV, the ciphertext and the authentication tag.
+     */
+    public static int encryptedLength(int plainLength) {
+        return GCM_IV_LENGTH + plainLength + GCM_TAG_LENGTH;
+    }
+
+    /**
+     * @param encryptedLength The length of an encryption, IV and authentication tag included.
+     * @return The length of its plaintext.
+     * @throws IllegalArgumentException If the encryption is too short to hold an IV and a tag.
+     */
+    public static int decryptedLength(int encryptedLength) {
+        if (encryptedLength < GCM_IV_LENGTH + GCM_TAG_LENGTH) {
+            throw new IllegalArgumentException("Encrypted data too short: " + encryptedLength + " bytes");
         }
+        return encryptedLength - GCM_IV_LENGTH - GCM_TAG_LENGTH;
     }
 
     /**
-     * Retrieves or generates an AES key from the keystore.
+     * Encrypts a range of bytes into a buffer supplied by the caller, with the cipher of the calling thread.
+     * The output is laid out as the Base64 strings of {@link #encrypt(String)}: the IV, the ciphertext and the tag.
+     * The data key of the vault is used once installed, the Keystore key before that.
      *
-     * @return The AES key retrieved from the keystore, or a newly generated key if it doesn't exist in the keystore.
-     * Returns null if an error occurs during the retrieval or generation process.
+     * @param input        The plaintext.
+     * @param inputOffset  The offset of the plaintext in the input.
+     * @param inputLength  The length of the plaintext.
+     * @param output       The buffer receiving the encryption, at least {@link #encryptedLength} bytes after the offset.
+     * @param outputOffset The offset at which the encryption is written.
+     * @return The number of bytes written.
+     * @throws GeneralSecurityException If the key can't be resolved or the encryption fails.
      */
-    private static SecretKey getOrCreateAESKey() {
-        try {
-            KeyStore keyStore = KeyStore.getInstance("AndroidKeyStore");
-            keyStore.load(null);
-
-            if (keyStore.containsAlias(KEY_ALIAS)) {
-                KeyStore.SecretKeyEntry secretKeyEntry = (KeyStore.SecretKeyEntry) keyStore.getEntry(KEY_ALIAS, null);
-                return secretKeyEntry.getSecretKey();
-            } else {
-                KeyGenerator keyGenerator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, "AndroidKeyStore");
-                KeyGenParameterSpec.Builder builder = new KeyGenParameterSpec.Builder(KEY_ALIAS, KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
-                        .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
-                        .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
-                        .setKeySize(128);
-                keyGenerator.init(builder.build());
-
-                return keyGenerator.generateKey();
+    public static int encrypt(byte[] input, int inputOffset, int inputLength, byte[] output, int outputOffset) throws GeneralSecurityException {
+        JceKeyProvider dataKey = dataKeyProvider;
+
+        if (dataKey != null) {
+            return encrypt(dataKey, THREAD_DATA_CIPHER, input, inputOffset, inputLength, output, outputOffset);
+        }
+        return encrypt(keyProvider, THREAD_CIPHER, input, inputOffset, inputLength, output, outputOffset);
+    }
+
+    /**
+     * Decrypts a range of bytes laid out by {@link #encrypt(byte[], int, int, byte[], int)} into a buffer supplied by the caller.
+     * The IV is read in place, nothing is copied out of the input. Data the data key doesn't authenticate was
+     * encrypted with the Keystore key, before the vault had a data key, and is decrypted with it instead.
+     *
+     * @param input        The IV, ciphertext and tag.
+     * @param inputOffset  The offset of the IV in the input.
+     * @param inputLength  The length of the IV, ciphertext and tag.
+     * @param output       The buffer receiving the plaintext, at least {@link #decryptedLength} bytes after the offset.
+     * @param outputOffset The offset at which the plaintext is written.
+     * @return The number of bytes written.
+     * @throws GeneralSecurityException If the key can't be resolved, or the data has been tampered with or encrypted with another key.
+     */
+    public static int decrypt(byte[] input, int inputOffset, int inputLength, byte[] output, int outputOffset) throws GeneralSecurityException {
+        JceKeyProvider dataKey = dataKeyProvider;
+
+        if (dataKey != null) {
+            try {
+                return decrypt(dataKey, THREAD_DATA_CIPHER, input, inputOffset, inputLength, output, outputOffset);
+            } catch (AEADBadTagException e) {
+                // Encrypted with the Keystore key, see reencryptWithDataKey()
             }
-        } catch (Exception e) {
-            Log.e(TAG, "Error getting or creating AES key", e);
+        }
+        return decrypt(keyProvider, THREAD_CIPHER, input, inputOffset, inputLength, output, outputOffset);
+    }
+
+    /**
+     * Encrypts the remaining bytes of the input into the output, with the same layout as {@link #encrypt(byte[], int, int, byte[], int)}.
+     * Both buffers advance by the bytes consumed and written.
+     *
+     * @param input  The plaintext.
+     * @param output The buffer receiving the encryption, with at least {@link #encryptedLength} bytes remaining.
+     * @return The number of bytes written.
+     * @throws GeneralSecurityException If the key can't be resolved or the encryption fails.
+     */
+    public static int encrypt(ByteBuffer input, ByteBuffer output) throws GeneralSecurityException {
+        JceKeyProvider dataKey = dataKeyProvider;
+        Cipher cipher = dataKey != null
+                ? initCipher(dataKey, THREAD_DATA_CIPHER, Cipher.ENCRYPT_MODE, null)
+                : initCipher(keyProvider, THREAD_CIPHER, Cipher.ENCRYPT_MODE, null);
+
+        output.put(cipher.getIV(), 0, GCM_IV_LENGTH);
+        return GCM_IV_LENGTH + cipher.doFinal(input, output);
+    }
+
+    /**
+     * Decrypts the remaining bytes of the input, laid out by {@link #encrypt(ByteBuffer, ByteBuffer)}, into the output.
+     * Both buffers advance by the bytes consumed and written. Falls back on the Keystore key like
+     * {@link #decrypt(byte[], int, int, byte[], int)}.
+     *
+     * @param input  The IV, ciphertext and tag.
+     * @param output The buffer receiving the plaintext, with at least {@link #decryptedLength} bytes remaining.
+     * @return The number of bytes written.
+     * @throws GeneralSecurityException If the key can't be resolved, or the data has been tampered with or encrypted with another key.
+     */
+    public static int decrypt(ByteBuffer input, ByteBuffer output) throws GeneralSecurityException {
+        GCMParameterSpec spec;
+
+        if (input.hasArray()) {
+            spec = new GCMParameterSpec(GCM_TAG_LENGTH * 8, input.array(), input.arrayOffset() + input.position(), GCM_IV_LENGTH);
+            input.position(input.position() + GCM_IV_LENGTH);
+        } else {
+            byte[] iv = new byte[GCM_IV_LENGTH];
+            input.get(iv);
+            spec = new GCMParameterSpec(GCM_TAG_LENGTH * 8, iv);
+        }
+
+        JceKeyProvider dataKey = dataKeyProvider;
+
+        if (dataKey != null) {
+            int inputPosition = input.position();
+            int outputPosition = output.position();
+
+            try {
+                return initCipher(dataKey, THREAD_DATA_CIPHER, Cipher.DECRYPT_MODE, spec).doFinal(input, output);
+            } catch (AEADBadTagException e) {
+                input.position(inputPosition);
+                output.position(outputPosition);
+            }
+        }
+        return initCipher(keyProvider, THREAD_CIPHER, Cipher.DECRYPT_MODE, spec).doFinal(input, output);
+    }
+
+    private static int encrypt(KeyProvider provider, ThreadLocal<Cipher> threadCipher,
+                               byte[] input, int inputOffset, int inputLength, byte[] output, int outputOffset) throws GeneralSecurityException {
+        Cipher cipher = initCipher(provider, threadCipher, Cipher.ENCRYPT_MODE, null);
+        // The cipher picks the IV itself (the Keystore doesn't accept one), it is only known once the cipher is initialized
+        byte[] iv = cipher.getIV();
+
+        System.arraycopy(iv, 0, output, outputOffset, GCM_IV_LENGTH);
+        return GCM_IV_LENGTH + cipher.doFinal(input, inputOffset, inputLength, output, outputOffset + GCM_IV_LENGTH);
+    }
+
+    private static int decrypt(KeyProvider provider, ThreadLocal<Cipher> threadCipher,
+                               byte[] input, int inputOffset, int inputLength, byte[] output, int outputOffset) throws GeneralSecurityException {
+        Cipher cipher = initCipher(provider, threadCipher, Cipher.DECRYPT_MODE, new GCMParameterSpec(GCM_TAG_LENGTH * 8, input, inputOffset, GCM_IV_LENGTH));
+        return cipher.doFinal(input, inputOffset + GCM_IV_LENGTH, inputLength - GCM_IV_LENGTH, output, outputOffset);
+    }
+
+    /**
+     * Initializes the cipher of the calling thread for the given key. If the key is rejected, the cached key handle
+     * may point to a key the Keystore dropped, or the cipher may be bound to the provider of a previous key: both are
+     * resolved again once. The data key and the Keystore key have a cipher each, as a cipher stays bound to the
+     * provider of the first key it was initialized with.
+     */
+    private static Cipher initCipher(KeyProvider provider, ThreadLocal<Cipher> threadCipher, int mode, GCMParameterSpec spec) throws GeneralSecurityException {
+        try {
+            Cipher cipher = threadCipher(threadCipher);
+            cipher.init(mode, provider.getKey(), spec);
+            return cipher;
+        } catch (InvalidKeyException e) {
+            provider.invalidate();
+            threadCipher.remove();
+        }
+
+        Cipher cipher = threadCipher(threadCipher);
+        cipher.init(mode, provider.getKey(), spec);
+        return cipher;
+    }
+
+    /**
+     * Returns the cipher of the calling thread, created on its first use. A cipher is re-initialized for every
+     * operation anyway, so keeping one per thread only spares the provider lookup of {@link Cipher#getInstance}.
+     */
+    private static Cipher threadCipher(ThreadLocal<Cipher> threadCipher) throws GeneralSecurityException {
+        Cipher cipher = threadCipher.get();
+
+        if (cipher == null) {
+            cipher = Cipher.getInstance(MODE);
+            threadCipher.set(cipher);
+        }
+        return cipher;
+    }
+
+    /**
+     * Creates a new data key for a vault that has none, wrapped by the Keystore key. It isn't installed:
+     * the caller stores it in the vault first, then installs it with {@link #installDataKey}.
+     *
+     * @return The wrapped data key: the IV, the encrypted key and the tag.
+     * @throws GeneralSecurityException If the Keystore key can't be resolved or the key can't be wrapped.
+     */
+    public static byte[] newWrappedDataKey() throws GeneralSecurityException {
+        byte[] rawKey = new byte[DATA_KEY_LENGTH];
+        byte[] wrappedKey = new byte[encryptedLength(DATA_KEY_LENGTH)];
+
+        try {
+            RANDOM.nextBytes(rawKey);
+            encrypt(keyProvider, THREAD_CIPHER, rawKey, 0, rawKey.length, wrappedKey, 0);
+            return wrappedKey;
+        } finally {
+            Arrays.fill(rawKey, (byte) 0);
+        }
+    }
+
+    /**
+     * Unwraps the data key of the vault with the Keystore key, the only Keystore operation of the session once done:
+     * the passwords are then encrypted and decrypted in process. Does nothing if this key is installed already.
+     * Another vault's key is dropped first, so a key that fails to unwrap leaves none installed.
+     *
+     * @param wrappedKey The data key stored in the vault, as returned by {@link #newWrappedDataKey}.
+     * @throws GeneralSecurityException If the Keystore key can't be resolved or doesn't authenticate the data key.
+     */
+    public static synchronized void installDataKey(byte[] wrappedKey) throws GeneralSecurityException {
+        if (dataKeyProvider != null && Arrays.equals(wrappedKey, installedWrappedKey)) {
+            return;
+        }
+        clearDataKey();
+
+        byte[] rawKey = new byte[decryptedLength(wrappedKey.length)];
+
+        try {
+            decrypt(keyProvider, THREAD_CIPHER, wrappedKey, 0, wrappedKey.length, rawKey, 0);
+            dataKeyProvider = new JceKeyProvider(rawKey);
+            installedWrappedKey = wrappedKey.clone();
+        } finally {
+            Arrays.fill(rawKey, (byte) 0);
+        }
+    }
+
+    /**
+     * Zeroes the data key, until the next call to {@link #installDataKey}.
+     */
+    public static synchronized void clearDataKey() {
+        if (dataKeyProvider != null) {
+            dataKeyProvider.destroy();
+        }
+        dataKeyProvider = null;
+        installedWrappedKey = null;
+    }
+
+    /**
+     * @return Whether a data key is installed, so new encryptions no longer involve the Keystore.
+     */
+    public static boolean hasDataKey() {
+        return dataKeyProvider != null;
+    }
+
+    /**
+     * Re-encrypts with the data key a password encrypted with the Keystore key directly, before the vault had a data key.
+     *
+     * @param ivAndEncryptedBytes The IV, ciphertext and tag of the password.
+     * @return The password encrypted with the data key, or null if it already is.
+     * @throws GeneralSecurityException If no data key is installed, or the password can't be decrypted with either key.
+     */
+    public static byte[] reencryptWithDataKey(byte[] ivAndEncryptedBytes) throws GeneralSecurityException {
+        JceKeyProvider dataKey = dataKeyProvider;
+
+        if (dataKey == null) {
+            throw new GeneralSecurityException("No data key installed");
+        }
+
+        byte[] plainBytes = new byte[decryptedLength(ivAndEncryptedBytes.length)];
+
+        try {
+            decrypt(dataKey, THREAD_DATA_CIPHER, ivAndEncryptedBytes, 0, ivAndEncryptedBytes.length, plainBytes, 0);
             return null;
+        } catch (AEADBadTagException e) {
+            int length = decrypt(keyProvider, THREAD_CIPHER, ivAndEncryptedBytes, 0, ivAndEncryptedBytes.length, plainBytes, 0);
+            byte[] reencrypted = new byte[encryptedLength(length)];
+
+            encrypt(dataKey, THREAD_DATA_CIPHER, plainBytes, 0, length, reencrypted, 0);
+            return reencrypted;
+        } finally {
+            Arrays.fill(plainBytes, (byte) 0);
         }
     }
 
+    /**
+     * Replaces the source of the Keystore key, e.g. with a {@link JceKeyProvider} where there is no Android Keystore.
+     * The data key wrapped by the previous one is dropped.
+     *
+     * @param provider The new source of the key.
+     */
+    public static void setKeyProvider(KeyProvider provider) {
+        keyProvider = provider;
+        clearDataKey();
+    }
+
+    /**
+     * Drops the cached Keystore key handle and zeroes the data key, so the next encryption or decryption resolves
+     * them again. Called when the vault is locked and whenever the key changes.
+     */
+    public static void invalidateKey() {
+        keyProvider.invalidate();
+        clearDataKey();
+    }
+
     public static synchronized EncryptedSharedPreferences getEncryptedSharedPreferences(Context context) {
         if (encryptedSharedPreferences == null) {
             try {
@@ -0,0 +1,63 @@
+package com.gero.newpass.encryption;
+
+import java.security.InvalidKeyException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Key held in memory by the plain JCE: the data key of the vault once unwrapped, and the only key in host-side tests
+ * and any environment without the Android Keystore.
+ */
+public class JceKeyProvider implements KeyProvider {
+
+    private static final String ALGORITHM = "AES";
+    private static final int KEY_LENGTH = 16;
+
+    private final byte[] rawKey;
+    private SecretKey key;
+    private boolean destroyed;
+
+    /**
+     * Uses a random key, kept for the lifetime of the provider.
+     */
+    public JceKeyProvider() {
+        this.rawKey = new byte[KEY_LENGTH];
+        new SecureRandom().nextBytes(rawKey);
+    }
+
+    /**
+     * @param rawKey The AES key to use, copied.
+     */
+    public JceKeyProvider(byte[] rawKey) {
+        this.rawKey = rawKey.clone();
+    }
+
+    @Override
+    public synchronized SecretKey getKey() throws InvalidKeyException {
+        if (destroyed) {
+            throw new InvalidKeyException("The key has been destroyed");
+        }
+        if (key == null) {
+            key = new SecretKeySpec(rawKey, ALGORITHM);
+        }
+        return key;
+    }
+
+    @Override
+    public synchronized void invalidate() {
+        key = null;
+    }
+
+    /**
+     * Zeroes the copy of the key held by this provider, which can't be used anymore.
+     * The copy held by the {@link SecretKeySpec} handed out so far is left to the garbage collector.
+     */
+    public synchronized void destroy() {
+        Arrays.fill(rawKey, (byte) 0);
+        key = null;
+        destroyed = true;
+    }
+}
@@ -0,0 +1,77 @@
+package com.gero.newpass.encryption;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * PBKDF2 with HMAC-SHA512, the key derivation function of SQLCipher 4.
+ * Implemented on top of {@link Mac} because the "PBKDF2WithHmacSHA512" key factory only exists from API 26.
+ */
+public class KeyDerivation {
+
+    private static final String HMAC = "HmacSHA512";
+
+    /**
+     * Derives a key from a password as defined by RFC 8018, the password being encoded in UTF-8.
+     *
+     * @param password   The password, it is not modified.
+     * @param salt       The salt.
+     * @param iterations The number of iterations.
+     * @param keyLength  The length of the derived key, in bytes.
+     * @return The derived key.
+     * @throws GeneralSecurityException If HMAC-SHA512 is not available.
+     */
+    public static byte[] pbkdf2HmacSha512(char[] password, byte[] salt, int iterations, int keyLength) throws GeneralSecurityException {
+        byte[] passwordBytes = toUtf8(password);
+
+        try {
+            Mac mac = Mac.getInstance(HMAC);
+            mac.init(new SecretKeySpec(passwordBytes, HMAC));
+
+            int blockLength = mac.getMacLength();
+            byte[] key = new byte[keyLength];
+            byte[] u = new byte[blockLength];
+            byte[] block = new byte[blockLength];
+
+            for (int blockIndex = 1, offset = 0; offset < keyLength; blockIndex++, offset += blockLength) {
+                // U1 = HMAC(password, salt || INT(blockIndex))
+                mac.update(salt);
+                mac.update(new byte[]{(byte) (blockIndex >>> 24), (byte) (blockIndex >>> 16), (byte) (blockIndex >>> 8), (byte) blockIndex});
+                mac.doFinal(u, 0);
+                System.arraycopy(u, 0, block, 0, blockLength);
+
+                // Un = HMAC(password, Un-1), the block is U1 ^ U2 ^ ... ^ Uc
+                for (int i = 1; i < iterations; i++) {
+                    mac.update(u);
+                    mac.doFinal(u, 0);
+
+                    for (int j = 0; j < blockLength; j++) {
+                        block[j] ^= u[j];
+                    }
+                }
+
+                System.arraycopy(block, 0, key, offset, Math.min(blockLength, keyLength - offset));
+            }
+
+            Arrays.fill(u, (byte) 0);
+            Arrays.fill(block, (byte) 0);
+            return key;
+        } finally {
+            Arrays.fill(passwordBytes, (byte) 0);
+        }
+    }
+
+    private static byte[] toUtf8(char[] password) {
+        ByteBuffer buffer = StandardCharsets.UTF_8.encode(CharBuffer.wrap(password));
+        byte[] bytes = Arrays.copyOfRange(buffer.array(), buffer.position(), buffer.limit());
+
+        Arrays.fill(buffer.array(), (byte) 0);
+        return bytes;
+    }
+}
@@ -0,0 +1,26 @@
+package com.gero.newpass.encryption;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Source of the AES key encrypting the passwords of the entries.
+ * Resolving the key can be costly (the Android Keystore is a binder call away), so implementations
+ * resolve it once and hand out the same handle until they are invalidated.
+ */
+public interface KeyProvider {
+
+    /**
+     * Returns the key, resolving it on the first call after creation or invalidation.
+     *
+     * @return The AES key.
+     * @throws GeneralSecurityException If the key can't be resolved or created.
+     */
+    SecretKey getKey() throws GeneralSecurityException;
+
+    /**
+     * Drops the cached key, e.g. when the vault is locked or the key is rotated. The next call to {@link #getKey()} resolves it again.
+     */
+    void invalidate();
+}
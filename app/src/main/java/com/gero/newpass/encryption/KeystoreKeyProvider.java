@@ -0,0 +1,79 @@
+package com.gero.newpass.encryption;
+
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+import android.util.Log;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+/**
+ * Key kept in the Android Keystore under an alias, created on first use.
+ * The handle returned by the Keystore only references the key material held by the system, so caching it
+ * for the whole session keeps it out of the process all the same, while sparing a Keystore lookup per password.
+ */
+public class KeystoreKeyProvider implements KeyProvider {
+
+    private static final String TAG = "KeystoreKeyProvider";
+    private static final String KEYSTORE = "AndroidKeyStore";
+
+    private final String alias;
+    private volatile SecretKey key;
+
+    /**
+     * @param alias The alias of the key in the Android Keystore.
+     */
+    public KeystoreKeyProvider(String alias) {
+        this.alias = alias;
+    }
+
+    @Override
+    public SecretKey getKey() throws GeneralSecurityException {
+        SecretKey cached = key;
+
+        if (cached != null) {
+            return cached;
+        }
+
+        synchronized (this) {
+            if (key == null) {
+                key = loadOrCreate();
+            }
+            return key;
+        }
+    }
+
+    @Override
+    public void invalidate() {
+        key = null;
+    }
+
+    private SecretKey loadOrCreate() throws GeneralSecurityException {
+        KeyStore keyStore = KeyStore.getInstance(KEYSTORE);
+
+        try {
+            keyStore.load(null);
+        } catch (IOException e) {
+            throw new GeneralSecurityException("Could not load the Android Keystore", e);
+        }
+
+        if (keyStore.containsAlias(alias)) {
+            KeyStore.SecretKeyEntry secretKeyEntry = (KeyStore.SecretKeyEntry) keyStore.getEntry(alias, null);
+            return secretKeyEntry.getSecretKey();
+        }
+
+        Log.i(TAG, "Creating the key " + alias);
+        KeyGenerator keyGenerator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, KEYSTORE);
+        KeyGenParameterSpec.Builder builder = new KeyGenParameterSpec.Builder(alias, KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                .setKeySize(128);
+        keyGenerator.init(builder.build());
+
+        return keyGenerator.generateKey();
+    }
+}
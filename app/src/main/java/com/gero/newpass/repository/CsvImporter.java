@@ -0,0 +1,223 @@
+package com.gero.newpass.repository;
+
+import android.os.CancellationSignal;
+
+import androidx.annotation.Nullable;
+
+import com.gero.newpass.database.BatchInsertResult;
+import com.gero.newpass.model.UserData;
+import com.gero.newpass.utilities.CsvReader;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Imports the CSV exports of other password managers, recognized by their header line.
+ * Rows are read one at a time and handed to the database in batches, so a vault of any size
+ * is imported with a constant amount of memory and one transaction per batch.
+ */
+public class CsvImporter {
+
+    static final int BATCH_SIZE = 500;
+
+    /**
+     * The layouts of the supported exports: the columns holding the name, the username, the password and the address
+     * of an entry, as they appear in the header line (lower-cased).
+     */
+    public enum Format {
+        // name,url,username,password,note
+        CHROME("name", "username", "password", "url", null),
+        // url,username,password,httpRealm,formActionOrigin,guid,timeCreated,timeLastUsed,timePasswordChanged
+        FIREFOX(null, "username", "password", "url", null),
+        // folder,favorite,type,name,notes,fields,reprompt,login_uri,login_username,login_password,login_totp
+        BITWARDEN("name", "login_username", "login_password", "login_uri", "type"),
+        // Group,Title,Username,Password,URL,Notes,TOTP,Icon,Last Modified,Created
+        KEEPASSXC("title", "username", "password", "url", null);
+
+        private final String nameColumn;
+        private final String usernameColumn;
+        private final String passwordColumn;
+        private final String urlColumn;
+        private final String typeColumn;
+
+        Format(String nameColumn, String usernameColumn, String passwordColumn, String urlColumn, String typeColumn) {
+            this.nameColumn = nameColumn;
+            this.usernameColumn = usernameColumn;
+            this.passwordColumn = passwordColumn;
+            this.urlColumn = urlColumn;
+            this.typeColumn = typeColumn;
+        }
+
+        private boolean matches(Map<String, Integer> header) {
+            return (nameColumn == null || header.containsKey(nameColumn))
+                    && header.containsKey(usernameColumn)
+                    && header.containsKey(passwordColumn)
+                    && header.containsKey(urlColumn)
+                    && (typeColumn == null || header.containsKey(typeColumn));
+        }
+
+        /**
+         * Finds the format of a header line. The formats with the most specific columns are tried first.
+         *
+         * @return The format, or null if the header doesn't match any supported export.
+         */
+        static Format detect(Map<String, Integer> header) {
+            for (Format format : new Format[]{BITWARDEN, KEEPASSXC, CHROME, FIREFOX}) {
+                if (format.matches(header)) {
+                    return format;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Receives the batches of entries to insert.
+     */
+    public interface BatchSink {
+        BatchInsertResult insert(List<UserData> batch);
+    }
+
+    /**
+     * What happened to the rows of the file.
+     */
+    public static class Summary {
+        public final Format format;
+        public int added;
+        public int duplicates;
+        public int failed;
+        // Rows that are not logins (Bitwarden notes, cards...) or have no password
+        public int skipped;
+
+        Summary(Format format) {
+            this.format = format;
+        }
+    }
+
+    /**
+     * Thrown when the header of the file doesn't match any supported export.
+     */
+    public static class UnsupportedFormatException extends IOException {
+        UnsupportedFormatException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Reads every row of the CSV file and inserts them batch by batch.
+     *
+     * @param csvReader The reader over the file, positioned on the header line.
+     * @param sink      Inserts each batch, in one transaction.
+     * @param signal    Cancels the import between two batches, the batches already inserted are kept. May be null.
+     * @return The counts of added, duplicate, failed and skipped rows.
+     * @throws IOException If the file can't be read or its format isn't supported.
+     * @throws android.os.OperationCanceledException If the import has been canceled.
+     */
+    public static Summary importFrom(CsvReader csvReader, BatchSink sink, @Nullable CancellationSignal signal) throws IOException {
+        List<String> headerRecord = csvReader.readRecord();
+
+        if (headerRecord == null) {
+            throw new UnsupportedFormatException("Empty file");
+        }
+
+        Map<String, Integer> header = new HashMap<>();
+        for (int i = 0; i < headerRecord.size(); i++) {
+            header.put(headerRecord.get(i).trim().toLowerCase(Locale.ROOT), i);
+        }
+
+        Format format = Format.detect(header);
+        if (format == null) {
+            throw new UnsupportedFormatException("Unsupported header " + headerRecord);
+        }
+
+        Summary summary = new Summary(format);
+        List<UserData> batch = new ArrayList<>(BATCH_SIZE);
+        List<String> record;
+
+        while ((record = csvReader.readRecord()) != null) {
+            UserData entry = toEntry(format, header, record);
+
+            if (entry == null) {
+                summary.skipped++;
+                continue;
+            }
+
+            batch.add(entry);
+            if (batch.size() == BATCH_SIZE) {
+                flush(batch, sink, summary, signal);
+            }
+        }
+
+        flush(batch, sink, summary, signal);
+        return summary;
+    }
+
+    private static void flush(List<UserData> batch, BatchSink sink, Summary summary, @Nullable CancellationSignal signal) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        if (signal != null) {
+            signal.throwIfCanceled();
+        }
+
+        BatchInsertResult result = sink.insert(batch);
+
+        if (result == null) {
+            summary.failed += batch.size();
+        } else {
+            summary.added += result.count(BatchInsertResult.Status.ADDED);
+            summary.duplicates += result.count(BatchInsertResult.Status.DUPLICATE);
+            summary.failed += result.count(BatchInsertResult.Status.FAILED);
+        }
+        batch.clear();
+    }
+
+    /**
+     * Maps a row to an entry: the username becomes the email, and the host of the address stands in for a missing name.
+     *
+     * @return The entry, or null if the row must be skipped.
+     */
+    @Nullable
+    private static UserData toEntry(Format format, Map<String, Integer> header, List<String> record) {
+        if (format.typeColumn != null && !"login".equalsIgnoreCase(field(header, record, format.typeColumn))) {
+            return null;
+        }
+
+        String password = field(header, record, format.passwordColumn);
+        if (password.isEmpty()) {
+            return null;
+        }
+
+        String username = field(header, record, format.usernameColumn);
+        String url = field(header, record, format.urlColumn);
+        String name = format.nameColumn == null ? "" : field(header, record, format.nameColumn).trim();
+
+        if (name.isEmpty()) {
+            String host = hostOf(url);
+            name = host != null ? host : !url.isEmpty() ? url : username;
+        }
+
+        return new UserData(null, name, username, password);
+    }
+
+    // Parsed with java.net.URI rather than android.net.Uri, so the importer runs in the host unit tests
+    @Nullable
+    private static String hostOf(String url) {
+        try {
+            return new URI(url.trim()).getHost();
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+
+    private static String field(Map<String, Integer> header, List<String> record, String column) {
+        Integer index = header.get(column);
+        return index == null || index >= record.size() ? "" : record.get(index);
+    }
+}
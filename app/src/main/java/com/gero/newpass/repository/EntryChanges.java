@@ -0,0 +1,44 @@
+package com.gero.newpass.repository;
+
+import com.gero.newpass.model.UserData;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The entries changed by one write, resolved for the list ordered by name: the inserted and updated entries come
+ * with their new values and position, the deleted ones with their ID only.
+ */
+public class EntryChanges {
+
+    static final EntryChanges RELOAD_ALL = new EntryChanges(true, Collections.emptyList(), Collections.emptySet());
+
+    /**
+     * An inserted or updated entry, without its password.
+     */
+    public static class Row {
+        public final UserData entry;
+        // Position of the entry in the list once the write is applied
+        public final int position;
+        public final boolean inserted;
+
+        Row(UserData entry, int position, boolean inserted) {
+            this.entry = entry;
+            this.position = position;
+            this.inserted = inserted;
+        }
+    }
+
+    // Too much changed to be applied row by row, the list has to be reloaded
+    public final boolean reloadAll;
+    // Ordered by position
+    public final List<Row> rows;
+    public final Set<String> deletedIds;
+
+    EntryChanges(boolean reloadAll, List<Row> rows, Set<String> deletedIds) {
+        this.reloadAll = reloadAll;
+        this.rows = rows;
+        this.deletedIds = deletedIds;
+    }
+}
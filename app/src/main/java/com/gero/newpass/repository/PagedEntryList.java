@@ -0,0 +1,362 @@
+package com.gero.newpass.repository;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.SparseArray;
+
+import androidx.annotation.Nullable;
+import androidx.recyclerview.widget.ListUpdateCallback;
+
+import com.gero.newpass.model.UserData;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Read-only list over the whole vault that only keeps a bounded window of pages in memory.
+ * Missing positions return null (a placeholder) and trigger the load of their page in the background;
+ * the listener is told once the rows are available so the adapter can bind them.
+ * Pages are read by keyset (name, then id), so the end of every page loaded so far is remembered
+ * to be able to load the following one again after it has been evicted.
+ * The changes of the writes are applied in place through {@link #apply}, shifting the pages in memory
+ * and telling the listener which positions were inserted, removed or changed.
+ * All the methods must be called on the main thread.
+ */
+public class PagedEntryList extends AbstractList<UserData> {
+
+    public static final int PAGE_SIZE = 50;
+    private static final int MAX_PAGES_IN_MEMORY = 6;
+    private static final int PREFETCH_DISTANCE = 15;
+
+    private final VaultRepository vaultRepository;
+    private int size;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Map<Integer, List<UserData>> pages = new LinkedHashMap<Integer, List<UserData>>(MAX_PAGES_IN_MEMORY, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, List<UserData>> eldest) {
+            return size() > MAX_PAGES_IN_MEMORY;
+        }
+    };
+    private final SparseArray<UserData> pageEnds = new SparseArray<>();
+    private final Set<Integer> loadingPages = new HashSet<>();
+    private final Set<Integer> wantedPages = new HashSet<>();
+    // Pages in memory missing their last rows since a removal, reloaded in the background
+    private final Set<Integer> stalePages = new HashSet<>();
+    // Bumped by every change applied: the pages requested before may hold outdated or shifted rows
+    private int generation;
+    @Nullable
+    private ListUpdateCallback listener;
+
+    PagedEntryList(VaultRepository vaultRepository, int size, List<UserData> firstPage) {
+        this.vaultRepository = vaultRepository;
+        this.size = size;
+        storePage(0, firstPage);
+    }
+
+    /**
+     * @param listener Told about the positions loaded (as changed), inserted and removed, e.g. an AdapterListUpdateCallback.
+     */
+    public void setListener(@Nullable ListUpdateCallback listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the entry at the given position, or null if its page is not in memory yet.
+     * In that case the page is loaded in the background and the listener is notified when it is ready.
+     */
+    @Override
+    @Nullable
+    public UserData get(int position) {
+        if (position < 0 || position >= size) {
+            throw new IndexOutOfBoundsException("Position " + position + ", size " + size);
+        }
+
+        int pageIndex = position / PAGE_SIZE;
+        int offset = position % PAGE_SIZE;
+
+        // Start loading the next page before the user reaches it
+        if (offset >= PAGE_SIZE - PREFETCH_DISTANCE && (pageIndex + 1) * PAGE_SIZE < size) {
+            requestPage(pageIndex + 1);
+        }
+
+        List<UserData> page = pages.get(pageIndex);
+
+        if (page == null) {
+            requestPage(pageIndex);
+            return null;
+        }
+
+        // The table may have shrunk since the count was taken
+        return offset < page.size() ? page.get(offset) : null;
+    }
+
+    /**
+     * Applies the changes of a write to the pages in memory and tells the listener about the affected positions only.
+     * The deleted and updated entries must be in memory for their previous position to be known.
+     *
+     * @param changes The entries changed by the write.
+     * @return False if the changes can't be applied in place and the list must be reloaded instead:
+     *         a reload was asked for, or a deleted or updated entry isn't in memory.
+     */
+    public boolean apply(EntryChanges changes) {
+        if (changes.reloadAll) {
+            return false;
+        }
+
+        // Every previous position must be known before anything is touched
+        List<Integer> removals = new ArrayList<>();
+        boolean moved = !changes.deletedIds.isEmpty();
+
+        for (String rowId : changes.deletedIds) {
+            int position = indexOfLoaded(rowId);
+
+            if (position == -1) {
+                return false;
+            }
+            removals.add(position);
+        }
+
+        for (EntryChanges.Row row : changes.rows) {
+            if (row.inserted) {
+                moved = true;
+                continue;
+            }
+
+            int position = indexOfLoaded(row.entry.getId());
+
+            if (position == -1) {
+                return false;
+            }
+            removals.add(position);
+            moved |= position != row.position;
+        }
+
+        if (!moved) {
+            // Only values changed, every row stays where it is
+            invalidateLoads();
+
+            for (EntryChanges.Row row : changes.rows) {
+                int pageIndex = row.position / PAGE_SIZE;
+                List<UserData> rows = pages.get(pageIndex);
+
+                rows.set(row.position % PAGE_SIZE, row.entry);
+                // The name may have changed without moving the row, the keyset of the next page follows it
+                storePage(pageIndex, rows);
+
+                if (listener != null) {
+                    listener.onChanged(row.position, 1, null);
+                }
+            }
+            return true;
+        }
+
+        // Removing from the bottom up and inserting from the top down keeps the other positions valid
+        Collections.sort(removals, Collections.reverseOrder());
+
+        for (int position : removals) {
+            removeAt(position);
+        }
+        for (EntryChanges.Row row : changes.rows) {
+            insertAt(row.position, row.entry);
+        }
+        return true;
+    }
+
+    /**
+     * @return The position of the entry with the given id, or -1 if it is not in a page in memory.
+     */
+    private int indexOfLoaded(String rowId) {
+        for (Map.Entry<Integer, List<UserData>> page : pages.entrySet()) {
+            List<UserData> rows = page.getValue();
+
+            for (int offset = 0; offset < rows.size(); offset++) {
+                if (rows.get(offset).getId().equals(rowId)) {
+                    return page.getKey() * PAGE_SIZE + offset;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Removes the row at a position of a page in memory. The following pages in memory, up to the first missing one,
+     * move up by one row; the last of them lacks the row that should move into it and is reloaded,
+     * the pages past the missing one are dropped since their rows have shifted.
+     */
+    private void removeAt(int position) {
+        invalidateLoads();
+
+        int firstPage = position / PAGE_SIZE;
+        int lastPage = lastContiguousPage(firstPage);
+        boolean reachesEnd = (lastPage + 1) * PAGE_SIZE >= size;
+        List<UserData> rows = takePagesFrom(firstPage, lastPage);
+
+        rows.remove(position - firstPage * PAGE_SIZE);
+        size--;
+        storeRows(firstPage, rows);
+
+        if (!reachesEnd) {
+            pageEnds.remove(lastPage);
+            stalePages.add(lastPage);
+            requestPage(lastPage);
+        }
+
+        if (listener != null) {
+            listener.onRemoved(position, 1);
+        }
+    }
+
+    /**
+     * Inserts a row at a position. The following pages in memory, up to the first missing one, move down by one row,
+     * the row pushed out of the last of them is dropped; the pages past the missing one are dropped since their rows have shifted.
+     */
+    private void insertAt(int position, UserData entry) {
+        invalidateLoads();
+
+        int firstPage = position / PAGE_SIZE;
+        int offset = position - firstPage * PAGE_SIZE;
+        List<UserData> firstRows = pages.get(firstPage);
+
+        if (firstRows == null || offset > firstRows.size()) {
+            // Not displayed, the pages from here on are read again when they are
+            takePagesFrom(firstPage, Integer.MAX_VALUE);
+        } else {
+            int lastPage = lastContiguousPage(firstPage);
+            boolean reachesEnd = (lastPage + 1) * PAGE_SIZE >= size;
+            List<UserData> rows = takePagesFrom(firstPage, lastPage);
+
+            rows.add(offset, entry);
+            if (!reachesEnd) {
+                rows.remove(rows.size() - 1);
+            }
+            storeRows(firstPage, rows);
+        }
+        size++;
+
+        if (listener != null) {
+            listener.onInserted(position, 1);
+        }
+    }
+
+    private int lastContiguousPage(int firstPage) {
+        int lastPage = firstPage;
+
+        while (pages.containsKey(lastPage + 1)) {
+            lastPage++;
+        }
+        return lastPage;
+    }
+
+    /**
+     * Drops every page from the first one, along with their keysets, and returns the rows of the pages up to the last one.
+     */
+    private List<UserData> takePagesFrom(int firstPage, int lastPage) {
+        List<UserData> rows = new ArrayList<>();
+
+        for (int pageIndex = firstPage; pageIndex <= lastPage && pages.containsKey(pageIndex); pageIndex++) {
+            rows.addAll(pages.get(pageIndex));
+        }
+
+        for (Integer pageIndex : new ArrayList<>(pages.keySet())) {
+            if (pageIndex >= firstPage) {
+                pages.remove(pageIndex);
+                stalePages.remove(pageIndex);
+            }
+        }
+
+        for (int i = pageEnds.size() - 1; i >= 0; i--) {
+            if (pageEnds.keyAt(i) >= firstPage) {
+                pageEnds.removeAt(i);
+            }
+        }
+        return rows;
+    }
+
+    private void storeRows(int firstPage, List<UserData> rows) {
+        for (int start = 0; start < rows.size(); start += PAGE_SIZE) {
+            storePage(firstPage + start / PAGE_SIZE, new ArrayList<>(rows.subList(start, Math.min(start + PAGE_SIZE, rows.size()))));
+        }
+    }
+
+    /**
+     * Forgets the pages being loaded: their rows may predate the change being applied. They are requested again when they arrive.
+     */
+    private void invalidateLoads() {
+        generation++;
+        loadingPages.clear();
+        wantedPages.clear();
+    }
+
+    private void requestPage(int pageIndex) {
+        if (pageIndex * PAGE_SIZE >= size || pages.containsKey(pageIndex) && !stalePages.contains(pageIndex)
+                || loadingPages.contains(pageIndex)) {
+            return;
+        }
+
+        UserData anchor = null;
+
+        if (pageIndex > 0) {
+            anchor = pageEnds.get(pageIndex - 1);
+
+            if (anchor == null) {
+                // The keyset of this page is not known yet, walk there from the previous page
+                wantedPages.add(pageIndex);
+                requestPage(pageIndex - 1);
+                return;
+            }
+        }
+
+        loadingPages.add(pageIndex);
+        wantedPages.remove(pageIndex);
+
+        String afterName = anchor == null ? null : anchor.getName();
+        long afterId = anchor == null ? 0 : Long.parseLong(anchor.getId());
+
+        int requestGeneration = generation;
+
+        vaultRepository.readPage(afterName, afterId, PAGE_SIZE, rows -> mainHandler.post(() -> {
+            if (requestGeneration != generation) {
+                // Read before a change was applied, the rows may be outdated or shifted
+                requestPage(pageIndex);
+                return;
+            }
+
+            loadingPages.remove(pageIndex);
+
+            if (rows == null) {
+                // Left unloaded, it is requested again the next time one of its rows is bound
+                return;
+            }
+
+            stalePages.remove(pageIndex);
+            storePage(pageIndex, rows);
+
+            if (listener != null && !rows.isEmpty()) {
+                listener.onChanged(pageIndex * PAGE_SIZE, rows.size(), null);
+            }
+
+            if (wantedPages.contains(pageIndex + 1)) {
+                requestPage(pageIndex + 1);
+            }
+        }));
+    }
+
+    private void storePage(int pageIndex, List<UserData> rows) {
+        pages.put(pageIndex, rows);
+
+        if (!rows.isEmpty() && !stalePages.contains(pageIndex)) {
+            pageEnds.put(pageIndex, rows.get(rows.size() - 1));
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.gero.newpass.repository;
+
+import android.os.SystemClock;
+
+import androidx.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the passwords decrypted during the session, by entry ID, so reopening an entry doesn't decrypt it again.
+ * The passwords are held as char arrays that are zeroed as soon as they leave the cache: when they expire,
+ * when the least recently used one is pushed out by a new one, when their entry changes and when the vault is locked.
+ * No password stays in the cache longer than the time to live, whether it is read again or not.
+ * All methods are thread-safe. The arrays going in and out are copies, the caller keeps ownership of its own.
+ */
+class SecretCache {
+
+    private static class Secret {
+        final char[] value;
+        final long expiresAt;
+
+        Secret(char[] value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final long timeToLiveMillis;
+    private final int maxEntries;
+    // In access order, the eldest entry is the least recently used
+    private final LinkedHashMap<String, Secret> secrets;
+    // Incremented whenever a secret is removed because its entry changed, see put()
+    private long invalidations;
+
+    /**
+     * @param timeToLiveMillis How long a password stays in the cache after it has been put.
+     * @param maxEntries       The number of passwords above which the least recently used one is dropped.
+     */
+    SecretCache(long timeToLiveMillis, int maxEntries) {
+        this.timeToLiveMillis = timeToLiveMillis;
+        this.maxEntries = maxEntries;
+        this.secrets = new LinkedHashMap<String, Secret>(maxEntries, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Secret> eldest) {
+                if (size() <= SecretCache.this.maxEntries) {
+                    return false;
+                }
+                wipe(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    long getTimeToLiveMillis() {
+        return timeToLiveMillis;
+    }
+
+    /**
+     * @param id The ID of the entry.
+     * @return A copy of the cached password, to be zeroed by the caller, or null if it isn't cached or has expired.
+     */
+    @Nullable
+    synchronized char[] get(String id) {
+        Secret secret = secrets.get(id);
+
+        if (secret == null) {
+            return null;
+        }
+        if (secret.expiresAt <= SystemClock.elapsedRealtime()) {
+            wipe(secrets.remove(id));
+            return null;
+        }
+        return secret.value.clone();
+    }
+
+    /**
+     * Returns a token to pass to {@link #put} along with a password read after this call.
+     */
+    synchronized long currentVersion() {
+        return invalidations;
+    }
+
+    /**
+     * Caches a copy of a password, unless an entry has changed since it was read: the password may be stale then.
+     *
+     * @param id       The ID of the entry.
+     * @param password The plain text password.
+     * @param version  The value of {@link #currentVersion} taken before the password was read.
+     */
+    synchronized void put(String id, char[] password, long version) {
+        if (version != invalidations) {
+            return;
+        }
+        wipe(secrets.put(id, new Secret(password.clone(), SystemClock.elapsedRealtime() + timeToLiveMillis)));
+    }
+
+    /**
+     * Drops the password of an entry that has been updated or deleted.
+     */
+    synchronized void remove(String id) {
+        invalidations++;
+        wipe(secrets.remove(id));
+    }
+
+    /**
+     * Drops the passwords that have expired.
+     */
+    synchronized void evictExpired() {
+        long now = SystemClock.elapsedRealtime();
+        Iterator<Secret> iterator = secrets.values().iterator();
+
+        while (iterator.hasNext()) {
+            Secret secret = iterator.next();
+
+            if (secret.expiresAt <= now) {
+                wipe(secret);
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Drops every password, when the vault is locked or replaced.
+     *
+     * @return The number of passwords dropped.
+     */
+    synchronized int clear() {
+        int count = secrets.size();
+
+        invalidations++;
+        for (Secret secret : secrets.values()) {
+            wipe(secret);
+        }
+        secrets.clear();
+        return count;
+    }
+
+    private static void wipe(@Nullable Secret secret) {
+        if (secret != null) {
+            Arrays.fill(secret.value, '\0');
+        }
+    }
+}
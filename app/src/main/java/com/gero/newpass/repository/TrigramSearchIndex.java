@@ -0,0 +1,299 @@
+package com.gero.newpass.repository;
+
+import androidx.annotation.Nullable;
+
+import com.gero.newpass.model.UserData;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * In-memory substring index over the names and emails of the vault.
+ * Every entry gets a slot; for each trigram of its lower-cased "name\nemail" text the slot is appended
+ * to that trigram's posting list. A query intersects the posting lists of its own trigrams and then
+ * checks the few remaining candidates with {@link String#contains}, so it never scans the whole vault.
+ * When a query contains the previous one, only the previous matches are checked again.
+ * Changed entries get a new slot at the end and leave a dead one behind; once a quarter of the slots are dead
+ * or out of the name order, the slots are rebuilt in name order.
+ * Passwords are never stored here.
+ */
+public class TrigramSearchIndex {
+
+    private final List<UserData> entries = new ArrayList<>();
+    private final List<String> texts = new ArrayList<>();
+    private long[] ids = new long[16];
+    private final Map<String, Integer> slotsById = new HashMap<>();
+    private final Map<Long, IntList> postings = new HashMap<>();
+    private boolean sortedBySlot = true;
+    private int staleSlots;
+    private int modificationCount;
+
+    /**
+     * The matches of a query, kept by the caller to narrow down the next query.
+     */
+    public static class Result {
+        private final TrigramSearchIndex index;
+        private final int modificationCount;
+        private final String query;
+        private final int[] slots;
+        private final List<UserData> entries;
+
+        private Result(TrigramSearchIndex index, String query, int[] slots, List<UserData> entries) {
+            this.index = index;
+            this.modificationCount = index.modificationCount;
+            this.query = query;
+            this.slots = slots;
+            this.entries = entries;
+        }
+
+        public String getQuery() {
+            return query;
+        }
+
+        public List<UserData> getEntries() {
+            return entries;
+        }
+    }
+
+    /**
+     * Builds the index from entries already ordered by name.
+     *
+     * @param orderedEntries The entries, their passwords are ignored.
+     */
+    public TrigramSearchIndex(List<UserData> orderedEntries) {
+        for (UserData userData : orderedEntries) {
+            add(userData);
+        }
+    }
+
+    /**
+     * Adds an entry, or replaces it if an entry with the same id is already indexed.
+     *
+     * @param userData The entry to index, its password is ignored.
+     */
+    public synchronized void put(UserData userData) {
+        removeSlot(userData.getId());
+        add(userData);
+        sortedBySlot = false;
+        staleSlots++;
+        modificationCount++;
+        rebuildIfStale();
+    }
+
+    /**
+     * Removes the entry with the given id. Its dead slot is skipped by the following queries until the next rebuild.
+     *
+     * @param id The id of the entry.
+     */
+    public synchronized void remove(String id) {
+        if (removeSlot(id)) {
+            modificationCount++;
+            rebuildIfStale();
+        }
+    }
+
+    private boolean removeSlot(String id) {
+        Integer slot = slotsById.remove(id);
+
+        if (slot == null) {
+            return false;
+        }
+        entries.set(slot, null);
+        texts.set(slot, null);
+        staleSlots++;
+        return true;
+    }
+
+    /**
+     * Rebuilds the slots of the live entries in name order, which drops the dead slots and their postings
+     * and lets the queries return their matches in slot order again.
+     */
+    private void rebuildIfStale() {
+        if (staleSlots * 4 < entries.size()) {
+            return;
+        }
+
+        List<Integer> liveSlots = new ArrayList<>(slotsById.values());
+        Collections.sort(liveSlots, this::compareSlots);
+
+        List<UserData> ordered = new ArrayList<>(liveSlots.size());
+        for (int slot : liveSlots) {
+            ordered.add(entries.get(slot));
+        }
+
+        entries.clear();
+        texts.clear();
+        slotsById.clear();
+        postings.clear();
+
+        for (UserData userData : ordered) {
+            add(userData);
+        }
+        sortedBySlot = true;
+        staleSlots = 0;
+    }
+
+    /**
+     * Finds the entries whose name or email contains the query, ignoring case.
+     *
+     * @param query    The text typed by the user.
+     * @param previous The result of the previous query, or null.
+     *                 It is reused when the new query contains the previous one, since the matches can only shrink,
+     *                 as long as the index hasn't changed in between.
+     * @return The matching entries, ordered by name.
+     */
+    public synchronized Result search(String query, @Nullable Result previous) {
+        String needle = query.trim().toLowerCase(Locale.ROOT);
+        int[] candidates;
+
+        if (previous != null && previous.index == this && previous.modificationCount == modificationCount
+                && needle.contains(previous.query)) {
+            candidates = previous.slots;
+        } else if (needle.length() >= 3) {
+            candidates = candidatesFor(needle);
+        } else {
+            candidates = null;
+        }
+
+        IntList matches = new IntList();
+
+        if (candidates == null) {
+            for (int slot = 0; slot < texts.size(); slot++) {
+                if (texts.get(slot) != null && texts.get(slot).contains(needle)) {
+                    matches.add(slot);
+                }
+            }
+        } else {
+            for (int slot : candidates) {
+                if (texts.get(slot) != null && texts.get(slot).contains(needle)) {
+                    matches.add(slot);
+                }
+            }
+        }
+
+        int[] slots = matches.toArray();
+        List<UserData> result = new ArrayList<>(slots.length);
+
+        if (sortedBySlot) {
+            for (int slot : slots) {
+                result.add(entries.get(slot));
+            }
+        } else {
+            // Entries changed since the last rebuild sit at the end of the slots, out of the name order
+            List<Integer> orderedSlots = new ArrayList<>(slots.length);
+            for (int slot : slots) {
+                orderedSlots.add(slot);
+            }
+            Collections.sort(orderedSlots, this::compareSlots);
+
+            for (int slot : orderedSlots) {
+                result.add(entries.get(slot));
+            }
+        }
+
+        return new Result(this, needle, slots, result);
+    }
+
+    private int compareSlots(int a, int b) {
+        int byName = entries.get(a).getName().compareToIgnoreCase(entries.get(b).getName());
+        return byName != 0 ? byName : Long.compare(ids[a], ids[b]);
+    }
+
+    private void add(UserData userData) {
+        int slot = entries.size();
+        String text = (userData.getName() + "\n" + userData.getEmail()).toLowerCase(Locale.ROOT);
+
+        if (slot == ids.length) {
+            ids = Arrays.copyOf(ids, slot * 2);
+        }
+        ids[slot] = Long.parseLong(userData.getId());
+        entries.add(new UserData(userData.getId(), userData.getName(), userData.getEmail(), null));
+        texts.add(text);
+        slotsById.put(userData.getId(), slot);
+
+        for (int i = 0; i + 3 <= text.length(); i++) {
+            long trigram = trigram(text, i);
+            IntList list = postings.get(trigram);
+
+            if (list == null) {
+                list = new IntList();
+                postings.put(trigram, list);
+            }
+            // A repeated trigram only needs the slot once; slots are appended in order so checking the tail is enough
+            if (list.size == 0 || list.values[list.size - 1] != slot) {
+                list.add(slot);
+            }
+        }
+    }
+
+    /**
+     * Intersects the posting lists of every trigram of the needle, starting from the shortest one.
+     *
+     * @param needle The lower-cased query, at least three characters long.
+     * @return The slots containing all the trigrams of the needle, in ascending order.
+     */
+    private int[] candidatesFor(String needle) {
+        List<IntList> lists = new ArrayList<>();
+
+        for (int i = 0; i + 3 <= needle.length(); i++) {
+            IntList list = postings.get(trigram(needle, i));
+
+            if (list == null) {
+                return new int[0];
+            }
+            lists.add(list);
+        }
+
+        Collections.sort(lists, (a, b) -> Integer.compare(a.size, b.size));
+
+        int[] candidates = lists.get(0).toArray();
+        int count = candidates.length;
+
+        for (int l = 1; l < lists.size() && count > 0; l++) {
+            IntList other = lists.get(l);
+            int kept = 0;
+            int j = 0;
+
+            for (int i = 0; i < count; i++) {
+                int slot = candidates[i];
+
+                while (j < other.size && other.values[j] < slot) {
+                    j++;
+                }
+                if (j < other.size && other.values[j] == slot) {
+                    candidates[kept++] = slot;
+                }
+            }
+            count = kept;
+        }
+        return Arrays.copyOf(candidates, count);
+    }
+
+    private static long trigram(String text, int start) {
+        return ((long) text.charAt(start) << 32) | ((long) text.charAt(start + 1) << 16) | text.charAt(start + 2);
+    }
+
+    /**
+     * Growable array of primitive ints, to keep the posting lists free of boxing.
+     */
+    private static class IntList {
+        private int[] values = new int[4];
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
@@ -0,0 +1,1029 @@
+package com.gero.newpass.repository;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.CancellationSignal;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.gero.newpass.backup.BackupReader;
+import com.gero.newpass.backup.BackupRecord;
+import com.gero.newpass.backup.BackupScope;
+import com.gero.newpass.backup.BackupWriter;
+import com.gero.newpass.backup.RestoreCheckpoint;
+import com.gero.newpass.database.BatchInsertResult;
+import com.gero.newpass.database.CipherCalibration;
+import com.gero.newpass.database.DatabaseHelper;
+import com.gero.newpass.database.DatabaseKeyHolder;
+import com.gero.newpass.database.InvalidationTracker;
+import com.gero.newpass.database.ProgressListener;
+import com.gero.newpass.database.StorageStats;
+import com.gero.newpass.encryption.BulkDecryptor;
+import com.gero.newpass.encryption.EncryptionHelper;
+import com.gero.newpass.model.UserData;
+import com.gero.newpass.utilities.CsvReader;
+import com.gero.newpass.utilities.ProgressInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * Single entry point between the ViewModels and {@link DatabaseHelper}.
+ * Every write is serialized on one background thread, reads run on a small pool,
+ * and results are handed back through a {@link Callback} so the ViewModels can post them to their LiveData.
+ */
+public class VaultRepository {
+
+    private static final String TAG = "VaultRepository";
+    // One reader thread per read-only connection of the helper
+    private static final int READ_POOL_SIZE = DatabaseHelper.READ_CONNECTIONS;
+    // Delay without writes after which the write-ahead log is folded back into the database
+    private static final long IDLE_CHECKPOINT_DELAY_SECONDS = 5;
+    // The vault is compacted when at least this share of its pages is free, and that frees at least this many bytes
+    private static final double COMPACTION_FREE_RATIO = 0.25;
+    private static final long COMPACTION_MIN_RECLAIMABLE_BYTES = 256 * 1024;
+    // Entries written to a backup between two progress reports and cancellation checks
+    private static final int BACKUP_PROGRESS_INTERVAL = 100;
+    // Incremental backups written after a full one before the chain is consolidated into a new full backup
+    private static final int MAX_INCREMENTAL_BACKUPS = 6;
+    // Entries changed by a write above which the observers reload the list instead of applying the changes row by row
+    private static final int MAX_TARGETED_CHANGES = PagedEntryList.PAGE_SIZE;
+    // Rows converted per transaction by the background conversion of the passwords
+    private static final int PASSWORD_CONVERSION_BATCH_SIZE = 200;
+    // Rows visited per transaction by the re-encryption with the data key, each legacy row costs a Keystore call
+    private static final int PASSWORD_REENCRYPTION_BATCH_SIZE = 50;
+    // How long a decrypted password stays in memory after it has been read, and how many are kept at most
+    private static final long SECRET_CACHE_TTL_MILLIS = 60_000;
+    private static final int SECRET_CACHE_MAX_ENTRIES = 16;
+
+    // The executors are shared by every repository instance: there is only one database file,
+    // so there must only ever be one writer no matter how many times the locator is re-initialized.
+    private static final ScheduledExecutorService WRITE_EXECUTOR = Executors.newSingleThreadScheduledExecutor();
+    private static final ExecutorService READ_EXECUTOR = Executors.newFixedThreadPool(READ_POOL_SIZE);
+
+    private final DatabaseHelper databaseHelper;
+    private final InvalidationTracker invalidationTracker;
+    private final List<Callback<EntryChanges>> entryObservers = new CopyOnWriteArrayList<>();
+    private final SecretCache secretCache = new SecretCache(SECRET_CACHE_TTL_MILLIS, SECRET_CACHE_MAX_ENTRIES);
+    // Built on the write thread so no write can happen between reading the table and publishing the index
+    private volatile TrigramSearchIndex searchIndex;
+    // Only touched on the write thread
+    private ScheduledFuture<?> idleCheckpoint;
+
+    public interface Callback<T> {
+        /**
+         * Called on a background thread once the operation has completed.
+         *
+         * @param result The result of the operation.
+         */
+        void onResult(T result);
+    }
+
+    public VaultRepository(DatabaseHelper databaseHelper) {
+        this.databaseHelper = databaseHelper;
+        this.invalidationTracker = new InvalidationTracker(databaseHelper);
+        invalidationTracker.addObserver(this::onInvalidated);
+    }
+
+
+
+    /**
+     * Registers an observer told about the entries changed by every write, so a list can update only the affected rows.
+     * It is called on the write thread, right after the write and before the next one runs.
+     *
+     * @param observer Receives the changes of each write, or {@link EntryChanges#reloadAll} when the list must be reloaded.
+     */
+    public void addEntryObserver(Callback<EntryChanges> observer) {
+        entryObservers.add(observer);
+    }
+
+    public void removeEntryObserver(Callback<EntryChanges> observer) {
+        entryObservers.remove(observer);
+    }
+
+    /**
+     * Reads the new values and positions of the entries changed by a write, on the write thread,
+     * so no other write can move them before the observers get them.
+     */
+    private void onInvalidated(InvalidationTracker.Invalidation invalidation) {
+        if (invalidation.all) {
+            secretCache.clear();
+        } else {
+            for (String rowId : invalidation.updatedIds) {
+                secretCache.remove(rowId);
+            }
+            for (String rowId : invalidation.deletedIds) {
+                secretCache.remove(rowId);
+            }
+        }
+
+        if (entryObservers.isEmpty()) {
+            return;
+        }
+
+        EntryChanges changes = EntryChanges.RELOAD_ALL;
+
+        if (!invalidation.all && invalidation.size() <= MAX_TARGETED_CHANGES) {
+            Set<String> upserted = new HashSet<>(invalidation.insertedIds);
+            upserted.addAll(invalidation.updatedIds);
+            List<EntryChanges.Row> rows = new ArrayList<>(upserted.size());
+
+            try {
+                if (!upserted.isEmpty()) {
+                    try (Cursor cursor = databaseHelper.readEntriesWithPosition(upserted)) {
+                        while (cursor.moveToNext()) {
+                            String rowId = cursor.getString(0);
+                            rows.add(new EntryChanges.Row(new UserData(rowId, cursor.getString(1), cursor.getString(2), null),
+                                    cursor.getInt(3), invalidation.insertedIds.contains(rowId)));
+                        }
+                    }
+                }
+                changes = new EntryChanges(false, rows, invalidation.deletedIds);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Could not read the changed entries", e);
+            }
+        }
+
+        for (Callback<EntryChanges> observer : entryObservers) {
+            observer.onResult(changes);
+        }
+    }
+
+
+
+    /**
+     * Inserts a new entry unless an account with the same name and email already exists.
+     * The check and the insert run on the write thread, so no other write can slip in between them.
+     *
+     * @param name     The name of the entry.
+     * @param email    The email of the entry.
+     * @param password The plain text password of the entry.
+     * @param callback Receives true if the entry was added, false if it already existed, or null if it couldn't be written.
+     */
+    public void addEntry(String name, String email, String password, Callback<Boolean> callback) {
+        write(() -> {
+            if (databaseHelper.checkIfAccountAlreadyExist(name, email)) {
+                callback.onResult(false);
+            } else {
+                long rowId = databaseHelper.addEntry(name, email, password);
+                if (searchIndex != null && rowId != -1) {
+                    searchIndex.put(new UserData(String.valueOf(rowId), name, email, null));
+                }
+                callback.onResult(true);
+            }
+        }, () -> callback.onResult(null));
+    }
+
+
+
+    /**
+     * Adds a batch of entries in one transaction, skipping the ones whose name and email already exist.
+     *
+     * @param entries  The entries to add, with their passwords in plain text.
+     * @param listener Receives the number of entries processed so far, on the write thread. May be null.
+     * @param callback Receives the outcome of every entry, or null if the batch couldn't be written at all.
+     */
+    public void addEntries(List<UserData> entries, ProgressListener listener, Callback<BatchInsertResult> callback) {
+        write(() -> {
+            BatchInsertResult result;
+
+            try {
+                result = databaseHelper.addEntries(entries, listener);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Batch insert failed", e);
+                callback.onResult(null);
+                return;
+            }
+
+            indexAddedEntries(entries, result);
+            callback.onResult(result);
+        });
+    }
+
+    private void indexAddedEntries(List<UserData> entries, BatchInsertResult result) {
+        if (searchIndex == null) {
+            return;
+        }
+
+        for (int i = 0; i < result.size(); i++) {
+            if (result.getStatus(i) == BatchInsertResult.Status.ADDED) {
+                UserData entry = entries.get(i);
+                searchIndex.put(new UserData(String.valueOf(result.getRowId(i)), entry.getName(), entry.getEmail(), null));
+            }
+        }
+    }
+
+
+
+    /**
+     * Imports the CSV export of another password manager on the write thread, one transaction per batch of rows.
+     *
+     * @param context  The application context.
+     * @param uri      The CSV file.
+     * @param listener Receives the number of bytes of the file read so far, on the write thread. May be null.
+     * @param signal   Cancels the import, the batches already inserted are kept.
+     * @param callback Receives the counts of imported and skipped rows, or null if the file couldn't be read or isn't supported.
+     */
+    public void importCsv(Context context, Uri uri, ProgressListener listener, CancellationSignal signal, Callback<CsvImporter.Summary> callback) {
+        write(() -> {
+            try {
+                ParcelFileDescriptor pfd = context.getContentResolver().openFileDescriptor(uri, "r");
+
+                if (pfd == null) {
+                    throw new IOException("Could not open " + uri);
+                }
+
+                InputStream inputStream = new ProgressInputStream(new ParcelFileDescriptor.AutoCloseInputStream(pfd), pfd.getStatSize(), listener);
+
+                try (CsvReader csvReader = new CsvReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8))) {
+                    CsvImporter.Summary summary = CsvImporter.importFrom(csvReader, batch -> {
+                        BatchInsertResult result = databaseHelper.addEntries(batch, null);
+                        indexAddedEntries(batch, result);
+                        databaseHelper.checkpointIfNeeded();
+                        return result;
+                    }, signal);
+
+                    Log.i(TAG, "Imported " + summary.added + " " + summary.format + " entries, " + summary.duplicates + " duplicates, "
+                            + summary.failed + " failed, " + summary.skipped + " skipped");
+                    callback.onResult(summary);
+                }
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "CSV import failed", e);
+                callback.onResult(null);
+            }
+        });
+    }
+
+
+
+    /**
+     * Encrypts the new password and updates the entry with the given ID.
+     *
+     * @param rowId    The ID of the entry to update.
+     * @param name     The new name.
+     * @param email    The new email.
+     * @param password The new plain text password.
+     * @param callback Receives true once the row has been written, false if it couldn't be.
+     */
+    public void updateEntry(String rowId, String name, String email, String password, Callback<Boolean> callback) {
+        write(() -> {
+            databaseHelper.updateData(rowId, name, email, password);
+            if (searchIndex != null) {
+                searchIndex.put(new UserData(rowId, name, email, null));
+            }
+            callback.onResult(true);
+        }, () -> callback.onResult(false));
+    }
+
+
+
+    /**
+     * Deletes the entry with the given ID.
+     *
+     * @param rowId    The ID of the entry to delete.
+     * @param callback Receives true once the row has been deleted, false if it couldn't be.
+     */
+    public void deleteEntry(String rowId, Callback<Boolean> callback) {
+        write(() -> {
+            databaseHelper.deleteOneRow(rowId);
+            if (searchIndex != null) {
+                searchIndex.remove(rowId);
+            }
+            callback.onResult(true);
+        }, () -> callback.onResult(false));
+    }
+
+
+
+    /**
+     * Deletes several entries in one transaction.
+     *
+     * @param rowIds   The IDs of the entries to delete.
+     * @param callback Receives the IDs of the entries deleted, or null if the transaction failed and nothing was deleted.
+     */
+    public void deleteEntries(List<String> rowIds, Callback<List<String>> callback) {
+        write(() -> {
+            List<String> deleted;
+
+            try {
+                deleted = databaseHelper.deleteRows(rowIds);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Batch delete failed", e);
+                callback.onResult(null);
+                return;
+            }
+
+            if (searchIndex != null) {
+                for (String rowId : deleted) {
+                    searchIndex.remove(rowId);
+                }
+            }
+            callback.onResult(deleted);
+        });
+    }
+
+
+
+    /**
+     * Sets the same email on several entries in one transaction.
+     *
+     * @param entries  The entries to update, their name is used to keep the search index in sync.
+     * @param email    The new email.
+     * @param callback Receives the updated entries, without the ones whose name already exists with that email,
+     *                 or null if the transaction failed and nothing was updated.
+     */
+    public void updateEmails(List<UserData> entries, String email, Callback<List<UserData>> callback) {
+        write(() -> {
+            List<String> rowIds = new ArrayList<>(entries.size());
+            for (UserData entry : entries) {
+                rowIds.add(entry.getId());
+            }
+
+            Set<String> updatedIds;
+
+            try {
+                updatedIds = new HashSet<>(databaseHelper.updateEmails(rowIds, email));
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Batch update failed", e);
+                callback.onResult(null);
+                return;
+            }
+
+            List<UserData> updated = new ArrayList<>(updatedIds.size());
+            for (UserData entry : entries) {
+                if (updatedIds.contains(entry.getId())) {
+                    UserData updatedEntry = new UserData(entry.getId(), entry.getName(), email, null);
+                    updated.add(updatedEntry);
+
+                    if (searchIndex != null) {
+                        searchIndex.put(updatedEntry);
+                    }
+                }
+            }
+            callback.onResult(updated);
+        });
+    }
+
+
+
+    private void write(Runnable task) {
+        write(task, null);
+    }
+
+    /**
+     * Runs a write on the write thread and publishes the entries it changed, then checkpoints the write-ahead log
+     * if it grew too large and schedules the maintenance that runs once the writes stop.
+     * Both also run when the write fails, since it may have committed part of its changes.
+     *
+     * @param task      The write. It hands its result to its callback last, so a failure means the callback wasn't called.
+     * @param onFailure Reports the failure to the callback of the write. May be null if the write catches its own failures.
+     */
+    private void write(Runnable task, Runnable onFailure) {
+        WRITE_EXECUTOR.execute(() -> {
+            try {
+                invalidationTracker.beginWrite();
+            } catch (RuntimeException e) {
+                // The write reports the failure to open the vault itself, there is nothing to track
+                Log.w(TAG, "Could not read the change log", e);
+            }
+
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Write failed", e);
+                if (onFailure != null) {
+                    onFailure.run();
+                }
+            } finally {
+                try {
+                    invalidationTracker.endWrite();
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Could not publish the changes", e);
+                    invalidationTracker.invalidateAll();
+                }
+                scheduleIdleMaintenance();
+            }
+        });
+    }
+
+    /**
+     * Runs a read on one of the reader threads, as a use of the connections: it waits for a swap of the vault file
+     * in progress and keeps the next one from starting until it returns.
+     *
+     * @param task      The read. It hands its result to its callback last, so a failure means the callback wasn't called.
+     * @param onFailure Reports the failure to the callback of the read.
+     */
+    private void read(Runnable task, Runnable onFailure) {
+        READ_EXECUTOR.execute(() -> {
+            databaseHelper.beginUse();
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Read failed", e);
+                onFailure.run();
+            } finally {
+                databaseHelper.endUse();
+            }
+        });
+    }
+
+    private void scheduleIdleMaintenance() {
+        databaseHelper.checkpointIfNeeded();
+
+        if (idleCheckpoint != null) {
+            idleCheckpoint.cancel(false);
+        }
+        idleCheckpoint = WRITE_EXECUTOR.schedule(this::runIdleMaintenance, IDLE_CHECKPOINT_DELAY_SECONDS, TimeUnit.SECONDS);
+    }
+
+
+
+    /**
+     * Counts the entries of the vault and loads the first page of the list.
+     * The other pages are loaded on demand by the returned {@link PagedEntryList}.
+     * Runs on the write thread, so the list is handed over before the changes of any later write are published.
+     *
+     * @param callback Receives the paged list, ordered by name, or null if the vault couldn't be read.
+     */
+    public void loadPagedEntries(Callback<PagedEntryList> callback) {
+        WRITE_EXECUTOR.execute(() -> {
+            PagedEntryList list;
+
+            try {
+                int count = databaseHelper.countEntries();
+                ArrayList<UserData> firstPage = toUserDataList(databaseHelper.readPage(null, 0, PagedEntryList.PAGE_SIZE));
+                list = new PagedEntryList(this, count, firstPage);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Could not load the entries", e);
+                list = null;
+            }
+            callback.onResult(list);
+        });
+    }
+
+
+
+    /**
+     * Reads the page of entries that follows the given keyset.
+     *
+     * @param afterName The name of the last row of the previous page, or null for the first page.
+     * @param afterId   The id of the last row of the previous page.
+     * @param pageSize  The maximum number of rows to read.
+     * @param callback  Receives the rows of the page, without their passwords, or null if they couldn't be read.
+     */
+    void readPage(String afterName, long afterId, int pageSize, Callback<ArrayList<UserData>> callback) {
+        read(() -> callback.onResult(toUserDataList(databaseHelper.readPage(afterName, afterId, pageSize))),
+                () -> callback.onResult(null));
+    }
+
+
+
+    /**
+     * Reads and decrypts the password of a single entry, or takes it from the passwords decrypted recently.
+     * A password read from the vault stays cached for {@link #SECRET_CACHE_TTL_MILLIS} at most, then it is zeroed.
+     *
+     * @param rowId    The ID of the entry.
+     * @param callback Receives the plain text password, a copy owned by the callback that should be zeroed once used,
+     *                 or null if the entry doesn't exist or can't be decrypted.
+     */
+    public void readPassword(String rowId, Callback<char[]> callback) {
+        read(() -> {
+            char[] password = secretCache.get(rowId);
+
+            if (password == null) {
+                long version = secretCache.currentVersion();
+                password = databaseHelper.readPassword(rowId);
+
+                if (password != null) {
+                    secretCache.put(rowId, password, version);
+                    WRITE_EXECUTOR.schedule(secretCache::evictExpired, secretCache.getTimeToLiveMillis(), TimeUnit.MILLISECONDS);
+                }
+            }
+            callback.onResult(password);
+        }, () -> callback.onResult(null));
+    }
+
+
+
+    /**
+     * Builds the in-memory search index over the names and emails of the vault, if it isn't built yet.
+     * Called once after unlock so the first keystroke doesn't pay for it.
+     */
+    public void prepareSearchIndex() {
+        WRITE_EXECUTOR.execute(this::buildSearchIndexIfNeeded);
+    }
+
+
+
+    /**
+     * Filters the entries whose name or email contains the query, using the in-memory search index.
+     *
+     * @param query    The text typed by the user.
+     * @param previous The result of the previous query, used to narrow down the search when the query was extended.
+     * @param callback Receives the matches, ordered by name.
+     */
+    public void searchAsYouType(String query, TrigramSearchIndex.Result previous, Callback<TrigramSearchIndex.Result> callback) {
+        TrigramSearchIndex index = searchIndex;
+
+        if (index == null) {
+            // Not built yet: queue the search behind the build
+            WRITE_EXECUTOR.execute(() -> {
+                buildSearchIndexIfNeeded();
+                callback.onResult(searchIndex.search(query, previous));
+            });
+            return;
+        }
+        READ_EXECUTOR.execute(() -> callback.onResult(index.search(query, previous)));
+    }
+
+    private void buildSearchIndexIfNeeded() {
+        if (searchIndex == null) {
+            searchIndex = new TrigramSearchIndex(toUserDataList(databaseHelper.readNamesAndEmails()));
+        }
+    }
+
+
+
+    /**
+     * Brings the stored passwords up to date in the background, if the vault holds old ones: first the passwords
+     * still stored as Base64 text are converted into BLOBs, then the ones still encrypted with the Keystore key
+     * directly are re-encrypted with the data key. Each batch is its own task on the write thread, so the writes
+     * of the user run in between; the passwords are readable in every format meanwhile. Called once after unlock.
+     */
+    public void upgradePasswordStorage() {
+        WRITE_EXECUTOR.execute(() -> runPasswordBatches(
+                afterId -> databaseHelper.convertTextPasswords(afterId, PASSWORD_CONVERSION_BATCH_SIZE), 0,
+                () -> runPasswordBatches(
+                        afterId -> databaseHelper.reencryptLegacyPasswords(afterId, PASSWORD_REENCRYPTION_BATCH_SIZE), 0, null)));
+    }
+
+    /**
+     * Runs one batch of a pass over the passwords and queues the next one, or the next pass once this one is done.
+     *
+     * @param batch   Processes the rows after the given ID, returns the ID to resume after or -1 when done.
+     * @param afterId The ID to resume after, 0 to start.
+     * @param next    The pass to run once this one is done, may be null.
+     */
+    private void runPasswordBatches(LongUnaryOperator batch, long afterId, @Nullable Runnable next) {
+        long lastId;
+
+        try {
+            lastId = batch.applyAsLong(afterId);
+        } catch (RuntimeException e) {
+            // Locked in the meantime, the passes start over after the next unlock
+            Log.w(TAG, "Password storage upgrade interrupted", e);
+            return;
+        }
+
+        // The rows rewritten keep their names and emails, the lists have nothing to update
+        invalidationTracker.skipChanges();
+        scheduleIdleMaintenance();
+
+        if (lastId != -1) {
+            WRITE_EXECUTOR.execute(() -> runPasswordBatches(batch, lastId, next));
+        } else if (next != null) {
+            WRITE_EXECUTOR.execute(next);
+        }
+    }
+
+
+
+    /**
+     * Exports the vault to the given document on the write thread, so no entry changes while it is copied.
+     *
+     * @param context  The application context.
+     * @param fileURL  The document to write the export to.
+     * @param listener Receives the number of bytes copied so far, on the write thread. May be null.
+     * @param signal   Cancels the export.
+     * @param callback Receives true if the export has been written, false if it failed or has been canceled.
+     */
+    public void exportDatabase(Context context, Uri fileURL, ProgressListener listener, CancellationSignal signal, Callback<Boolean> callback) {
+        WRITE_EXECUTOR.execute(() -> {
+            try {
+                DatabaseHelper.exportDatabase(context, fileURL, listener, signal);
+                callback.onResult(true);
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "Export failed", e);
+                callback.onResult(false);
+            }
+        });
+    }
+
+
+
+    /**
+     * Replaces the vault with the database at the given URI on the write thread.
+     * The connections of this repository are closed first since the file underneath them is replaced, and the reads
+     * wait for the import to finish: the next query reopens them on the imported database.
+     *
+     * @param context       The application context.
+     * @param uri           The database file to import.
+     * @param inputPassword The password of the imported database.
+     * @param listener      Receives the number of bytes copied so far, on the write thread. May be null.
+     * @param signal        Cancels the import.
+     * @param callback      Receives true if the vault has been replaced, false if the import failed or has been canceled.
+     */
+    public void importDatabase(Context context, Uri uri, String inputPassword, ProgressListener listener,
+                               CancellationSignal signal, Callback<Boolean> callback) {
+        WRITE_EXECUTOR.execute(() -> {
+            try {
+                databaseHelper.replaceFile(() -> DatabaseHelper.importDatabase(context, uri, inputPassword, listener, signal));
+                searchIndex = null;
+                invalidationTracker.invalidateAll();
+                callback.onResult(true);
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "Import failed", e);
+                callback.onResult(false);
+            }
+        });
+    }
+
+
+
+    /**
+     * Streams the entries into an encrypted .npbak backup on the write thread, one chunk in memory at a time.
+     * An incremental backup only holds the entries changed or deleted since the previous backup; every
+     * {@link #MAX_INCREMENTAL_BACKUPS} incremental backups, or when most of the vault changed, a full one is written instead.
+     *
+     * @param context     The application context.
+     * @param uri         The document to write the backup to.
+     * @param password    The password protecting the backup.
+     * @param incremental Whether to only write the changes since the previous backup, when possible.
+     * @param compress    Whether to compress the chunks.
+     * @param listener    Receives the number of entries written so far, on the write thread. May be null.
+     * @param signal      Cancels the backup, the document is left incomplete and fails to restore.
+     * @param callback    Receives true if the backup has been written, false if it failed or has been canceled.
+     */
+    public void createBackup(Context context, Uri uri, char[] password, boolean incremental, boolean compress,
+                             ProgressListener listener, CancellationSignal signal, Callback<Boolean> callback) {
+        WRITE_EXECUTOR.execute(() -> {
+            try {
+                BackupScope scope = databaseHelper.nextBackupScope(incremental, MAX_INCREMENTAL_BACKUPS);
+                ParcelFileDescriptor pfd = context.getContentResolver().openFileDescriptor(uri, "wt");
+
+                if (pfd == null) {
+                    throw new IOException("Could not open " + uri);
+                }
+
+                try (OutputStream outputStream = new BufferedOutputStream(new ParcelFileDescriptor.AutoCloseOutputStream(pfd));
+                     BackupWriter writer = new BackupWriter(outputStream, password, compress, scope);
+                     Cursor cursor = databaseHelper.readBackupRecords(scope);
+                     // The records are handed over without their passwords, which are decrypted on the worker threads
+                     BulkDecryptor.Pipeline<BackupRecord> pipeline = BulkDecryptor.pipeline((record, decryptedPassword) ->
+                             writer.write(record.op == BackupRecord.OP_DELETE ? record
+                                     : new BackupRecord(record.op, record.id, record.name, record.email, decryptedPassword)))) {
+
+                    int total = cursor.getCount();
+
+                    while (cursor.moveToNext()) {
+                        int position = cursor.getPosition();
+
+                        if (position % BACKUP_PROGRESS_INTERVAL == 0) {
+                            signal.throwIfCanceled();
+                            if (listener != null) {
+                                listener.onProgress(position, total);
+                            }
+                        }
+
+                        if (cursor.getInt(4) != 0) {
+                            pipeline.submit(new BackupRecord(BackupRecord.OP_DELETE, cursor.getLong(0), null, null, null), null);
+                        } else {
+                            pipeline.submit(new BackupRecord(BackupRecord.OP_UPSERT, cursor.getLong(0), cursor.getString(1), cursor.getString(2), null),
+                                    DatabaseHelper.readEncryptedPassword(cursor, 3));
+                        }
+                    }
+
+                    pipeline.finish();
+                    writer.finish();
+                    if (listener != null) {
+                        listener.onProgress(total, total);
+                    }
+                }
+
+                // Only once the document is complete, otherwise the next incremental backup would miss these changes
+                databaseHelper.commitBackup(scope);
+                Log.i(TAG, "Backup written: " + scope);
+                callback.onResult(true);
+            } catch (GeneralSecurityException | IOException | RuntimeException e) {
+                Log.e(TAG, "Backup failed", e);
+                callback.onResult(false);
+            }
+        });
+    }
+
+
+
+    /**
+     * Replaces the entries of the vault with the ones of a full .npbak backup, or applies the changes of an
+     * incremental one on top of the previous backups of its chain, on the write thread.
+     * The whole backup is authenticated first, so a wrong password, a corrupt file or an incremental backup
+     * restored out of order leaves the vault untouched.
+     * It is then applied one chunk per transaction; a restore interrupted in between resumes after the last
+     * chunk committed when it is started again with the same backup.
+     *
+     * @param context  The application context.
+     * @param uri      The backup to restore.
+     * @param password The password of the backup.
+     * @param listener Receives the progress over both passes, on the write thread. May be null.
+     * @param signal   Cancels the restore. The chunks already applied are kept and the restore can be resumed.
+     * @param callback Receives, once the backup has been fully restored, the number of restored entries whose name and
+     *                 email were already used by another entry, or null if the restore failed or has been canceled.
+     */
+    public void restoreBackup(Context context, Uri uri, char[] password, ProgressListener listener,
+                              CancellationSignal signal, Callback<Integer> callback) {
+        write(() -> {
+            try {
+                String backupId;
+                BackupScope scope;
+
+                // Verification pass, the first half of the progress
+                try (BackupReader reader = openBackup(context, uri, password, listener, 0)) {
+                    backupId = reader.getBackupId();
+                    scope = reader.getScope();
+
+                    if (!databaseHelper.canRestore(scope)) {
+                        throw new IOException("The incremental backup " + scope + " doesn't follow the restored backups");
+                    }
+
+                    while (reader.readChunk() != null) {
+                        signal.throwIfCanceled();
+                    }
+                }
+
+                int duplicates = 0;
+
+                try (BackupReader reader = openBackup(context, uri, password, listener, 1)) {
+                    int firstChunk = RestoreCheckpoint.load(context, backupId);
+
+                    while (reader.getNextChunkIndex() < firstChunk && reader.skipChunk()) {
+                        signal.throwIfCanceled();
+                    }
+
+                    List<BackupRecord> records;
+                    while (true) {
+                        int chunkIndex = reader.getNextChunkIndex();
+
+                        if ((records = reader.readChunk()) == null) {
+                            break;
+                        }
+                        signal.throwIfCanceled();
+
+                        List<Long> duplicateIds = databaseHelper.applyBackupRecords(records, chunkIndex == 0 && !scope.incremental);
+                        if (!duplicateIds.isEmpty()) {
+                            Log.w(TAG, "Restored entries sharing their name and email with another entry: " + duplicateIds);
+                            duplicates += duplicateIds.size();
+                        }
+                        RestoreCheckpoint.save(context, backupId, chunkIndex + 1);
+                        databaseHelper.checkpointIfNeeded();
+                    }
+                }
+
+                databaseHelper.commitRestore(scope);
+                RestoreCheckpoint.clear(context);
+                searchIndex = null;
+                invalidationTracker.invalidateAll();
+                callback.onResult(duplicates);
+            } catch (GeneralSecurityException | IOException | RuntimeException e) {
+                Log.e(TAG, "Restore failed", e);
+                // Some chunks may have been applied, the search index is rebuilt on the next search and the lists reloaded
+                searchIndex = null;
+                invalidationTracker.invalidateAll();
+                callback.onResult(null);
+            }
+        });
+    }
+
+    /**
+     * Opens a backup for one of the two passes of a restore.
+     *
+     * @param pass 0 for the verification, 1 for the application: each pass reports one half of the progress.
+     */
+    private static BackupReader openBackup(Context context, Uri uri, char[] password, ProgressListener listener, int pass)
+            throws IOException, GeneralSecurityException {
+
+        ParcelFileDescriptor pfd = context.getContentResolver().openFileDescriptor(uri, "r");
+
+        if (pfd == null) {
+            throw new IOException("Could not open " + uri);
+        }
+
+        long size = pfd.getStatSize();
+        ProgressListener passListener = listener == null ? null
+                : (done, total) -> listener.onProgress(total < 0 ? done : pass * total + done, total < 0 ? -1 : 2 * total);
+        InputStream inputStream = new ProgressInputStream(new ParcelFileDescriptor.AutoCloseInputStream(pfd), size, passListener);
+
+        try {
+            return new BackupReader(new BufferedInputStream(inputStream), password);
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            inputStream.close();
+            throw e;
+        }
+    }
+
+
+
+    /**
+     * Changes the password of the vault on the write thread, with the connections of this repository closed.
+     * The vault is copied under the new password and swapped in once complete, the new password is stored with the swap.
+     *
+     * @param context     The application context.
+     * @param newPassword The new password.
+     * @param listener    Receives the number of bytes rekeyed so far, from a background thread. May be null.
+     * @param callback    Receives true if the vault has been rekeyed, false if it failed and still has the old password.
+     */
+    public void changePassword(Context context, String newPassword, ProgressListener listener, Callback<Boolean> callback) {
+        WRITE_EXECUTOR.execute(() -> {
+            try {
+                databaseHelper.replaceFile(() -> DatabaseHelper.changeDBPassword(newPassword, context, listener));
+                callback.onResult(true);
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "Password change failed", e);
+                callback.onResult(false);
+            }
+        });
+    }
+
+
+
+    /**
+     * Benchmarks the cipher settings on this device and rewrites the vault with the chosen ones if they differ.
+     * Runs on the write thread, the connection of this repository is reopened with the new settings on the next query.
+     *
+     * @param context  The application context.
+     * @param signal   Cancels the benchmark. Once the vault is being rewritten the operation can't be canceled anymore.
+     * @param callback Receives the chosen profile and the measurements, or null if the operation failed or has been canceled.
+     */
+    public void optimizeCipherProfile(Context context, CancellationSignal signal, Callback<CipherCalibration.Result> callback) {
+        WRITE_EXECUTOR.execute(() -> {
+            try {
+                CipherCalibration.Result result = CipherCalibration.run(context, CipherCalibration.DEFAULT_TARGET_UNLOCK_MILLIS, signal);
+                signal.throwIfCanceled();
+
+                databaseHelper.replaceFile(() -> DatabaseHelper.applyCipherProfile(context, result.profile));
+                callback.onResult(result);
+            } catch (GeneralSecurityException | IOException | RuntimeException e) {
+                Log.e(TAG, "Cipher profile optimization failed", e);
+                callback.onResult(null);
+            }
+        });
+    }
+
+
+
+    /**
+     * Runs once the writes have stopped for a while: checkpoints the log, prunes the change log,
+     * then compacts the vault if enough of it is free pages.
+     */
+    private void runIdleMaintenance() {
+        databaseHelper.checkpoint();
+
+        if (databaseHelper.isOpen()) {
+            try {
+                databaseHelper.pruneChanges();
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Could not prune the change log", e);
+            }
+        }
+        compactIfNeeded();
+    }
+
+
+
+    /**
+     * Reclaims the free pages of the vault when they make up a large enough share of it, on the write thread.
+     * Only runs an incremental vacuum: the VACUUM that switches the vault to incremental auto-vacuum rewrites
+     * the whole file, so it is left to the compaction the user asks for in the settings.
+     * Does nothing if the vault is not open, so locking an untouched vault never derives the key just for this.
+     */
+    private void compactIfNeeded() {
+        if (!databaseHelper.isOpen()) {
+            return;
+        }
+
+        try {
+            StorageStats stats = databaseHelper.readStorageStats();
+
+            if (stats.getFreeRatio() >= COMPACTION_FREE_RATIO && stats.getReclaimableBytes() >= COMPACTION_MIN_RECLAIMABLE_BYTES) {
+                if (databaseHelper.vacuumIncrementally()) {
+                    Log.i(TAG, "Compacted the vault, it was " + stats);
+                }
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Compaction failed", e);
+        }
+    }
+
+
+
+    /**
+     * Measures the vault on the write thread.
+     *
+     * @param callback Receives the size of the vault and its reclaimable space, or null if it couldn't be read.
+     */
+    public void readStorageStats(Callback<StorageStats> callback) {
+        WRITE_EXECUTOR.execute(() -> {
+            try {
+                callback.onResult(databaseHelper.readStorageStats());
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Could not read the storage stats", e);
+                callback.onResult(null);
+            }
+        });
+    }
+
+
+
+    /**
+     * Rewrites the whole vault without its free pages, on the write thread.
+     *
+     * @param callback Receives the size of the vault after the compaction, or null if it failed.
+     */
+    public void compact(Callback<StorageStats> callback) {
+        WRITE_EXECUTOR.execute(() -> {
+            try {
+                databaseHelper.compact();
+                callback.onResult(databaseHelper.readStorageStats());
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Compaction failed", e);
+                callback.onResult(null);
+            }
+        });
+    }
+
+
+
+    /**
+     * Closes the connection and wipes the session key once the writes already queued have run.
+     * The vault is compacted first if needed, while it is still open and the user is leaving.
+     * The cached passwords are wiped right away, and again once closed in case a read was still running.
+     */
+    public void lock() {
+        Log.i(TAG, "Wiped " + secretCache.clear() + " cached passwords");
+
+        WRITE_EXECUTOR.execute(() -> {
+            if (idleCheckpoint != null) {
+                idleCheckpoint.cancel(false);
+            }
+            compactIfNeeded();
+            // Closing the last connection checkpoints the log
+            databaseHelper.close();
+            DatabaseKeyHolder.lock();
+            EncryptionHelper.invalidateKey();
+            searchIndex = null;
+            secretCache.clear();
+        });
+    }
+
+
+
+    /**
+     * Drains the given cursor into a list and closes it. The password is never read here: the cursor must not
+     * select it, passwords are read one at a time by {@link DatabaseHelper#readPassword}.
+     *
+     * @param cursor A cursor over the id, name and email columns, may be null.
+     * @return The rows of the cursor as {@link UserData} objects, with a null password.
+     */
+    private static ArrayList<UserData> toUserDataList(Cursor cursor) {
+        ArrayList<UserData> localList = new ArrayList<>();
+
+        if (cursor == null) {
+            return localList;
+        }
+
+        try {
+            while (cursor.moveToNext()) {
+                localList.add(new UserData(
+                        cursor.getString(0),
+                        cursor.getString(1),
+                        cursor.getString(2),
+                        null
+                ));
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error reading entries", e);
+        } finally {
+            cursor.close();
+        }
+        return localList;
+    }
+}
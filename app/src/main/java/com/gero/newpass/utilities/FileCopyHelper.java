@@ -0,0 +1,182 @@
+package com.gero.newpass.utilities;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.CancellationSignal;
+import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
+import androidx.annotation.Nullable;
+
+import com.gero.newpass.database.ProgressListener;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Copies files to and from Storage Access Framework documents through {@link FileChannel}s,
+ * letting the kernel move the data in large chunks instead of going through a small Java buffer.
+ * The destination is synced to disk before a copy is reported as done.
+ */
+public class FileCopyHelper {
+
+    // Bytes moved per transfer call, also the granularity of the progress and of the cancellation
+    private static final long TRANSFER_SIZE = 1024 * 1024;
+
+    /**
+     * Copies a local file to the document at the given URI, replacing its content.
+     *
+     * @param context     The application context.
+     * @param source      The file to copy.
+     * @param destination The URI of the document to write.
+     * @param listener    Receives the number of bytes copied so far, may be null.
+     * @param signal      Cancels the copy between two chunks, may be null.
+     * @throws IOException If the document can't be opened or written.
+     * @throws android.os.OperationCanceledException If the copy has been canceled.
+     */
+    public static void copyToUri(Context context, File source, Uri destination,
+                                 @Nullable ProgressListener listener, @Nullable CancellationSignal signal) throws IOException {
+
+        try (FileInputStream inputStream = new FileInputStream(source);
+             FileOutputStream outputStream = new ParcelFileDescriptor.AutoCloseOutputStream(openForWriting(context, destination))) {
+
+            FileChannel in = inputStream.getChannel();
+            FileChannel out = outputStream.getChannel();
+            long total = in.size();
+            long position = 0;
+
+            while (position < total) {
+                throwIfCanceled(signal);
+                long transferred = in.transferTo(position, Math.min(TRANSFER_SIZE, total - position), out);
+
+                if (transferred <= 0) {
+                    throw new IOException("Could not write to " + destination);
+                }
+                position += transferred;
+                notifyProgress(listener, position, total);
+            }
+
+            truncate(outputStream.getFD(), out, total);
+            sync(outputStream.getFD());
+        }
+    }
+
+    /**
+     * Copies the document at the given URI to a local file, replacing its content.
+     *
+     * @param context     The application context.
+     * @param source      The URI of the document to read.
+     * @param destination The file to write.
+     * @param listener    Receives the number of bytes copied so far (the total is -1 if the provider doesn't tell the size), may be null.
+     * @param signal      Cancels the copy between two chunks, may be null.
+     * @throws IOException If the document can't be read or the file can't be written.
+     * @throws android.os.OperationCanceledException If the copy has been canceled.
+     */
+    public static void copyFromUri(Context context, Uri source, File destination,
+                                   @Nullable ProgressListener listener, @Nullable CancellationSignal signal) throws IOException {
+
+        ParcelFileDescriptor pfd = context.getContentResolver().openFileDescriptor(source, "r");
+
+        if (pfd == null) {
+            throw new FileNotFoundException("Could not open " + source);
+        }
+
+        long total = pfd.getStatSize();
+
+        try (FileInputStream inputStream = new ParcelFileDescriptor.AutoCloseInputStream(pfd);
+             FileOutputStream outputStream = new FileOutputStream(destination)) {
+
+            // A file channel transfer relies on the size of the source, a provider streaming through a pipe has none
+            ReadableByteChannel in = total >= 0 ? inputStream.getChannel() : Channels.newChannel(inputStream);
+            FileChannel out = outputStream.getChannel();
+            long position = 0;
+
+            while (true) {
+                throwIfCanceled(signal);
+                // Returns 0 at the end of the source
+                long transferred = out.transferFrom(in, position, TRANSFER_SIZE);
+
+                if (transferred <= 0) {
+                    break;
+                }
+                position += transferred;
+                notifyProgress(listener, position, total);
+            }
+
+            if (total >= 0 && position != total) {
+                throw new IOException("Copied " + position + " of " + total + " bytes from " + source);
+            }
+
+            out.force(true);
+        }
+    }
+
+    private static ParcelFileDescriptor openForWriting(Context context, Uri uri) throws IOException {
+        ParcelFileDescriptor pfd;
+
+        try {
+            // "rwt" truncates an existing document, not every provider supports it
+            pfd = context.getContentResolver().openFileDescriptor(uri, "rwt");
+        } catch (IllegalArgumentException | UnsupportedOperationException | FileNotFoundException e) {
+            pfd = context.getContentResolver().openFileDescriptor(uri, "w");
+        }
+
+        if (pfd == null) {
+            throw new FileNotFoundException("Could not open " + uri);
+        }
+        return pfd;
+    }
+
+    /**
+     * Cuts the document to the bytes just written. A provider that only opens it in "w" mode may not truncate it,
+     * leaving the end of a longer previous content after the copy.
+     */
+    private static void truncate(FileDescriptor fd, FileChannel out, long size) throws IOException {
+        if (isRegularFile(fd) && out.size() > size) {
+            out.truncate(size);
+        }
+    }
+
+    /**
+     * Flushes the written data to the storage. Pipes and sockets handed out by some providers
+     * can't be synced, their provider is responsible for the durability of the data.
+     */
+    private static void sync(FileDescriptor fd) throws IOException {
+        try {
+            if (isRegularFile(fd)) {
+                Os.fsync(fd);
+            }
+        } catch (ErrnoException e) {
+            throw new IOException("Could not sync the destination", e);
+        }
+    }
+
+    private static boolean isRegularFile(FileDescriptor fd) throws IOException {
+        try {
+            return OsConstants.S_ISREG(Os.fstat(fd).st_mode);
+        } catch (ErrnoException e) {
+            throw new IOException("Could not stat the destination", e);
+        }
+    }
+
+    private static void throwIfCanceled(@Nullable CancellationSignal signal) {
+        if (signal != null) {
+            signal.throwIfCanceled();
+        }
+    }
+
+    private static void notifyProgress(@Nullable ProgressListener listener, long done, long total) {
+        if (listener != null) {
+            listener.onProgress(done, total);
+        }
+    }
+}
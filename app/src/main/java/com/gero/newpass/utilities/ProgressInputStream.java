@@ -0,0 +1,68 @@
+package com.gero.newpass.utilities;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.gero.newpass.database.ProgressListener;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reports the number of bytes read from the wrapped stream, every {@link #REPORT_INTERVAL} bytes.
+ */
+public class ProgressInputStream extends FilterInputStream {
+
+    private static final long REPORT_INTERVAL = 64 * 1024;
+
+    private final ProgressListener listener;
+    private final long total;
+    private long count;
+    private long lastReport;
+
+    /**
+     * @param in       The stream to read.
+     * @param total    The size of the stream, or -1 if unknown.
+     * @param listener Receives the number of bytes read so far, may be null.
+     */
+    public ProgressInputStream(InputStream in, long total, @Nullable ProgressListener listener) {
+        super(in);
+        this.total = total;
+        this.listener = listener;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b != -1) {
+            advance(1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(@NonNull byte[] b, int off, int len) throws IOException {
+        int read = super.read(b, off, len);
+        if (read > 0) {
+            advance(read);
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        advance(skipped);
+        return skipped;
+    }
+
+    private void advance(long bytes) {
+        count += bytes;
+
+        if (listener != null && (count - lastReport >= REPORT_INTERVAL || count == total)) {
+            lastReport = count;
+            listener.onProgress(count, total);
+        }
+    }
+}
@@ -26,12 +26,13 @@ import androidx.security.crypto.EncryptedSharedPreferences;
 import com.gero.newpass.ContextWrapper.NewPassContextWrapper;
 import com.gero.newpass.R;
 import com.gero.newpass.SharedPreferences.SharedPreferencesHelper;
+import com.gero.newpass.database.DatabaseHelper;
+import com.gero.newpass.database.DatabaseKeyHolder;
 import com.gero.newpass.databinding.ActivityLoginBinding;
 import com.gero.newpass.encryption.EncryptionHelper;
 import com.gero.newpass.factory.ViewMoldelsFactory;
 import com.gero.newpass.repository.ResourceRepository;
 import com.gero.newpass.utilities.AnimationsUtility;
-import com.gero.newpass.utilities.StringHelper;
 import com.gero.newpass.utilities.SystemBarColorHelper;
 import com.gero.newpass.utilities.VibrationHelper;
 import com.gero.newpass.viewmodel.LoginViewModel;
@@ -74,7 +75,7 @@ public class LoginActivity extends AppCompatActivity {
 
             if (success) {
                 Intent intent = new Intent(LoginActivity.this, MainViewActivity.class);
-                StringHelper.setSharedString(savedPasswordSharedPreferences);
+                DatabaseKeyHolder.unlock(savedPasswordSharedPreferences);
                 startActivity(intent);
                 finish();
             } else {
@@ -82,6 +83,8 @@ public class LoginActivity extends AppCompatActivity {
             }
         });
 
+        // A password change interrupted by the death of the process decides which password is stored
+        DatabaseHelper.recoverPasswordChange(getApplicationContext());
         encryptedSharedPreferences = EncryptionHelper.getEncryptedSharedPreferences(getApplicationContext());
 
         //Determining whether to set dark or light mode based on shared preferences
@@ -49,6 +49,16 @@ public class MainViewActivity extends AppCompatActivity implements LanguageDialo
         SharedPreferencesHelper.toggleDarkLightModeUI(this);
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+
+        // Recreations (rotation, language change) keep the session, leaving the app ends it
+        if (isFinishing()) {
+            DatabaseServiceLocator.lock();
+        }
+    }
+
     public void openFragment(Fragment fragment) {
 
         // Perform the fragment transaction and add it to the back stack
@@ -11,6 +11,7 @@ import android.widget.LinearLayout;
 import android.widget.TextView;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.fragment.app.FragmentActivity;
 import androidx.fragment.app.FragmentManager;
 import androidx.fragment.app.FragmentTransaction;
@@ -21,13 +22,34 @@ import com.gero.newpass.model.UserData;
 import com.gero.newpass.utilities.VibrationHelper;
 import com.gero.newpass.view.fragments.UpdatePasswordFragment;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 public class CustomAdapter extends RecyclerView.Adapter<CustomAdapter.MyViewHolder> {
 
+    // Opacity of the rows not selected while in selection mode
+    private static final float UNSELECTED_ALPHA = 0.4f;
+
     private final Context context;
-    private final List<UserData> userDataList;
+    private List<UserData> userDataList;
     private final Activity activity;
+    // Selected entries by id, in the order they were selected; empty outside of the selection mode
+    private final Map<String, UserData> selectedEntries = new LinkedHashMap<>();
+    private boolean selectionMode;
+    @Nullable
+    private SelectionListener selectionListener;
+
+    public interface SelectionListener {
+        /**
+         * Called when the selection mode starts or ends, or when an entry is selected or deselected.
+         *
+         * @param selectionMode Whether the list is in selection mode.
+         * @param count         The number of selected entries.
+         */
+        void onSelectionChanged(boolean selectionMode, int count);
+    }
 
     public CustomAdapter(Activity activity, Context context, List<UserData> userDataList) {
         this.activity = activity;
@@ -54,6 +76,17 @@ public class CustomAdapter extends RecyclerView.Adapter<CustomAdapter.MyViewHold
 
         UserData userData = userDataList.get(position);
 
+        if (userData == null) {
+            // Placeholder, the page of this row is still loading
+            holder.row_tw_txt.setText("");
+            holder.row_name_txt.setText("");
+            holder.row_email_txt.setText("");
+            holder.mainLayout.setOnClickListener(null);
+            holder.mainLayout.setOnLongClickListener(null);
+            holder.mainLayout.setAlpha(1f);
+            return;
+        }
+
         String name = userData.getName();
         String email = userData.getEmail();
 
@@ -67,16 +100,33 @@ public class CustomAdapter extends RecyclerView.Adapter<CustomAdapter.MyViewHold
         holder.row_tw_txt.setText(tw);
         holder.row_name_txt.setText(name);
         holder.row_email_txt.setText(email);
+        holder.mainLayout.setAlpha(selectionMode && !selectedEntries.containsKey(userData.getId()) ? UNSELECTED_ALPHA : 1f);
+
+        holder.mainLayout.setOnLongClickListener(view -> {
+            VibrationHelper.vibrate(view, VibrationHelper.VibrationType.Strong);
+
+            if (!selectionMode) {
+                selectionMode = true;
+                // Every visible row fades except the selected one
+                notifyItemRangeChanged(0, getItemCount());
+            }
+            toggleSelection(userData, holder.getAdapterPosition());
+            return true;
+        });
 
         holder.mainLayout.setOnClickListener(view -> {
             VibrationHelper.vibrate(view, VibrationHelper.VibrationType.Weak);
 
+            if (selectionMode) {
+                toggleSelection(userData, holder.getAdapterPosition());
+                return;
+            }
+
             UpdatePasswordFragment updatePasswordFragment = new UpdatePasswordFragment();
             Bundle args = new Bundle();
             args.putString("entry", userData.getId());
             args.putString("name", userData.getName());
             args.putString("email", userData.getEmail());
-            args.putString("password", userData.getPassword());
             updatePasswordFragment.setArguments(args);
 
             FragmentManager fragmentManager = ((FragmentActivity) activity).getSupportFragmentManager();
@@ -89,6 +139,69 @@ public class CustomAdapter extends RecyclerView.Adapter<CustomAdapter.MyViewHold
     }
 
 
+    /**
+     * Replaces the displayed entries, e.g. with the results of the latest keystroke of a search.
+     *
+     * @param userDataList The entries to display.
+     */
+    @SuppressLint("NotifyDataSetChanged")
+    public void setUserDataList(List<UserData> userDataList) {
+        this.userDataList = userDataList;
+        // The selection may not be part of the new entries
+        selectedEntries.clear();
+        if (selectionMode) {
+            selectionMode = false;
+            notifySelectionChanged();
+        }
+        notifyDataSetChanged();
+    }
+
+    public void setSelectionListener(@Nullable SelectionListener selectionListener) {
+        this.selectionListener = selectionListener;
+    }
+
+    /**
+     * @return The selected entries, in the order they were selected.
+     */
+    public List<UserData> getSelectedEntries() {
+        return new ArrayList<>(selectedEntries.values());
+    }
+
+    /**
+     * Leaves the selection mode, deselecting every entry.
+     */
+    public void clearSelection() {
+        if (!selectionMode) {
+            return;
+        }
+        selectionMode = false;
+        selectedEntries.clear();
+        notifyItemRangeChanged(0, getItemCount());
+        notifySelectionChanged();
+    }
+
+    private void toggleSelection(UserData userData, int position) {
+        if (selectedEntries.remove(userData.getId()) == null) {
+            selectedEntries.put(userData.getId(), userData);
+        }
+
+        if (position != RecyclerView.NO_POSITION) {
+            notifyItemChanged(position);
+        }
+
+        if (selectedEntries.isEmpty()) {
+            clearSelection();
+        } else {
+            notifySelectionChanged();
+        }
+    }
+
+    private void notifySelectionChanged() {
+        if (selectionListener != null) {
+            selectionListener.onSelectionChanged(selectionMode, selectedEntries.size());
+        }
+    }
+
     @Override
     public int getItemCount() {
         return userDataList.size();
@@ -92,10 +92,6 @@ public class AddPasswordFragment extends Fragment {
         addViewModel.getSuccessLiveData().observe(getViewLifecycleOwner(), success -> {
                     if (success) {
                         if (activity instanceof MainViewActivity) {
-                            Bundle result = new Bundle();
-                            //Result key for the main fragment to update the addition
-                            result.putString("resultKey", "1");
-                            getParentFragmentManager().setFragmentResult("requestKey", result);
                             ((MainViewActivity) activity).onBackPressed();
                         }
                     }
@@ -3,34 +3,41 @@ package com.gero.newpass.view.fragments;
 import android.annotation.SuppressLint;
 import android.app.Activity;
 import android.app.AlertDialog;
+import android.content.Context;
 import android.os.Bundle;
+import android.text.Editable;
+import android.text.TextWatcher;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.fragment.app.Fragment;
 import androidx.lifecycle.ViewModelProvider;
+import androidx.recyclerview.widget.AdapterListUpdateCallback;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
-import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewGroup;
+import android.view.inputmethod.InputMethodManager;
 import android.widget.EditText;
 import android.widget.ImageButton;
 import android.widget.ImageView;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import com.gero.newpass.R;
 import com.gero.newpass.databinding.FragmentMainViewBinding;
 
+import com.gero.newpass.model.UserData;
+import com.gero.newpass.repository.PagedEntryList;
 import com.gero.newpass.utilities.VibrationHelper;
 import com.gero.newpass.view.activities.MainViewActivity;
 import com.gero.newpass.view.adapters.CustomAdapter;
 import com.gero.newpass.viewmodel.MainViewModel;
 
-import java.util.Objects;
+import java.util.List;
 
 
 public class MainViewFragment extends Fragment {
@@ -40,7 +47,14 @@ public class MainViewFragment extends Fragment {
     private ImageView empty_imageview;
     private RecyclerView recyclerView;
     private ImageButton buttonGenerate, buttonAdd, buttonSettings, buttonSearch, buttonCancel;
+    private EditText searchInput;
+    private View selectionBar;
+    private TextView selectionCount, buttonEditSelected, buttonDeleteSelected;
+    private ImageButton buttonCancelSelection;
     private MainViewModel mainViewModel;
+    private CustomAdapter pagedAdapter, searchAdapter;
+    // Number of entries sent to the last batch operation, to tell how many were skipped
+    private int pendingBatchSize;
 
 
     @Override
@@ -59,7 +73,11 @@ public class MainViewFragment extends Fragment {
 
         initViews();
 
-        populateUI();
+        recyclerView.setLayoutManager(new LinearLayoutManager(requireContext()));
+
+        closeSearch();
+        // The list outlives the view, the writes made meanwhile have been applied to it
+        mainViewModel.getUserDataList().observe(getViewLifecycleOwner(), this::showPagedEntries);
 
 
         //Navigating to generate/ add password and settings fragments using the method inherited from the base activity
@@ -102,9 +120,45 @@ public class MainViewFragment extends Fragment {
                 return false;
             });
 
-            buttonSearch.setOnClickListener(v -> showInputDialog());
+            buttonSearch.setOnClickListener(v -> openSearch());
+
+            buttonCancel.setOnClickListener(v -> closeSearch());
+
+            searchInput.addTextChangedListener(new TextWatcher() {
+                @Override
+                public void beforeTextChanged(CharSequence s, int start, int count, int after) { }
+
+                @Override
+                public void onTextChanged(CharSequence s, int start, int before, int count) { }
+
+                @Override
+                public void afterTextChanged(Editable s) {
+                    if (s.toString().trim().isEmpty()) {
+                        if (pagedAdapter != null) {
+                            showAdapter(pagedAdapter);
+                        }
+                    } else {
+                        mainViewModel.onSearchQueryChanged(s.toString());
+                    }
+                }
+            });
 
-            buttonCancel.setOnClickListener(v -> populateUI());
+            mainViewModel.getSearchedDataList().observe(getViewLifecycleOwner(), this::showSearchResults);
+
+            buttonCancelSelection.setOnClickListener(v -> clearSelection());
+
+            buttonDeleteSelected.setOnClickListener(v -> {
+                VibrationHelper.vibrate(v, VibrationHelper.VibrationType.Weak);
+                confirmDeleteSelected();
+            });
+
+            buttonEditSelected.setOnClickListener(v -> {
+                VibrationHelper.vibrate(v, VibrationHelper.VibrationType.Weak);
+                showEditEmailDialog();
+            });
+
+            mainViewModel.getDeletedEntries().observe(getViewLifecycleOwner(), this::onEntriesDeleted);
+            mainViewModel.getUpdatedEntries().observe(getViewLifecycleOwner(), this::onEntriesUpdated);
 
         }
 
@@ -113,89 +167,213 @@ public class MainViewFragment extends Fragment {
     @Override
     public void onDestroyView() {
         super.onDestroyView();
+        PagedEntryList userDataList = mainViewModel.getUserDataList().getValue();
+        if (userDataList != null) {
+            userDataList.setListener(null);
+        }
+        pagedAdapter = null;
+        searchAdapter = null;
         // Nullify the binding object to avoid memory leaks
         binding = null;
     }
 
-    @Override
-    public void onResume() {
-        super.onResume();
-        getParentFragmentManager().setFragmentResultListener("requestKey", this, (requestKey, bundle) -> {
-            String result = bundle.getString("resultKey");
-            // Updating UI after update
-            if (Objects.equals(result, "1")) {
-                populateUI();
-            }
-        });
+    /**
+     * Shows a list of the whole vault, without leaving the search results if they are displayed.
+     */
+    private void showPagedEntries(PagedEntryList userDataList) {
+        CustomAdapter customAdapter = createAdapter(userDataList);
+        // Rows of pages loaded in the background are bound as soon as they arrive, the changes of the writes as they are applied
+        userDataList.setListener(new AdapterListUpdateCallback(customAdapter));
+        pagedAdapter = customAdapter;
+
+        if (!isSearching()) {
+            showAdapter(customAdapter);
+        }
     }
 
-    @SuppressLint("SetTextI18n")
-    private void populateUI() {
+    private void openSearch() {
+        searchInput.setVisibility(View.VISIBLE);
+        buttonCancel.setVisibility(View.VISIBLE);
+        searchInput.requestFocus();
+
+        InputMethodManager inputMethodManager = (InputMethodManager) requireContext().getSystemService(Context.INPUT_METHOD_SERVICE);
+        inputMethodManager.showSoftInput(searchInput, InputMethodManager.SHOW_IMPLICIT);
+    }
+
+    private void closeSearch() {
+        searchInput.setText("");
+        searchInput.setVisibility(View.GONE);
         buttonCancel.setVisibility(View.GONE);
-        mainViewModel.storeDataInArrays();
 
-        mainViewModel.getUserDataList().observe(getViewLifecycleOwner(), userDataList -> {
-            CustomAdapter customAdapter = new CustomAdapter(this.getActivity(), this.getContext(), userDataList);
-            recyclerView.setAdapter(customAdapter);
-            recyclerView.setLayoutManager(new LinearLayoutManager(requireContext()));
+        InputMethodManager inputMethodManager = (InputMethodManager) requireContext().getSystemService(Context.INPUT_METHOD_SERVICE);
+        inputMethodManager.hideSoftInputFromWindow(searchInput.getWindowToken(), 0);
 
-            Log.i("235903425", "sus");
+        if (pagedAdapter != null) {
+            showAdapter(pagedAdapter);
+        }
+    }
 
-            count.setText("[" + customAdapter.getItemCount() + "]");
+    private boolean isSearching() {
+        return searchInput.getVisibility() == View.VISIBLE && searchInput.getText().length() > 0;
+    }
+
+    private void showSearchResults(List<UserData> searchedDataList) {
+        if (!isSearching()) {
+            return;
+        }
 
-            if (customAdapter.getItemCount() == 0) {
-                empty_imageview.setVisibility(View.VISIBLE);
-                noData.setVisibility(View.VISIBLE);
-            } else {
-                empty_imageview.setVisibility(View.GONE);
-                noData.setVisibility(View.GONE);
+        // Reuse the same adapter while typing instead of building a new one for every keystroke
+        if (searchAdapter == null || recyclerView.getAdapter() != searchAdapter) {
+            searchAdapter = createAdapter(searchedDataList);
+            showAdapter(searchAdapter);
+        } else {
+            searchAdapter.setUserDataList(searchedDataList);
+            updateCount(searchAdapter);
+        }
+    }
+
+    private void showAdapter(CustomAdapter customAdapter) {
+        if (recyclerView.getAdapter() != customAdapter) {
+            clearSelection();
+            recyclerView.setAdapter(customAdapter);
+        }
+        updateCount(customAdapter);
+    }
+
+    private CustomAdapter createAdapter(List<UserData> userDataList) {
+        CustomAdapter customAdapter = new CustomAdapter(this.getActivity(), this.getContext(), userDataList);
+        customAdapter.setSelectionListener(this::onSelectionChanged);
+        customAdapter.registerAdapterDataObserver(new RecyclerView.AdapterDataObserver() {
+            @Override
+            public void onItemRangeInserted(int positionStart, int itemCount) {
+                onCountChanged(customAdapter);
+            }
+
+            @Override
+            public void onItemRangeRemoved(int positionStart, int itemCount) {
+                onCountChanged(customAdapter);
             }
         });
+        return customAdapter;
     }
 
-    @SuppressLint("SetTextI18n")
-    private void showInputDialog() {
+    private void onCountChanged(CustomAdapter customAdapter) {
+        if (binding != null && recyclerView.getAdapter() == customAdapter) {
+            updateCount(customAdapter);
+        }
+    }
+
+    private void onSelectionChanged(boolean selectionMode, int selected) {
+        selectionBar.setVisibility(selectionMode ? View.VISIBLE : View.GONE);
+        selectionCount.setText(getString(R.string.main_selected_count, selected));
+    }
 
-        AlertDialog.Builder builder = new AlertDialog.Builder(requireContext());
-        LayoutInflater inflater = getLayoutInflater();
-        View dialogView = inflater.inflate(R.layout.dialog_search, null);
-        builder.setView(dialogView);
+    private void clearSelection() {
+        if (recyclerView.getAdapter() instanceof CustomAdapter) {
+            ((CustomAdapter) recyclerView.getAdapter()).clearSelection();
+        }
+    }
 
+    @Nullable
+    private List<UserData> takeSelection() {
+        if (!(recyclerView.getAdapter() instanceof CustomAdapter)) {
+            return null;
+        }
 
-        EditText input = dialogView.findViewById(R.id.input);
+        CustomAdapter customAdapter = (CustomAdapter) recyclerView.getAdapter();
+        List<UserData> selected = customAdapter.getSelectedEntries();
+        return selected.isEmpty() ? null : selected;
+    }
 
-        builder.setTitle(R.string.search_password)
-                .setPositiveButton(R.string.ok, (dialog, which) -> {
+    private void confirmDeleteSelected() {
+        List<UserData> selected = takeSelection();
 
-                    String searchTerm = input.getText().toString().toLowerCase().trim();
+        if (selected == null) {
+            return;
+        }
 
-                    if (searchTerm.isEmpty()) {
-                        buttonCancel.setVisibility(View.GONE);
-                    } else {
-                        buttonCancel.setVisibility(View.VISIBLE);
+        new AlertDialog.Builder(requireContext())
+                .setTitle(getString(R.string.main_delete_selected_title, selected.size()))
+                .setPositiveButton(R.string.update_alertdialog_yes, (dialog, id) -> {
+                    pendingBatchSize = selected.size();
+                    clearSelection();
+                    mainViewModel.deleteEntries(selected);
+                })
+                .setNegativeButton(R.string.update_alertdialog_no, (dialog, id) -> dialog.cancel())
+                .show();
+    }
+
+    @SuppressLint("InflateParams")
+    private void showEditEmailDialog() {
+        List<UserData> selected = takeSelection();
+
+        if (selected == null) {
+            return;
+        }
+
+        View dialogView = getLayoutInflater().inflate(R.layout.dialog_edit_email, null);
+        EditText input = dialogView.findViewById(R.id.input);
+
+        new AlertDialog.Builder(requireContext())
+                .setTitle(getString(R.string.main_edit_email_title, selected.size()))
+                .setView(dialogView)
+                .setPositiveButton(R.string.confirm, (dialog, id) -> {
+                    String email = input.getText().toString().trim();
+
+                    if (email.isEmpty()) {
+                        Toast.makeText(requireContext(), R.string.email_should_not_be_empty, Toast.LENGTH_SHORT).show();
+                        return;
                     }
 
-                    mainViewModel.storeSearchedDataInArrays(searchTerm);
+                    pendingBatchSize = selected.size();
+                    clearSelection();
+                    mainViewModel.updateEmails(selected, email);
+                })
+                .setNegativeButton(R.string.cancel, (dialog, id) -> dialog.cancel())
+                .show();
+    }
+
+    /**
+     * Reports a batch delete, the rows have already been removed from the lists through the changes of the write.
+     */
+    private void onEntriesDeleted(@Nullable List<String> deleted) {
+        if (deleted == null) {
+            return;
+        }
+        mainViewModel.onBatchResultHandled();
 
-                    mainViewModel.getSearchedDataList().observe(getViewLifecycleOwner(), searchedDataList -> {
-                        CustomAdapter customAdapter = new CustomAdapter(this.getActivity(), this.getContext(), searchedDataList);
-                        recyclerView.setAdapter(customAdapter);
-                        recyclerView.setLayoutManager(new LinearLayoutManager(requireContext()));
+        if (deleted.isEmpty()) {
+            Toast.makeText(requireContext(), R.string.dbhelper_failed_to_delete, Toast.LENGTH_SHORT).show();
+            return;
+        }
 
-                        count.setText("[" + customAdapter.getItemCount() + "]");
+        Toast.makeText(requireContext(), getString(R.string.main_entries_deleted, deleted.size()), Toast.LENGTH_SHORT).show();
+    }
 
-                        if (customAdapter.getItemCount() == 0) {
-                            empty_imageview.setVisibility(View.VISIBLE);
-                            noData.setVisibility(View.VISIBLE);
-                        } else {
-                            empty_imageview.setVisibility(View.GONE);
-                            noData.setVisibility(View.GONE);
-                        }
-                    });
-                });
-        builder.setNegativeButton(R.string.cancel, (dialog, which) -> dialog.cancel());
+    /**
+     * Reports a batch edit, the rows have already been rebound through the changes of the write.
+     */
+    private void onEntriesUpdated(@Nullable List<UserData> updated) {
+        if (updated == null) {
+            return;
+        }
+        mainViewModel.onBatchResultHandled();
 
-        builder.show();
+        Toast.makeText(requireContext(), getString(R.string.main_entries_updated,
+                updated.size(), Math.max(pendingBatchSize - updated.size(), 0)), Toast.LENGTH_SHORT).show();
+    }
+
+    @SuppressLint("SetTextI18n")
+    private void updateCount(CustomAdapter customAdapter) {
+        count.setText("[" + customAdapter.getItemCount() + "]");
+
+        if (customAdapter.getItemCount() == 0) {
+            empty_imageview.setVisibility(View.VISIBLE);
+            noData.setVisibility(View.VISIBLE);
+        } else {
+            empty_imageview.setVisibility(View.GONE);
+            noData.setVisibility(View.GONE);
+        }
     }
 
     private void initViews() {
@@ -208,6 +386,12 @@ public class MainViewFragment extends Fragment {
         noData = binding.noData;
         buttonSearch = binding.buttonSearch;
         buttonCancel = binding.buttonCancel;
+        searchInput = binding.searchInput;
+        selectionBar = binding.selectionBar;
+        selectionCount = binding.selectionCount;
+        buttonEditSelected = binding.buttonEditSelected;
+        buttonDeleteSelected = binding.buttonDeleteSelected;
+        buttonCancelSelection = binding.buttonCancelSelection;
     }
 
 }
\ No newline at end of file
@@ -4,28 +4,36 @@ package com.gero.newpass.view.fragments;
 import android.annotation.SuppressLint;
 import android.app.Activity;
 import android.app.AlertDialog;
+import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.format.Formatter;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.EditText;
 import android.widget.ImageButton;
 import android.widget.ListView;
+import android.widget.ProgressBar;
+import android.widget.TextView;
 import android.widget.Toast;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.StringRes;
 import androidx.fragment.app.DialogFragment;
 import androidx.fragment.app.Fragment;
 import androidx.security.crypto.EncryptedSharedPreferences;
 
 import com.gero.newpass.R;
-import com.gero.newpass.database.DatabaseHelper;
+import com.gero.newpass.database.DatabaseServiceLocator;
+import com.gero.newpass.database.ProgressListener;
 import com.gero.newpass.databinding.FragmentSettingsBinding;
 import com.gero.newpass.encryption.EncryptionHelper;
 import com.gero.newpass.model.SettingData;
@@ -33,12 +41,14 @@ import com.gero.newpass.utilities.VibrationHelper;
 import com.gero.newpass.view.activities.MainViewActivity;
 import com.gero.newpass.view.adapters.SettingsAdapter;
 
-import java.io.IOException;
 import java.util.ArrayList;
 
 public class SettingsFragment extends Fragment {
     private static final int REQUEST_CODE_EXPORT_DOCUMENT = 1;
     private static final int REQUEST_CODE_IMPORT_DOCUMENT = 2;
+    private static final int REQUEST_CODE_IMPORT_CSV = 3;
+    private static final int REQUEST_CODE_CREATE_BACKUP = 4;
+    private static final int REQUEST_CODE_RESTORE_BACKUP = 5;
     private ImageButton buttonBack;
     private FragmentSettingsBinding binding;
     private ListView listView;
@@ -49,12 +59,19 @@ public class SettingsFragment extends Fragment {
     static final int CHANGE_PASSWORD = 3;
     static final int EXPORT = 4;
     static final int IMPORT = 5;
-    static final int GITHUB = 6;
-    static final int SHARE = 7;
-    static final int CONTACT = 8;
-    static final int APP_VERSION = 9;
+    static final int IMPORT_CSV = 6;
+    static final int CREATE_BACKUP = 7;
+    static final int RESTORE_BACKUP = 8;
+    static final int OPTIMIZE_ENCRYPTION = 9;
+    static final int STORAGE = 10;
+    static final int GITHUB = 11;
+    static final int SHARE = 12;
+    static final int CONTACT = 13;
+    static final int APP_VERSION = 14;
     View dialogView;
     private String inputPassword;
+    private boolean incrementalBackup;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
 
 
     @Override
@@ -126,6 +143,44 @@ public class SettingsFragment extends Fragment {
 
                     break;
 
+                case IMPORT_CSV:
+                    VibrationHelper.vibrate(binding.getRoot(), VibrationHelper.VibrationType.Weak);
+
+                    Intent intentImportCsv = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+                    intentImportCsv.addCategory(Intent.CATEGORY_OPENABLE);
+                    intentImportCsv.setType("*/*");
+                    intentImportCsv.putExtra(Intent.EXTRA_MIME_TYPES, new String[]{"text/csv", "text/comma-separated-values", "text/plain", "application/octet-stream"});
+
+                    startActivityForResult(intentImportCsv, REQUEST_CODE_IMPORT_CSV);
+
+                    break;
+
+                case CREATE_BACKUP:
+                    VibrationHelper.vibrate(binding.getRoot(), VibrationHelper.VibrationType.Weak);
+                    showBackupTypeDialog();
+                    break;
+
+                case RESTORE_BACKUP:
+                    VibrationHelper.vibrate(binding.getRoot(), VibrationHelper.VibrationType.Weak);
+
+                    Intent intentRestoreBackup = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+                    intentRestoreBackup.addCategory(Intent.CATEGORY_OPENABLE);
+                    intentRestoreBackup.setType("*/*");
+
+                    startActivityForResult(intentRestoreBackup, REQUEST_CODE_RESTORE_BACKUP);
+
+                    break;
+
+                case OPTIMIZE_ENCRYPTION:
+                    VibrationHelper.vibrate(binding.getRoot(), VibrationHelper.VibrationType.Weak);
+                    optimizeEncryption();
+                    break;
+
+                case STORAGE:
+                    VibrationHelper.vibrate(binding.getRoot(), VibrationHelper.VibrationType.Weak);
+                    showStorageDialog();
+                    break;
+
                 case GITHUB:
                     VibrationHelper.vibrate(binding.getRoot(), VibrationHelper.VibrationType.Weak);
                     url = "https://github.com/6eero/NewPass";
@@ -164,6 +219,11 @@ public class SettingsFragment extends Fragment {
         arrayList.add(new SettingData(R.drawable.settings_icon_lock, getString(R.string.settings_change_password)));
         arrayList.add(new SettingData(R.drawable.icon_export, getString(R.string.settings_export_db)));
         arrayList.add(new SettingData(R.drawable.icon_import, getString(R.string.settings_import_db)));
+        arrayList.add(new SettingData(R.drawable.icon_import, getString(R.string.settings_import_csv)));
+        arrayList.add(new SettingData(R.drawable.icon_export, getString(R.string.settings_create_backup)));
+        arrayList.add(new SettingData(R.drawable.icon_import, getString(R.string.settings_restore_backup)));
+        arrayList.add(new SettingData(R.drawable.settings_icon_lock, getString(R.string.settings_optimize_encryption)));
+        arrayList.add(new SettingData(R.drawable.icon_export, getString(R.string.settings_storage)));
         arrayList.add(new SettingData(R.drawable.settings_icon_github, getString(R.string.settings_github), true));
         arrayList.add(new SettingData(R.drawable.settings_icon_share, getString(R.string.settings_share_newpass), true));
         arrayList.add(new SettingData(R.drawable.settings_icon_telegram, getString(R.string.settings_contact_me), true));
@@ -208,12 +268,14 @@ public class SettingsFragment extends Fragment {
                     if (inputOne.equals(encryptedSharedPreferences.getString("password", "")) && inputTwo.length() >= 4 && inputTwo.equals(inputThree)) {
                         //Log.i("2895124", "Correct password");
 
-                        SharedPreferences.Editor editor = encryptedSharedPreferences.edit();
-                        editor.putString("password", inputTwo);
-                        editor.apply();
+                        AlertDialog progressDialog = showProgressDialog(R.string.settings_change_password, null);
 
-                        //Log.w("Database123", "psw in the encryptedsharedpref aka new key: " + encryptedSharedPreferences.getString("password", ""));
-                        DatabaseHelper.changeDBPassword(inputTwo, requireContext());
+                        // The new password is stored by the rekey itself, together with the swap of the vault file
+                        DatabaseServiceLocator.getVaultRepository().changePassword(requireContext().getApplicationContext(), inputTwo,
+                                progressUpdater(progressDialog), success -> mainHandler.post(() -> {
+                                    progressDialog.dismiss();
+                                    showResult(false, success, R.string.database_password_changed_successfully, R.string.failed_to_change_password);
+                                }));
                     } else if (inputTwo.length() < 4) {
                         Toast.makeText(requireContext(), R.string.password_must_be_at_least_4_characters_long, Toast.LENGTH_SHORT).show();
 
@@ -245,14 +307,14 @@ public class SettingsFragment extends Fragment {
                     inputPassword = input.getText().toString();
                     //Log.i("32890457", inputPassword);
 
-                    try {
-
-                        DatabaseHelper.importDatabase(requireContext(), fileURL, inputPassword);
-                        //DatabaseHelper.encryptAllPasswords(requireContext());
+                    CancellationSignal signal = new CancellationSignal();
+                    AlertDialog progressDialog = showProgressDialog(R.string.import_database, signal);
 
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
-                    }
+                    DatabaseServiceLocator.getVaultRepository().importDatabase(requireContext().getApplicationContext(), fileURL, inputPassword,
+                            progressUpdater(progressDialog), signal, success -> mainHandler.post(() -> {
+                                progressDialog.dismiss();
+                                showResult(signal.isCanceled(), success, R.string.database_imported_successfully, R.string.error_importing_database);
+                            }));
 
                 })
                 .setNegativeButton(R.string.cancel, (dialog, id) -> dialog.cancel());
@@ -262,6 +324,180 @@ public class SettingsFragment extends Fragment {
         dialog.show();
     }
 
+    private void showBackupTypeDialog() {
+        String[] types = {getString(R.string.backup_incremental), getString(R.string.backup_full)};
+
+        new AlertDialog.Builder(requireContext())
+                .setTitle(R.string.settings_create_backup)
+                .setItems(types, (dialog, which) -> {
+                    incrementalBackup = which == 0;
+
+                    Intent intentCreateBackup = new Intent(Intent.ACTION_CREATE_DOCUMENT);
+                    intentCreateBackup.addCategory(Intent.CATEGORY_OPENABLE);
+                    intentCreateBackup.setType("application/octet-stream");
+                    intentCreateBackup.putExtra(Intent.EXTRA_TITLE, "NewPass.npbak");
+
+                    startActivityForResult(intentCreateBackup, REQUEST_CODE_CREATE_BACKUP);
+                })
+                .setNegativeButton(R.string.cancel, (dialog, id) -> dialog.cancel())
+                .show();
+    }
+
+    @SuppressLint("InflateParams")
+    private void showRestoreBackupDialog(Uri fileURL) {
+        View restoreView = getLayoutInflater().inflate(R.layout.dialog_import_db, null);
+        EditText input = restoreView.findViewById(R.id.input);
+
+        new AlertDialog.Builder(requireContext())
+                .setTitle(R.string.settings_restore_backup)
+                .setView(restoreView)
+                .setPositiveButton(R.string.confirm, (dialog, id) -> {
+                    char[] password = input.getText().toString().toCharArray();
+
+                    CancellationSignal signal = new CancellationSignal();
+                    AlertDialog progressDialog = showProgressDialog(R.string.settings_restore_backup, signal);
+
+                    DatabaseServiceLocator.getVaultRepository().restoreBackup(requireContext().getApplicationContext(), fileURL, password,
+                            progressUpdater(progressDialog, false), signal, duplicates -> mainHandler.post(() -> {
+                                progressDialog.dismiss();
+
+                                if (duplicates != null && duplicates > 0 && isAdded()) {
+                                    Toast.makeText(requireContext(), getString(R.string.backup_restored_with_duplicates, duplicates), Toast.LENGTH_LONG).show();
+                                } else {
+                                    showResult(signal.isCanceled(), duplicates != null, R.string.backup_restored, R.string.failed_to_restore_backup);
+                                }
+                            }));
+                })
+                .setNegativeButton(R.string.cancel, (dialog, id) -> dialog.cancel())
+                .show();
+    }
+
+    private void optimizeEncryption() {
+        CancellationSignal signal = new CancellationSignal();
+        AlertDialog progressDialog = showProgressDialog(R.string.settings_optimize_encryption, signal);
+
+        DatabaseServiceLocator.getVaultRepository().optimizeCipherProfile(requireContext().getApplicationContext(), signal,
+                result -> mainHandler.post(() -> {
+                    progressDialog.dismiss();
+
+                    if (!isAdded()) {
+                        return;
+                    }
+
+                    if (result != null) {
+                        Toast.makeText(requireContext(), getString(R.string.encryption_optimized,
+                                result.estimatedUnlockMillis, result.profile.getPageSize()), Toast.LENGTH_LONG).show();
+                    } else {
+                        showResult(signal.isCanceled(), false, 0, R.string.failed_to_optimize_encryption);
+                    }
+                }));
+    }
+
+    private void showStorageDialog() {
+        DatabaseServiceLocator.getVaultRepository().readStorageStats(stats -> mainHandler.post(() -> {
+            if (!isAdded()) {
+                return;
+            }
+
+            if (stats == null) {
+                Toast.makeText(requireContext(), R.string.failed_to_read_storage, Toast.LENGTH_SHORT).show();
+                return;
+            }
+
+            new AlertDialog.Builder(requireContext())
+                    .setTitle(R.string.settings_storage)
+                    .setMessage(getString(R.string.storage_summary,
+                            Formatter.formatShortFileSize(requireContext(), stats.fileBytes + stats.walBytes),
+                            Formatter.formatShortFileSize(requireContext(), stats.getReclaimableBytes())))
+                    .setPositiveButton(R.string.storage_compact, (dialog, id) -> compactVault())
+                    .setNegativeButton(R.string.cancel, (dialog, id) -> dialog.cancel())
+                    .show();
+        }));
+    }
+
+    private void compactVault() {
+        AlertDialog progressDialog = showProgressDialog(R.string.storage_compact, null);
+
+        DatabaseServiceLocator.getVaultRepository().compact(stats -> mainHandler.post(() -> {
+            progressDialog.dismiss();
+
+            if (!isAdded()) {
+                return;
+            }
+
+            if (stats != null) {
+                Toast.makeText(requireContext(), getString(R.string.vault_compacted,
+                        Formatter.formatShortFileSize(requireContext(), stats.fileBytes + stats.walBytes)), Toast.LENGTH_LONG).show();
+            } else {
+                showResult(false, false, 0, R.string.failed_to_compact_vault);
+            }
+        }));
+    }
+
+    /**
+     * @param signal Canceled by the stop button, or null if the operation can't be stopped.
+     */
+    @SuppressLint("InflateParams")
+    private AlertDialog showProgressDialog(@StringRes int title, @Nullable CancellationSignal signal) {
+        View progressView = getLayoutInflater().inflate(R.layout.dialog_progress, null);
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(requireContext())
+                .setTitle(title)
+                .setView(progressView)
+                .setCancelable(false);
+
+        if (signal != null) {
+            builder.setNegativeButton(R.string.stop, (d, id) -> signal.cancel());
+        }
+
+        AlertDialog dialog = builder.create();
+        dialog.show();
+        return dialog;
+    }
+
+    private ProgressListener progressUpdater(AlertDialog dialog) {
+        return progressUpdater(dialog, true);
+    }
+
+    /**
+     * Moves the progress reported by the write thread to the bar of the given dialog.
+     * The bar stays indeterminate while the total is unknown.
+     *
+     * @param inBytes Whether the progress counts bytes, shown as sizes, or anything else, shown as a percentage.
+     */
+    private ProgressListener progressUpdater(AlertDialog dialog, boolean inBytes) {
+        Context context = requireContext().getApplicationContext();
+        ProgressBar progressBar = dialog.findViewById(R.id.progress_bar);
+        TextView progressText = dialog.findViewById(R.id.progress_text);
+
+        return (done, total) -> mainHandler.post(() -> {
+            if (total > 0) {
+                int percent = (int) (done * 100 / total);
+                progressBar.setIndeterminate(false);
+                progressBar.setProgress(percent);
+                progressText.setText(inBytes
+                        ? Formatter.formatShortFileSize(context, done) + " / " + Formatter.formatShortFileSize(context, total)
+                        : percent + "%");
+            } else if (inBytes) {
+                progressText.setText(Formatter.formatShortFileSize(context, done));
+            }
+        });
+    }
+
+    private void showResult(boolean canceled, boolean success, @StringRes int successMessage, @StringRes int failureMessage) {
+        if (!isAdded()) {
+            return;
+        }
+
+        if (success) {
+            Toast.makeText(requireContext(), successMessage, Toast.LENGTH_SHORT).show();
+        } else if (canceled) {
+            Toast.makeText(requireContext(), R.string.operation_canceled, Toast.LENGTH_SHORT).show();
+        } else {
+            Toast.makeText(requireContext(), failureMessage, Toast.LENGTH_SHORT).show();
+        }
+    }
+
 
     @Override
     public void onActivityResult(int requestCode, int resultCode, Intent data) {
@@ -273,7 +509,15 @@ public class SettingsFragment extends Fragment {
             if (requestCode == REQUEST_CODE_EXPORT_DOCUMENT) {
                 if (data != null) {
                     fileURL = data.getData();
-                    DatabaseHelper.exportDatabase(requireContext(), fileURL);
+
+                    CancellationSignal signal = new CancellationSignal();
+                    AlertDialog progressDialog = showProgressDialog(R.string.exporting_database, signal);
+
+                    DatabaseServiceLocator.getVaultRepository().exportDatabase(requireContext().getApplicationContext(), fileURL,
+                            progressUpdater(progressDialog), signal, success -> mainHandler.post(() -> {
+                                progressDialog.dismiss();
+                                showResult(signal.isCanceled(), success, R.string.database_exported_successfully, R.string.failed_to_export_database);
+                            }));
                 }
             }
 
@@ -284,6 +528,52 @@ public class SettingsFragment extends Fragment {
                     showImportingDialog(fileURL);
                 }
             }
+
+            if (requestCode == REQUEST_CODE_CREATE_BACKUP) {
+                if (data != null) {
+                    fileURL = data.getData();
+
+                    // The backup is protected by the password of the vault
+                    char[] password = encryptedSharedPreferences.getString("password", "").toCharArray();
+                    CancellationSignal signal = new CancellationSignal();
+                    AlertDialog progressDialog = showProgressDialog(R.string.settings_create_backup, signal);
+
+                    DatabaseServiceLocator.getVaultRepository().createBackup(requireContext().getApplicationContext(), fileURL, password, incrementalBackup, true,
+                            progressUpdater(progressDialog, false), signal, success -> mainHandler.post(() -> {
+                                progressDialog.dismiss();
+                                showResult(signal.isCanceled(), success, R.string.backup_created, R.string.failed_to_create_backup);
+                            }));
+                }
+            }
+
+            if (requestCode == REQUEST_CODE_RESTORE_BACKUP) {
+                if (data != null) {
+                    fileURL = data.getData();
+
+                    showRestoreBackupDialog(fileURL);
+                }
+            }
+
+            if (requestCode == REQUEST_CODE_IMPORT_CSV) {
+                if (data != null) {
+                    fileURL = data.getData();
+
+                    CancellationSignal signal = new CancellationSignal();
+                    AlertDialog progressDialog = showProgressDialog(R.string.settings_import_csv, signal);
+
+                    DatabaseServiceLocator.getVaultRepository().importCsv(requireContext().getApplicationContext(), fileURL,
+                            progressUpdater(progressDialog), signal, summary -> mainHandler.post(() -> {
+                                progressDialog.dismiss();
+
+                                if (summary != null && isAdded()) {
+                                    Toast.makeText(requireContext(), getString(R.string.csv_imported,
+                                            summary.added, summary.duplicates + summary.failed + summary.skipped), Toast.LENGTH_LONG).show();
+                                } else {
+                                    showResult(signal.isCanceled(), false, 0, R.string.failed_to_import_csv);
+                                }
+                            }));
+                }
+            }
         }
     }
 }
\ No newline at end of file
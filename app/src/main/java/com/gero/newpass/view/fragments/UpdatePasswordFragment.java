@@ -25,7 +25,6 @@ import androidx.lifecycle.ViewModelProvider;
 
 import com.gero.newpass.R;
 import com.gero.newpass.databinding.FragmentUpdatePasswordBinding;
-import com.gero.newpass.encryption.EncryptionHelper;
 
 import com.gero.newpass.factory.ViewMoldelsFactory;
 import com.gero.newpass.repository.ResourceRepository;
@@ -71,11 +70,16 @@ public class UpdatePasswordFragment extends Fragment {
 
         Activity activity = this.getActivity();
 
-        String decryptedPassword = EncryptionHelper.decrypt(password);
-
         name_input.setText(name);
         email_input.setText(email);
-        passwordInput.setText(decryptedPassword);
+
+        // The list doesn't carry the passwords, read and decrypt this one in the background
+        updateViewModel.getPasswordLiveData().observe(getViewLifecycleOwner(), decryptedPassword -> {
+            if (decryptedPassword != null) {
+                passwordInput.setText(decryptedPassword, 0, decryptedPassword.length);
+            }
+        });
+        updateViewModel.loadPassword(entry);
 
         // Observe any feedback messages from the ViewModel
         updateViewModel.getMessageLiveData().observe(getViewLifecycleOwner(), message ->
@@ -104,10 +108,6 @@ public class UpdatePasswordFragment extends Fragment {
         updateViewModel.getSuccessUpdateLiveData().observe(getViewLifecycleOwner(), success -> {
                     if (success) {
                         if (activity instanceof MainViewActivity) {
-                            Bundle result = new Bundle();
-                            //Result key for the main fragment to update the addition
-                            result.putString("resultKey", "1");
-                            getParentFragmentManager().setFragmentResult("requestKey", result);
                             ((MainViewActivity) activity).onBackPressed();
                         }
                     }
@@ -127,16 +127,7 @@ public class UpdatePasswordFragment extends Fragment {
                     AlertDialog.Builder builder = new AlertDialog.Builder(this.requireContext());
                     builder.setTitle(getString(R.string.update_alertdialog_title) + name + " ?");
                     builder.setMessage(getString(R.string.update_alertdialog_are_you_sure_you_want_to_delete) + name + " ?");
-                    builder.setPositiveButton(R.string.update_alertdialog_yes, (dialogInterface, i) -> {
-                        updateViewModel.deleteEntry(entry);
-                        if (activity instanceof MainViewActivity) {
-                            Bundle result = new Bundle();
-                            //Result key for the main fragment to update the deletion
-                            result.putString("resultKey", "1");
-                            getParentFragmentManager().setFragmentResult("requestKey", result);
-                            ((MainViewActivity) activity).onBackPressed();
-                        }
-                    });
+                    builder.setPositiveButton(R.string.update_alertdialog_yes, (dialogInterface, i) -> updateViewModel.deleteEntry(entry));
                     builder.setNegativeButton(R.string.update_alertdialog_no, (dialogInterface, i) -> {
 
                     });
@@ -151,10 +142,16 @@ public class UpdatePasswordFragment extends Fragment {
         updateViewModel.getSuccessUpdateLiveData().observe(getViewLifecycleOwner(), success -> {
                     if (success) {
                         if (activity instanceof MainViewActivity) {
-                            Bundle result = new Bundle();
-                            //Result key for the main fragment to update the addition
-                            result.putString("resultKey", "1");
-                            getParentFragmentManager().setFragmentResult("requestKey", result);
+                            ((MainViewActivity) activity).onBackPressed();
+                        }
+                    }
+                }
+        );
+
+        // The deletion runs in the background, go back only once it has been written
+        updateViewModel.getSuccessDeleteLiveData().observe(getViewLifecycleOwner(), success -> {
+                    if (success) {
+                        if (activity instanceof MainViewActivity) {
                             ((MainViewActivity) activity).onBackPressed();
                         }
                     }
@@ -188,9 +185,6 @@ public class UpdatePasswordFragment extends Fragment {
 
         backButton.setOnClickListener(v -> {
             if (activity instanceof MainViewActivity) {
-                Bundle result = new Bundle();
-                result.putString("resultKey", "1");
-                getParentFragmentManager().setFragmentResult("requestKey", result);
                 ((MainViewActivity) activity).onBackPressed();
             }
         });
@@ -199,11 +193,10 @@ public class UpdatePasswordFragment extends Fragment {
     private void getAndSetIntentData() {
         Bundle args = getArguments();
         if (args != null && args.containsKey("entry") && args.containsKey("name") &&
-                args.containsKey("email") && args.containsKey("password")) {
+                args.containsKey("email")) {
             entry = args.getString("entry");
             name = args.getString("name");
             email = args.getString("email");
-            password = args.getString("password");
         } else {
             Toast.makeText(this.getContext(), R.string.update_no_data, Toast.LENGTH_SHORT).show();
         }
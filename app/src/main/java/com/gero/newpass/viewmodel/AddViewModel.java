@@ -1,9 +1,9 @@
 package com.gero.newpass.viewmodel;
 
 import com.gero.newpass.R;
-import com.gero.newpass.database.DatabaseHelper;
 import com.gero.newpass.database.DatabaseServiceLocator;
 import com.gero.newpass.repository.ResourceRepository;
+import com.gero.newpass.repository.VaultRepository;
 
 import androidx.lifecycle.LiveData;
 import androidx.lifecycle.MutableLiveData;
@@ -11,13 +11,13 @@ import androidx.lifecycle.ViewModel;
 
 public class AddViewModel extends ViewModel {
 
-    private final DatabaseHelper databaseHelper;
+    private final VaultRepository vaultRepository;
     private final MutableLiveData<String> messageLiveData = new MutableLiveData<>();
     private final MutableLiveData<Boolean> successLiveData = new MutableLiveData<>();
     private final ResourceRepository resourceRepository;
 
     public AddViewModel(ResourceRepository resourceRepository) {
-        this.databaseHelper = DatabaseServiceLocator.getDatabaseHelper();
+        this.vaultRepository = DatabaseServiceLocator.getVaultRepository();
         this.resourceRepository = resourceRepository;
     }
 
@@ -33,15 +33,20 @@ public class AddViewModel extends ViewModel {
 
         if (!name.isEmpty() && !email.isEmpty() && password.length() >= 4) {
 
-            if (databaseHelper.checkIfAccountAlreadyExist(name, email)) {
-                    messageLiveData.setValue(resourceRepository.getString(R.string.this_account_already_exists));
-                    successLiveData.setValue(false);
+            vaultRepository.addEntry(name, email, password, added -> {
+                if (added == null) {
+                    messageLiveData.postValue(resourceRepository.getString(R.string.dbhelper_failed));
+                    successLiveData.postValue(false);
 
-                } else  {
-                    databaseHelper.addEntry(name, email, password);
-                    messageLiveData.setValue(resourceRepository.getString(R.string.account_added_successfully));
-                    successLiveData.setValue(true);
+                } else if (added) {
+                    messageLiveData.postValue(resourceRepository.getString(R.string.account_added_successfully));
+                    successLiveData.postValue(true);
+
+                } else {
+                    messageLiveData.postValue(resourceRepository.getString(R.string.this_account_already_exists));
+                    successLiveData.postValue(false);
                 }
+            });
 
             } else {
                 successLiveData.setValue(false);
@@ -1,70 +1,154 @@
 package com.gero.newpass.viewmodel;
 
-import android.database.Cursor;
+import android.os.Handler;
+import android.os.Looper;
 
 import androidx.lifecycle.LiveData;
 import androidx.lifecycle.MutableLiveData;
 import androidx.lifecycle.ViewModel;
 
 import com.gero.newpass.model.UserData;
-import com.gero.newpass.database.DatabaseHelper;
 import com.gero.newpass.database.DatabaseServiceLocator;
+import com.gero.newpass.repository.EntryChanges;
+import com.gero.newpass.repository.PagedEntryList;
+import com.gero.newpass.repository.TrigramSearchIndex;
+import com.gero.newpass.repository.VaultRepository;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class MainViewModel extends ViewModel {
 
-    private MutableLiveData<ArrayList<UserData>> userDataList, searchedDataList;
-    private final DatabaseHelper myDB;
+    // Wait for a short pause in the typing before searching
+    private static final long SEARCH_DEBOUNCE_MS = 120;
+
+    private final MutableLiveData<PagedEntryList> userDataList = new MutableLiveData<>();
+    private final MutableLiveData<List<UserData>> searchedDataList = new MutableLiveData<>();
+    // Outcomes of the batch operations, reset to null once the fragment has applied them
+    private final MutableLiveData<List<String>> deletedEntries = new MutableLiveData<>();
+    private final MutableLiveData<List<UserData>> updatedEntries = new MutableLiveData<>();
+    private final VaultRepository vaultRepository;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final AtomicInteger searchGeneration = new AtomicInteger();
+    private volatile TrigramSearchIndex.Result lastSearchResult;
+    private Runnable pendingSearch;
+    private String lastQuery;
+    // Posted in order with the lists loaded, both come from the write thread
+    private final VaultRepository.Callback<EntryChanges> entryObserver = changes -> mainHandler.post(() -> onEntriesChanged(changes));
 
     public MainViewModel() {
-        myDB = DatabaseServiceLocator.getDatabaseHelper();
+        vaultRepository = DatabaseServiceLocator.getVaultRepository();
+        vaultRepository.prepareSearchIndex();
+        vaultRepository.upgradePasswordStorage();
+        vaultRepository.addEntryObserver(entryObserver);
+        storeDataInArrays();
     }
 
+    /**
+     * Loads the list of the whole vault. It is then kept up to date by the changes of every write,
+     * and only loaded again when they can't be applied in place.
+     */
     public void storeDataInArrays() {
-        userDataList = new MutableLiveData<>();
-        ArrayList<UserData> localList = new ArrayList<>();
-        Cursor cursor = myDB.readAllData();
-
-        if (cursor != null && cursor.getCount() > 0) {
-            while (cursor.moveToNext()) {
-                UserData userData = new UserData(
-                        cursor.getString(0),
-                        cursor.getString(1),
-                        cursor.getString(2),
-                        cursor.getString(3)
-                );
-                localList.add(userData);
+        vaultRepository.loadPagedEntries(list -> {
+            if (list != null) {
+                mainHandler.post(() -> userDataList.setValue(list));
             }
+        });
+    }
+
+    /**
+     * Moves the changes of a write into the list, which tells its adapter which rows to rebind,
+     * and runs the last search again so its results follow.
+     */
+    private void onEntriesChanged(EntryChanges changes) {
+        PagedEntryList list = userDataList.getValue();
+
+        if (list == null || !list.apply(changes)) {
+            storeDataInArrays();
+        }
+
+        if (lastQuery != null) {
+            onSearchQueryChanged(lastQuery);
         }
-        userDataList.postValue(localList);
     }
 
-    public void storeSearchedDataInArrays(String searchedData) {
-        searchedDataList = new MutableLiveData<>();
-        ArrayList<UserData> localList = new ArrayList<>();
-        Cursor cursor = myDB.searchItem(searchedData);
-
-        if (cursor != null && cursor.getCount() > 0) {
-            while (cursor.moveToNext()) {
-                UserData userData = new UserData(
-                        cursor.getString(0),
-                        cursor.getString(1),
-                        cursor.getString(2),
-                        cursor.getString(3)
-                );
-
-                localList.add(userData);
+    /**
+     * Filters the entries as the user types. Only the last query of a burst of keystrokes is run,
+     * and results of queries that have been superseded in the meantime are dropped.
+     *
+     * @param searchedData The current content of the search field.
+     */
+    public void onSearchQueryChanged(String searchedData) {
+        if (pendingSearch != null) {
+            mainHandler.removeCallbacks(pendingSearch);
+        }
+
+        lastQuery = searchedData;
+
+        int generation = searchGeneration.incrementAndGet();
+
+        pendingSearch = () -> vaultRepository.searchAsYouType(searchedData, lastSearchResult, result -> {
+            if (generation == searchGeneration.get()) {
+                lastSearchResult = result;
+                searchedDataList.postValue(result.getEntries());
             }
+        });
+        mainHandler.postDelayed(pendingSearch, SEARCH_DEBOUNCE_MS);
+    }
+
+    /**
+     * Deletes the selected entries in one transaction. The IDs of the deleted ones are posted to {@link #getDeletedEntries()},
+     * or an empty list if the transaction failed.
+     */
+    public void deleteEntries(List<UserData> entries) {
+        List<String> rowIds = new ArrayList<>(entries.size());
+        for (UserData entry : entries) {
+            rowIds.add(entry.getId());
         }
-        searchedDataList.postValue(localList);
+
+        vaultRepository.deleteEntries(rowIds, deleted ->
+                deletedEntries.postValue(deleted != null ? deleted : Collections.emptyList()));
+    }
+
+    /**
+     * Sets the same email on the selected entries in one transaction. The updated entries are posted to
+     * {@link #getUpdatedEntries()}, or an empty list if the transaction failed.
+     */
+    public void updateEmails(List<UserData> entries, String email) {
+        vaultRepository.updateEmails(entries, email, updated ->
+                updatedEntries.postValue(updated != null ? updated : Collections.emptyList()));
     }
 
-    public LiveData<ArrayList<UserData>> getSearchedDataList() {
+    public LiveData<List<String>> getDeletedEntries() {
+        return deletedEntries;
+    }
+
+    public LiveData<List<UserData>> getUpdatedEntries() {
+        return updatedEntries;
+    }
+
+    /**
+     * Called once the outcome of a batch operation has been shown, so it isn't applied again when the view is recreated.
+     */
+    public void onBatchResultHandled() {
+        deletedEntries.setValue(null);
+        updatedEntries.setValue(null);
+    }
+
+    public LiveData<List<UserData>> getSearchedDataList() {
         return searchedDataList;
     }
 
-    public LiveData<ArrayList<UserData>> getUserDataList() {
+    public LiveData<PagedEntryList> getUserDataList() {
         return userDataList;
     }
-}
\ No newline at end of file
+
+    @Override
+    protected void onCleared() {
+        super.onCleared();
+        vaultRepository.removeEntryObserver(entryObserver);
+        mainHandler.removeCallbacksAndMessages(null);
+    }
+}
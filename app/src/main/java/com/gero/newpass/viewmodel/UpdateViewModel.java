@@ -6,21 +6,24 @@ import androidx.lifecycle.MutableLiveData;
 import androidx.lifecycle.ViewModel;
 
 import com.gero.newpass.R;
-import com.gero.newpass.database.DatabaseHelper;
 import com.gero.newpass.database.DatabaseServiceLocator;
-import com.gero.newpass.encryption.EncryptionHelper;
 import com.gero.newpass.repository.ResourceRepository;
+import com.gero.newpass.repository.VaultRepository;
+
+import java.util.Arrays;
 
 public class UpdateViewModel extends ViewModel {
 
-    private final DatabaseHelper databaseHelper;
+    private final VaultRepository vaultRepository;
     private final MutableLiveData<String> messageLiveData = new MutableLiveData<>();
     private final MutableLiveData<Boolean> successUpdateLiveData = new MutableLiveData<>();
     private final MutableLiveData<Boolean> successDeleteLiveData = new MutableLiveData<>();
+    // Zeroed when the view model is cleared
+    private final MutableLiveData<char[]> passwordLiveData = new MutableLiveData<>();
     private final ResourceRepository resourceRepository;
 
     public UpdateViewModel(ResourceRepository resourceRepository) {
-        this.databaseHelper = DatabaseServiceLocator.getDatabaseHelper();
+        this.vaultRepository = DatabaseServiceLocator.getVaultRepository();
         this.resourceRepository = resourceRepository;
     }
 
@@ -30,15 +33,28 @@ public class UpdateViewModel extends ViewModel {
     public LiveData<Boolean> getSuccessUpdateLiveData() {
         return successUpdateLiveData;
     }
+    public LiveData<Boolean> getSuccessDeleteLiveData() {
+        return successDeleteLiveData;
+    }
+    public LiveData<char[]> getPasswordLiveData() {
+        return passwordLiveData;
+    }
 
-    public void updateEntry(String entry, String name, String email, String password) {
+    public void loadPassword(String entry) {
+        // Already loaded, e.g. after a configuration change
+        if (passwordLiveData.getValue() != null) {
+            return;
+        }
+        vaultRepository.readPassword(entry, passwordLiveData::postValue);
+    }
 
-        String encryptedPassword = EncryptionHelper.encrypt(password);
+    public void updateEntry(String entry, String name, String email, String password) {
 
         if (!name.isEmpty() && !email.isEmpty() && password.length() >= 4) {
-            databaseHelper.updateData(entry, name, email, encryptedPassword);
-            messageLiveData.setValue(resourceRepository.getString(R.string.dbhelper_updated_successfully));
-            successUpdateLiveData.setValue(true);
+            vaultRepository.updateEntry(entry, name, email, password, updated -> {
+                messageLiveData.postValue(resourceRepository.getString(updated ? R.string.dbhelper_updated_successfully : R.string.dbhelper_failed));
+                successUpdateLiveData.postValue(updated);
+            });
 
         } else {
             successUpdateLiveData.setValue(false);
@@ -55,9 +71,19 @@ public class UpdateViewModel extends ViewModel {
         }
     }
 
+    @Override
+    protected void onCleared() {
+        char[] password = passwordLiveData.getValue();
+
+        if (password != null) {
+            Arrays.fill(password, '\0');
+        }
+    }
+
     public void deleteEntry(String entry) {
-        databaseHelper.deleteOneRow(entry);
-        messageLiveData.setValue(resourceRepository.getString(R.string.dbhelper_successfully_deleted));
-        successDeleteLiveData.setValue(true);
+        vaultRepository.deleteEntry(entry, deleted -> {
+            messageLiveData.postValue(resourceRepository.getString(deleted ? R.string.dbhelper_successfully_deleted : R.string.dbhelper_failed_to_delete));
+            successDeleteLiveData.postValue(deleted);
+        });
     }
 }
@@ -0,0 +1,96 @@
+package com.gero.newpass.backup;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test, which will execute on the development machine (host).
+ * Reads headers as they are written on disk and checks that they authenticate the chunks written with them.
+ */
+public class BackupFormatTest {
+
+    private static final SecretKey KEY = new SecretKeySpec(new byte[BackupFormat.KEY_LENGTH], "AES");
+
+    @Test
+    public void readVersion1Header_encodesTheSameBytes() throws IOException {
+        byte[] written = version1Header();
+
+        BackupFormat.Header header = read(written);
+
+        assertEquals(1, header.version);
+        assertFalse(header.scope.incremental);
+        assertNull(header.scope.chainId);
+        assertArrayEquals(written, header.encoded);
+    }
+
+    @Test
+    public void readVersion1Header_opensTheChunksWrittenWithIt() throws IOException, GeneralSecurityException {
+        byte[] written = version1Header();
+        byte[] plainText = "chunk".getBytes(StandardCharsets.UTF_8);
+
+        // Sealed the way a version 1 writer did: the header as it is on disk, the chunk index, the last chunk flag
+        int nonceOffset = BackupFormat.MAGIC.length + 1 + 1 + 4 + BackupFormat.SALT_LENGTH;
+        byte[] iv = Arrays.copyOf(Arrays.copyOfRange(written, nonceOffset, nonceOffset + BackupFormat.NONCE_PREFIX_LENGTH), 12);
+        byte[] aad = Arrays.copyOf(written, written.length + 5);
+        aad[aad.length - 1] = 1;
+        Cipher sealer = Cipher.getInstance("AES/GCM/NoPadding");
+        sealer.init(Cipher.ENCRYPT_MODE, KEY, new GCMParameterSpec(BackupFormat.TAG_LENGTH_BITS, iv));
+        sealer.updateAAD(aad);
+        byte[] chunk = sealer.doFinal(plainText);
+
+        Cipher opener = BackupFormat.chunkCipher(Cipher.DECRYPT_MODE, KEY, read(written), 0, true);
+
+        assertArrayEquals(plainText, opener.doFinal(chunk));
+    }
+
+    @Test
+    public void readCreatedHeader_encodesTheSameBytes() throws IOException {
+        BackupFormat.Header created = BackupFormat.Header.create(true, BackupScope.read(true, "0123456789abcdef", 5, 9));
+
+        BackupFormat.Header header = read(created.encoded);
+
+        assertEquals(BackupFormat.VERSION, header.version);
+        assertTrue(header.isDeflated());
+        assertTrue(header.scope.incremental);
+        assertEquals("0123456789abcdef", header.scope.chainId);
+        assertEquals(5, header.scope.baseSequence);
+        assertEquals(9, header.scope.sequence);
+        assertArrayEquals(created.encoded, header.encoded);
+    }
+
+    private static byte[] version1Header() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        byte[] salt = new byte[BackupFormat.SALT_LENGTH];
+        byte[] noncePrefix = new byte[BackupFormat.NONCE_PREFIX_LENGTH];
+        Arrays.fill(salt, (byte) 1);
+        Arrays.fill(noncePrefix, (byte) 2);
+
+        out.write(BackupFormat.MAGIC);
+        out.writeByte(1);
+        out.writeByte(BackupFormat.FLAG_DEFLATE);
+        out.writeInt(BackupFormat.KDF_ITERATIONS);
+        out.write(salt);
+        out.write(noncePrefix);
+        return bytes.toByteArray();
+    }
+
+    private static BackupFormat.Header read(byte[] bytes) throws IOException {
+        return BackupFormat.Header.read(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+}
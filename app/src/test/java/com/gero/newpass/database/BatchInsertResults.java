@@ -0,0 +1,16 @@
+package com.gero.newpass.database;
+
+/**
+ * Builds the outcome of a batch the way {@link DatabaseHelper#addEntries} reports it, for the tests of other packages.
+ */
+public class BatchInsertResults {
+
+    public static BatchInsertResult of(BatchInsertResult.Status... statuses) {
+        BatchInsertResult result = new BatchInsertResult(statuses.length);
+
+        for (int i = 0; i < statuses.length; i++) {
+            result.set(i, statuses[i], statuses[i] == BatchInsertResult.Status.ADDED ? i + 1 : -1);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,189 @@
+package com.gero.newpass.encryption;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test, which will execute on the development machine (host).
+ * Stands a {@link JceKeyProvider} in for the Keystore key, and opens what the helper writes with a plain JCE cipher
+ * to check the layout of the stored passwords: the IV, the ciphertext and the tag.
+ */
+public class EncryptionHelperTest {
+
+    private static final int IV_LENGTH = 12;
+    private static final int TAG_LENGTH = 16;
+    private static final byte[] KEYSTORE_KEY = new byte[16];
+
+    static {
+        Arrays.fill(KEYSTORE_KEY, (byte) 7);
+    }
+
+    @Before
+    public void useJceKey() {
+        EncryptionHelper.setKeyProvider(new JceKeyProvider(KEYSTORE_KEY));
+    }
+
+    @After
+    public void dropKeys() {
+        EncryptionHelper.clearDataKey();
+    }
+
+    @Test
+    public void encryptToBytes_writesIvCiphertextAndTag() throws GeneralSecurityException {
+        byte[] plainText = "hunter22 \u00e9\u00e8".getBytes(StandardCharsets.UTF_8);
+
+        byte[] blob = EncryptionHelper.encryptToBytes("hunter22 \u00e9\u00e8");
+
+        assertEquals(IV_LENGTH + plainText.length + TAG_LENGTH, blob.length);
+        assertEquals(blob.length, EncryptionHelper.encryptedLength(plainText.length));
+        assertArrayEquals(plainText, open(KEYSTORE_KEY, blob));
+    }
+
+    @Test
+    public void encryptToBytes_usesANewIvEachTime() {
+        byte[] first = EncryptionHelper.encryptToBytes("hunter22");
+        byte[] second = EncryptionHelper.encryptToBytes("hunter22");
+
+        assertFalse(Arrays.equals(Arrays.copyOf(first, IV_LENGTH), Arrays.copyOf(second, IV_LENGTH)));
+    }
+
+    @Test
+    public void decrypt_roundTripsBytes() {
+        byte[] blob = EncryptionHelper.encryptToBytes("p\u00e4ss \uD83D\uDD11");
+
+        assertEquals("p\u00e4ss \uD83D\uDD11", EncryptionHelper.decrypt(blob));
+        assertArrayEquals("p\u00e4ss \uD83D\uDD11".toCharArray(), EncryptionHelper.decryptToChars(blob));
+    }
+
+    @Test
+    public void encrypt_roundTripsRangesOfArrays() throws GeneralSecurityException {
+        byte[] input = "--hunter22--".getBytes(StandardCharsets.UTF_8);
+        byte[] encrypted = new byte[5 + EncryptionHelper.encryptedLength(8)];
+        byte[] decrypted = new byte[3 + 8];
+
+        int written = EncryptionHelper.encrypt(input, 2, 8, encrypted, 5);
+        int read = EncryptionHelper.decrypt(encrypted, 5, written, decrypted, 3);
+
+        assertEquals(EncryptionHelper.encryptedLength(8), written);
+        assertEquals(8, read);
+        assertEquals("hunter22", new String(decrypted, 3, read, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void encrypt_roundTripsByteBuffers() throws GeneralSecurityException {
+        byte[] plainText = "hunter22".getBytes(StandardCharsets.UTF_8);
+
+        for (boolean direct : new boolean[]{false, true}) {
+            ByteBuffer encrypted = allocate(EncryptionHelper.encryptedLength(plainText.length), direct);
+            ByteBuffer decrypted = allocate(plainText.length, direct);
+
+            int written = EncryptionHelper.encrypt(ByteBuffer.wrap(plainText), encrypted);
+            encrypted.flip();
+            int read = EncryptionHelper.decrypt(encrypted, decrypted);
+
+            assertEquals(EncryptionHelper.encryptedLength(plainText.length), written);
+            assertEquals(plainText.length, read);
+            assertFalse(encrypted.hasRemaining());
+            decrypted.flip();
+            byte[] result = new byte[decrypted.remaining()];
+            decrypted.get(result);
+            assertArrayEquals(plainText, result);
+        }
+    }
+
+    @Test
+    public void encrypt_writesTheSameLayoutToByteBuffersAndArrays() throws GeneralSecurityException {
+        byte[] plainText = "hunter22".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer encrypted = ByteBuffer.allocate(EncryptionHelper.encryptedLength(plainText.length));
+
+        EncryptionHelper.encrypt(ByteBuffer.wrap(plainText), encrypted);
+
+        assertArrayEquals(plainText, open(KEYSTORE_KEY, encrypted.array()));
+        assertEquals("hunter22", EncryptionHelper.decrypt(encrypted.array()));
+    }
+
+    @Test
+    public void decrypt_rejectsTamperedData() {
+        byte[] blob = EncryptionHelper.encryptToBytes("hunter22");
+        blob[blob.length - 1] ^= 1;
+
+        assertThrows(AEADBadTagException.class,
+                () -> EncryptionHelper.decrypt(blob, 0, blob.length, new byte[blob.length], 0));
+    }
+
+    @Test
+    public void newWrappedDataKey_wrapsAKeyWithTheKeystoreKey() throws GeneralSecurityException {
+        byte[] wrappedKey = EncryptionHelper.newWrappedDataKey();
+
+        assertEquals(IV_LENGTH + 32 + TAG_LENGTH, wrappedKey.length);
+        assertEquals(32, open(KEYSTORE_KEY, wrappedKey).length);
+        assertFalse(EncryptionHelper.hasDataKey());
+    }
+
+    @Test
+    public void installDataKey_encryptsWithTheDataKey() throws GeneralSecurityException {
+        byte[] wrappedKey = EncryptionHelper.newWrappedDataKey();
+        byte[] dataKey = open(KEYSTORE_KEY, wrappedKey);
+
+        EncryptionHelper.installDataKey(wrappedKey);
+        byte[] blob = EncryptionHelper.encryptToBytes("hunter22");
+
+        assertTrue(EncryptionHelper.hasDataKey());
+        assertArrayEquals("hunter22".getBytes(StandardCharsets.UTF_8), open(dataKey, blob));
+        assertThrows(AEADBadTagException.class, () -> open(KEYSTORE_KEY, blob));
+        assertEquals("hunter22", EncryptionHelper.decrypt(blob));
+    }
+
+    @Test
+    public void installDataKey_stillDecryptsAndReencryptsLegacyPasswords() throws GeneralSecurityException {
+        byte[] legacy = EncryptionHelper.encryptToBytes("hunter22");
+        byte[] wrappedKey = EncryptionHelper.newWrappedDataKey();
+
+        EncryptionHelper.installDataKey(wrappedKey);
+
+        assertEquals("hunter22", EncryptionHelper.decrypt(legacy));
+
+        byte[] reencrypted = EncryptionHelper.reencryptWithDataKey(legacy);
+
+        assertArrayEquals("hunter22".getBytes(StandardCharsets.UTF_8), open(open(KEYSTORE_KEY, wrappedKey), reencrypted));
+        assertNull(EncryptionHelper.reencryptWithDataKey(reencrypted));
+    }
+
+    @Test
+    public void installDataKey_rejectsAKeyWrappedByAnotherKeystoreKey() throws GeneralSecurityException {
+        byte[] wrappedKey = EncryptionHelper.newWrappedDataKey();
+        EncryptionHelper.installDataKey(wrappedKey);
+
+        byte[] otherKey = new byte[16];
+        EncryptionHelper.setKeyProvider(new JceKeyProvider(otherKey));
+
+        assertThrows(AEADBadTagException.class, () -> EncryptionHelper.installDataKey(wrappedKey));
+        assertFalse(EncryptionHelper.hasDataKey());
+    }
+
+    private static ByteBuffer allocate(int capacity, boolean direct) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * Decrypts a blob laid out as IV, ciphertext and tag with a plain AES-GCM cipher.
+     */
+    private static byte[] open(byte[] key, byte[] blob) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"), new GCMParameterSpec(TAG_LENGTH * 8, blob, 0, IV_LENGTH));
+        return cipher.doFinal(blob, IV_LENGTH, blob.length - IV_LENGTH);
+    }
+}
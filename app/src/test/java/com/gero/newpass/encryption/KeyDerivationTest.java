@@ -0,0 +1,89 @@
+package com.gero.newpass.encryption;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test, which will execute on the development machine (host).
+ * Checks the derivation against the published PBKDF2-HMAC-SHA512 test vectors, and against the key factory of the JDK,
+ * which the host has but API 24 devices don't.
+ */
+public class KeyDerivationTest {
+
+    @Test
+    public void pbkdf2HmacSha512_matchesOneIterationVector() throws GeneralSecurityException {
+        assertVector("password", "salt", 1,
+                "867f70cf1ade02cff3752599a3a53dc4af34c7a669815ae5d513554e1c8cf252" +
+                "c02d470a285a0501bad999bfe943c08f050235d7d68b1da55e63f73b60a57fce");
+    }
+
+    @Test
+    public void pbkdf2HmacSha512_matchesTwoIterationsVector() throws GeneralSecurityException {
+        assertVector("password", "salt", 2,
+                "e1d9c16aa681708a45f5c7c4e215ceb66e011a2e9f0040713f18aefdb866d53c" +
+                "f76cab2868a39b9f7840edce4fef5a82be67335c77a6068e04112754f27ccf4e");
+    }
+
+    @Test
+    public void pbkdf2HmacSha512_matches4096IterationsVector() throws GeneralSecurityException {
+        assertVector("password", "salt", 4096,
+                "d197b1b33db0143e018b12f3d1d1479e6cdebdcc97c5c0f87f6902e072f457b5" +
+                "143f30602641b3d55cd335988cb36b84376060ecd532e039b742a239434af2d5");
+    }
+
+    @Test
+    public void pbkdf2HmacSha512_matchesLongPasswordAndSaltVector() throws GeneralSecurityException {
+        assertVector("passwordPASSWORDpassword", "saltSALTsaltSALTsaltSALTsaltSALTsalt", 4096,
+                "8c0511f4c6e597c6ac6315d8f0362e225f3c501495ba23b868c005174dc4ee71" +
+                "115b59f9e60cd9532fa33e0f75aefe30225c583a186cd82bd4daea9724a3d3b8");
+    }
+
+    @Test
+    public void pbkdf2HmacSha512_matchesTheJdkForOtherLengthsAndUtf8Passwords() throws GeneralSecurityException {
+        char[] password = "p\u00e4ssw\u00f6rd \uD83D\uDD11".toCharArray();
+        byte[] salt = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+        // The SQLCipher key, a key spanning two blocks and one ending inside the second block
+        for (int keyLength : new int[]{32, 128, 100}) {
+            byte[] expected = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA512")
+                    .generateSecret(new PBEKeySpec(password, salt, 1000, keyLength * 8)).getEncoded();
+
+            assertArrayEquals(expected, KeyDerivation.pbkdf2HmacSha512(password, salt, 1000, keyLength));
+        }
+    }
+
+    @Test
+    public void pbkdf2HmacSha512_leavesThePasswordUnchanged() throws GeneralSecurityException {
+        char[] password = "password".toCharArray();
+
+        KeyDerivation.pbkdf2HmacSha512(password, "salt".getBytes(StandardCharsets.US_ASCII), 1, 64);
+
+        assertArrayEquals("password".toCharArray(), password);
+    }
+
+    private static void assertVector(String password, String salt, int iterations, String expectedHex) throws GeneralSecurityException {
+        byte[] key = KeyDerivation.pbkdf2HmacSha512(password.toCharArray(), salt.getBytes(StandardCharsets.US_ASCII), iterations, 64);
+
+        assertArrayEquals(fromHex(expectedHex), key);
+        // A shorter key is the start of the longer one
+        assertArrayEquals(Arrays.copyOf(key, 32),
+                KeyDerivation.pbkdf2HmacSha512(password.toCharArray(), salt.getBytes(StandardCharsets.US_ASCII), iterations, 32));
+    }
+
+    private static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,173 @@
+package com.gero.newpass.repository;
+
+import com.gero.newpass.database.BatchInsertResult;
+import com.gero.newpass.database.BatchInsertResults;
+import com.gero.newpass.model.UserData;
+import com.gero.newpass.utilities.CsvReader;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test, which will execute on the development machine (host).
+ * Imports the header and a row of every supported export, as the password managers write them.
+ */
+public class CsvImporterTest {
+
+    /**
+     * Inserts the batches like the vault does: an entry whose name and email were already inserted is a duplicate.
+     */
+    private static class VaultSink implements CsvImporter.BatchSink {
+        final List<UserData> added = new ArrayList<>();
+        final List<Integer> batchSizes = new ArrayList<>();
+        private final Set<String> accounts = new HashSet<>();
+
+        @Override
+        public BatchInsertResult insert(List<UserData> batch) {
+            BatchInsertResult.Status[] statuses = new BatchInsertResult.Status[batch.size()];
+
+            for (int i = 0; i < batch.size(); i++) {
+                UserData entry = batch.get(i);
+
+                if (accounts.add(entry.getName() + '\u0000' + entry.getEmail())) {
+                    added.add(entry);
+                    statuses[i] = BatchInsertResult.Status.ADDED;
+                } else {
+                    statuses[i] = BatchInsertResult.Status.DUPLICATE;
+                }
+            }
+            batchSizes.add(batch.size());
+            return BatchInsertResults.of(statuses);
+        }
+    }
+
+    @Test
+    public void importFrom_readsChromeExports() throws IOException {
+        VaultSink sink = new VaultSink();
+
+        CsvImporter.Summary summary = importFrom("name,url,username,password,note\n" +
+                "github.com,https://github.com/login,me@example.com,hunter22,\n", sink);
+
+        assertEquals(CsvImporter.Format.CHROME, summary.format);
+        assertEquals(1, summary.added);
+        assertEntry(sink.added.get(0), "github.com", "me@example.com", "hunter22");
+    }
+
+    @Test
+    public void importFrom_readsFirefoxExports() throws IOException {
+        VaultSink sink = new VaultSink();
+
+        CsvImporter.Summary summary = importFrom("\"url\",\"username\",\"password\",\"httpRealm\",\"formActionOrigin\",\"guid\"," +
+                "\"timeCreated\",\"timeLastUsed\",\"timePasswordChanged\"\r\n" +
+                "\"https://accounts.example.com:8443/signin\",\"me@example.com\",\"p,a\"\"ss\",,\"https://accounts.example.com\"," +
+                "\"{0a1b2c3d-4e5f-6071-8293-a4b5c6d7e8f9}\",\"1700000000000\",\"1700000000000\",\"1700000000000\"\r\n", sink);
+
+        assertEquals(CsvImporter.Format.FIREFOX, summary.format);
+        assertEquals(1, summary.added);
+        // Firefox has no name column, the host of the address stands in for it
+        assertEntry(sink.added.get(0), "accounts.example.com", "me@example.com", "p,a\"ss");
+    }
+
+    @Test
+    public void importFrom_readsBitwardenExports() throws IOException {
+        VaultSink sink = new VaultSink();
+
+        CsvImporter.Summary summary = importFrom("folder,favorite,type,name,notes,fields,reprompt,login_uri,login_username,login_password,login_totp\n" +
+                "Work,1,login,GitHub,\"two\nlines\",,0,https://github.com/login,me@example.com,hunter22,\n" +
+                ",,note,Wifi,The code is on the router,,0,,,,\n", sink);
+
+        assertEquals(CsvImporter.Format.BITWARDEN, summary.format);
+        assertEquals(1, summary.added);
+        assertEquals(1, summary.skipped);
+        assertEntry(sink.added.get(0), "GitHub", "me@example.com", "hunter22");
+    }
+
+    @Test
+    public void importFrom_readsKeePassXcExports() throws IOException {
+        VaultSink sink = new VaultSink();
+
+        CsvImporter.Summary summary = importFrom("\uFEFF\"Group\",\"Title\",\"Username\",\"Password\",\"URL\",\"Notes\",\"TOTP\",\"Icon\"," +
+                "\"Last Modified\",\"Created\"\n" +
+                "\"Root/Mail\",\"Mail\",\"me@example.com\",\"s3cret\",\"https://mail.example.com\",\"\",\"\",\"0\"," +
+                "\"2024-01-01T00:00:00Z\",\"2024-01-01T00:00:00Z\"\n", sink);
+
+        assertEquals(CsvImporter.Format.KEEPASSXC, summary.format);
+        assertEquals(1, summary.added);
+        assertEntry(sink.added.get(0), "Mail", "me@example.com", "s3cret");
+    }
+
+    @Test
+    public void importFrom_countsSkippedAndDuplicateRows() throws IOException {
+        VaultSink sink = new VaultSink();
+
+        CsvImporter.Summary summary = importFrom("name,url,username,password,note\n" +
+                "GitHub,https://github.com,me@example.com,first,\n" +
+                "GitHub,https://github.com,me@example.com,second,\n" +
+                "GitHub,https://github.com,other@example.com,third,\n" +
+                "Empty,https://example.com,me@example.com,,\n" +
+                ",https://mail.example.com/inbox,me@example.com,fourth,\n" +
+                ",,me@example.com,fifth,\n", sink);
+
+        assertEquals(4, summary.added);
+        assertEquals(1, summary.duplicates);
+        assertEquals(1, summary.skipped);
+        assertEquals(0, summary.failed);
+        assertEntry(sink.added.get(2), "mail.example.com", "me@example.com", "fourth");
+        assertEntry(sink.added.get(3), "me@example.com", "me@example.com", "fifth");
+    }
+
+    @Test
+    public void importFrom_insertsInBatches() throws IOException {
+        VaultSink sink = new VaultSink();
+        StringBuilder csv = new StringBuilder("name,url,username,password,note\n");
+        int rows = CsvImporter.BATCH_SIZE * 2 + 1;
+
+        for (int i = 0; i < rows; i++) {
+            csv.append("Site ").append(i).append(",,me@example.com,password,\n");
+        }
+
+        CsvImporter.Summary summary = importFrom(csv.toString(), sink);
+
+        assertEquals(rows, summary.added);
+        assertEquals(3, sink.batchSizes.size());
+        assertEquals(CsvImporter.BATCH_SIZE, (int) sink.batchSizes.get(0));
+        assertEquals(1, (int) sink.batchSizes.get(2));
+    }
+
+    @Test
+    public void importFrom_countsTheRowsOfAFailedBatch() throws IOException {
+        CsvImporter.Summary summary = importFrom("name,url,username,password,note\n" +
+                "GitHub,,me@example.com,first,\n" +
+                "Mail,,me@example.com,second,\n", batch -> null);
+
+        assertEquals(0, summary.added);
+        assertEquals(2, summary.failed);
+    }
+
+    @Test
+    public void importFrom_rejectsUnknownHeaders() {
+        assertThrows(CsvImporter.UnsupportedFormatException.class,
+                () -> importFrom("site,login,secret\nGitHub,me,hunter22\n", new VaultSink()));
+        assertThrows(CsvImporter.UnsupportedFormatException.class, () -> importFrom("", new VaultSink()));
+    }
+
+    private static CsvImporter.Summary importFrom(String csv, CsvImporter.BatchSink sink) throws IOException {
+        try (CsvReader reader = new CsvReader(new StringReader(csv))) {
+            return CsvImporter.importFrom(reader, sink, null);
+        }
+    }
+
+    private static void assertEntry(UserData entry, String name, String email, String password) {
+        assertEquals(name, entry.getName());
+        assertEquals(email, entry.getEmail());
+        assertEquals(password, entry.getPassword());
+    }
+}
@@ -0,0 +1,101 @@
+package com.gero.newpass.utilities;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test, which will execute on the development machine (host).
+ * Reads records the way the exports of other password managers write them.
+ */
+public class CsvReaderTest {
+
+    @Test
+    public void readRecord_splitsPlainFields() throws IOException {
+        CsvReader reader = reader("name,url,username\nGitHub,https://github.com,me\n");
+
+        assertEquals(Arrays.asList("name", "url", "username"), reader.readRecord());
+        assertEquals(Arrays.asList("GitHub", "https://github.com", "me"), reader.readRecord());
+        assertNull(reader.readRecord());
+    }
+
+    @Test
+    public void readRecord_keepsLineBreaksInsideQuotes() throws IOException {
+        CsvReader reader = reader("name,notes\r\n\"GitHub\",\"first line\r\nsecond line\nthird line\"\r\nMail,\n");
+
+        assertEquals(Arrays.asList("name", "notes"), reader.readRecord());
+        assertEquals(Arrays.asList("GitHub", "first line\r\nsecond line\nthird line"), reader.readRecord());
+        assertEquals(Arrays.asList("Mail", ""), reader.readRecord());
+        assertNull(reader.readRecord());
+    }
+
+    @Test
+    public void readRecord_unescapesDoubledQuotes() throws IOException {
+        CsvReader reader = reader("\"pa\"\"ss, \"\"word\"\"\",\"\",\"\"\"\"\n");
+
+        assertEquals(Arrays.asList("pa\"ss, \"word\"", "", "\""), reader.readRecord());
+    }
+
+    @Test
+    public void readRecord_skipsTheByteOrderMark() throws IOException {
+        CsvReader reader = reader("\uFEFFTitle,Username\nGitHub,me");
+
+        assertEquals(Arrays.asList("Title", "Username"), reader.readRecord());
+        assertEquals(Arrays.asList("GitHub", "me"), reader.readRecord());
+        assertNull(reader.readRecord());
+    }
+
+    @Test
+    public void readRecord_skipsTheByteOrderMarkReadAlone() throws IOException {
+        // A reader may hand over the mark on its own, before the rest of the file
+        Reader oneCharAtATime = new StringReader("\uFEFFa,b\n") {
+            @Override
+            public int read(char[] buffer, int offset, int length) throws IOException {
+                return super.read(buffer, offset, Math.min(length, 1));
+            }
+        };
+        CsvReader reader = new CsvReader(oneCharAtATime);
+
+        assertEquals(Arrays.asList("a", "b"), reader.readRecord());
+        assertNull(reader.readRecord());
+    }
+
+    @Test
+    public void readRecord_skipsBlankLines() throws IOException {
+        CsvReader reader = reader("\n\r\na,b\n\n\nc,d\r\n\r\n");
+
+        assertEquals(Arrays.asList("a", "b"), reader.readRecord());
+        assertEquals(Arrays.asList("c", "d"), reader.readRecord());
+        assertNull(reader.readRecord());
+    }
+
+    @Test
+    public void readRecord_keepsEmptyFields() throws IOException {
+        List<String> record = reader(",,login,,\n").readRecord();
+
+        assertEquals(Arrays.asList("", "", "login", "", ""), record);
+    }
+
+    @Test
+    public void readRecord_readsRecordsLongerThanTheBuffer() throws IOException {
+        StringBuilder notes = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            notes.append(i % 10 == 0 ? '\n' : 'x');
+        }
+
+        CsvReader reader = reader("GitHub,\"" + notes + "\"\nMail,me\n");
+
+        assertEquals(Arrays.asList("GitHub", notes.toString()), reader.readRecord());
+        assertEquals(Arrays.asList("Mail", "me"), reader.readRecord());
+    }
+
+    private static CsvReader reader(String text) {
+        return new CsvReader(new StringReader(text));
+    }
+}